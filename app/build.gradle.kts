@@ -30,6 +30,9 @@ android {
         vectorDrawables {
             useSupportLibrary = true
         }
+
+        // Default Tor runtime: "PROCESS" (spawned libtor.so) or "EMBEDDED" (tor-android's in-process TorService)
+        buildConfigField("String", "TOR_RUNTIME", "\"PROCESS\"")
     }
 
     signingConfigs {
@@ -90,6 +93,8 @@ dependencies {
     implementation("androidx.room:room-runtime:2.6.1")
     implementation("androidx.room:room-ktx:2.6.1")
     ksp("androidx.room:room-compiler:2.6.1")
+    implementation("androidx.paging:paging-runtime-ktx:3.2.1")
+    implementation("androidx.paging:paging-compose:3.2.1")
     
     // Testing
     testImplementation("junit:junit:4.13.2")
@@ -102,7 +107,6 @@ dependencies {
 
     // Tor Dependencies - Modern
     implementation("info.guardianproject:tor-android:0.4.8.19")
-    implementation("info.guardianproject:jtorctl:0.4")
     
     // Logging
     implementation("org.slf4j:slf4j-api:1.7.36")
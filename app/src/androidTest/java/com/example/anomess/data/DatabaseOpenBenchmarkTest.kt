@@ -0,0 +1,135 @@
+package com.example.anomess.data
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import net.sqlcipher.database.SQLiteDatabase
+import net.sqlcipher.database.SQLiteDatabaseHook
+import org.junit.After
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Benchmark for the SQLCipher open path, before and after [DatabaseTuning]:
+ * the Base64 passphrase with default pragmas against the raw key with the tuning hook.
+ *
+ * Runs on a device (SQLCipher is native) against scratch files and a throwaway key. Open time is
+ * measured up to the first query, since SQLCipher derives the key lazily on first access.
+ * Only the open is asserted: PBKDF2 dwarfs everything else there, while commit costs depend on
+ * the device's storage and are just logged.
+ */
+@RunWith(AndroidJUnit4::class)
+class DatabaseOpenBenchmarkTest {
+
+    private class Result(val label: String, val openMs: Double, val singleInsertsPerSec: Double, val batchedInsertsPerSec: Double) {
+        override fun toString(): String =
+            "$label: open ${"%.1f".format(openMs)}ms, single-commit inserts ${"%.0f".format(singleInsertsPerSec)}/s, " +
+                "batched inserts ${"%.0f".format(batchedInsertsPerSec)}/s"
+    }
+
+    companion object {
+        private const val TAG = "CipherBenchmark"
+        private const val DB_NAME = "anomess_cipher_benchmark"
+        private const val OPEN_RUNS = 5
+        private const val OPEN_MARGIN = 2.0 // Skipping PBKDF2 makes it many times faster; demand at least this
+        private const val SINGLE_INSERT_ROUNDS = 5
+        private const val SINGLE_INSERTS = 200 // Per round; one transaction each, like the old per-message path
+        private const val BATCHED_INSERTS = 20_000 // Batches of BATCH, like the ingest writer
+        private const val BATCH = 200
+    }
+
+    private lateinit var context: Context
+
+    @Before
+    fun setUp() {
+        context = InstrumentationRegistry.getInstrumentation().targetContext
+        SQLiteDatabase.loadLibs(context)
+    }
+
+    @After
+    fun tearDown() {
+        context.deleteDatabase(DB_NAME)
+    }
+
+    @Test
+    fun rawKeyOpensFasterThanPassphrase() {
+        val secret = ByteArray(32).also { java.security.SecureRandom().nextBytes(it) }
+        val passphrase = android.util.Base64.encodeToString(secret, android.util.Base64.NO_WRAP)
+        val rawKey = DatabaseTuning.rawKeyOf(passphrase)!!
+
+        val before = measure("before (passphrase, defaults)", passphrase, null)
+        val after = measure("after (raw key, tuned)", rawKey, DatabaseTuning.hook)
+        Log.i(TAG, before.toString())
+        Log.i(TAG, after.toString())
+
+        // Medians of OPEN_RUNS each; the raw key skips PBKDF2 entirely
+        assertTrue("open: $after vs $before", after.openMs * OPEN_MARGIN < before.openMs)
+    }
+
+    private fun measure(label: String, key: String, hook: SQLiteDatabaseHook?): Result {
+        val file = context.getDatabasePath(DB_NAME)
+        context.deleteDatabase(DB_NAME)
+        file.parentFile?.mkdirs()
+        val password = SQLiteDatabase.getBytes(key.toCharArray())
+
+        open(file.path, password, hook).use { db ->
+            db.execSQL("CREATE TABLE messages (id INTEGER PRIMARY KEY AUTOINCREMENT, peerAddress TEXT NOT NULL, content TEXT NOT NULL, timestamp INTEGER NOT NULL)")
+            db.execSQL("CREATE INDEX index_messages_peerAddress_timestamp ON messages (peerAddress, timestamp)")
+        }
+
+        // Median open of the existing file
+        val opens = (0 until OPEN_RUNS).map {
+            val start = System.nanoTime()
+            open(file.path, password, hook).use { db ->
+                db.rawQuery("SELECT count(*) FROM sqlite_master", emptyArray<String>()).use { it.moveToFirst() }
+            }
+            (System.nanoTime() - start) / 1_000_000.0
+        }.sorted()
+
+        open(file.path, password, hook).use { db ->
+            val insert = db.compileStatement("INSERT INTO messages (peerAddress, content, timestamp) VALUES (?, ?, ?)")
+
+            // Median round
+            val singleRates = (0 until SINGLE_INSERT_ROUNDS).map { round ->
+                val roundStart = SystemClock.elapsedRealtime()
+                for (n in 0 until SINGLE_INSERTS) {
+                    val i = round * SINGLE_INSERTS + n
+                    insert.bindString(1, "peer${i % 20}")
+                    insert.bindString(2, "Benchmark message $i")
+                    insert.bindLong(3, i.toLong())
+                    insert.executeInsert() // Autocommit: one transaction (and sync) per row
+                }
+                SINGLE_INSERTS * 1000.0 / (SystemClock.elapsedRealtime() - roundStart).coerceAtLeast(1)
+            }.sorted()
+
+            val start = SystemClock.elapsedRealtime()
+            var i = 0
+            while (i < BATCHED_INSERTS) {
+                db.beginTransaction()
+                try {
+                    repeat(minOf(BATCH, BATCHED_INSERTS - i)) {
+                        insert.bindString(1, "peer${i % 20}")
+                        insert.bindString(2, "Benchmark message $i")
+                        insert.bindLong(3, i.toLong())
+                        insert.executeInsert()
+                        i++
+                    }
+                    db.setTransactionSuccessful()
+                } finally {
+                    db.endTransaction()
+                }
+            }
+            val batchedMs = (SystemClock.elapsedRealtime() - start).coerceAtLeast(1)
+            insert.close()
+
+            return Result(label, opens[OPEN_RUNS / 2], singleRates[SINGLE_INSERT_ROUNDS / 2], BATCHED_INSERTS * 1000.0 / batchedMs)
+        }
+    }
+
+    private fun open(path: String, password: ByteArray, hook: SQLiteDatabaseHook?): SQLiteDatabase =
+        SQLiteDatabase.openOrCreateDatabase(path, password, null, hook)
+}
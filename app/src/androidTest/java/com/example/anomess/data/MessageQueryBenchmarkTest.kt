@@ -0,0 +1,165 @@
+package com.example.anomess.data
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import androidx.room.Room
+import androidx.sqlite.db.SimpleSQLiteQuery
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.After
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Benchmark for the conversation queries: fills a scratch database with the app's schema
+ * ([AppDatabase], same entities and indices) with [ROW_COUNT] messages spread over [PEER_COUNT] peers,
+ * then logs each query's `EXPLAIN QUERY PLAN` and its run time, and fails if any plan scans a table.
+ * Inserts also go through the [MessageFts] sync triggers, so the search cases run against a full index;
+ * they fail if their median run takes longer than [SEARCH_BUDGET_MS].
+ *
+ * The scratch file is plain SQLite (no SQLCipher) and is deleted afterwards; query plans don't
+ * depend on the cipher. Populating a million rows takes a while and ~300MB of cache space.
+ */
+@RunWith(AndroidJUnit4::class)
+class MessageQueryBenchmarkTest {
+
+    data class Result(val name: String, val plan: List<String>, val ms: Double, val budgetMs: Double?) {
+        // "SCAN messages" without an index is a full table scan
+        val usesIndex: Boolean get() = plan.none { it.contains("SCAN") && !it.contains("INDEX") }
+        val overBudget: Boolean get() = budgetMs != null && ms > budgetMs
+
+        override fun toString(): String =
+            "$name: ${"%.2f".format(ms)}ms ${if (usesIndex) "indexed" else "FULL SCAN"} ${plan.joinToString(" | ")}"
+    }
+
+    private class Case(val name: String, val sql: String, val args: Array<Any?>, val budgetMs: Double? = null)
+
+    companion object {
+        private const val TAG = "QueryBenchmark"
+        private const val ROW_COUNT = 1_000_000
+        private const val PEER_COUNT = 200
+        private const val DB_NAME = "anomess_query_benchmark"
+        private const val RUNS = 5
+        private const val PAGE = 50
+        private const val SEARCH_BUDGET_MS = 100.0
+        private val WORDS = listOf("hello", "meeting", "tomorrow", "photo", "address", "dinner", "train", "birthday", "coffee", "weekend")
+        private const val SEARCH_SQL =
+            "SELECT m.id, m.peerAddress, m.timestamp, m.isMine, snippet(messages_fts, char(2), char(3), '…', -1, 10) AS snippet " +
+                "FROM messages_fts JOIN messages m ON m.id = messages_fts.rowid WHERE messages_fts MATCH ? AND m.type = 0 " +
+                "AND (? IS NULL OR m.peerAddress = ?) AND messages_fts.rowid < ? ORDER BY messages_fts.rowid DESC LIMIT 30"
+    }
+
+    private fun peer(i: Int) = "peer%056d.onion".format(i)
+    private val me = "me".padEnd(56, 'x') + ".onion"
+
+    // The DAO's SQL with representative arguments: a peer in the middle, a cursor deep in its history
+    private fun cases(): List<Case> {
+        val peer = peer(PEER_COUNT / 2)
+        val deep = ROW_COUNT / 10L
+        return listOf(
+            Case("newest page", "SELECT * FROM messages WHERE peerAddress = ? AND (timestamp < ? OR (timestamp = ? AND id < ?)) ORDER BY timestamp DESC, id DESC LIMIT $PAGE",
+                arrayOf(peer, Long.MAX_VALUE, Long.MAX_VALUE, Int.MAX_VALUE)),
+            Case("deep page", "SELECT * FROM messages WHERE peerAddress = ? AND (timestamp < ? OR (timestamp = ? AND id < ?)) ORDER BY timestamp DESC, id DESC LIMIT $PAGE",
+                arrayOf(peer, deep, deep, Int.MAX_VALUE)),
+            Case("count before", "SELECT COUNT(*) FROM messages WHERE peerAddress = ? AND (timestamp < ? OR (timestamp = ? AND id < ?))",
+                arrayOf(peer, deep, deep, Int.MAX_VALUE)),
+            Case("last message", "SELECT * FROM messages WHERE peerAddress = ? ORDER BY timestamp DESC, id DESC LIMIT 1", arrayOf(peer)),
+            Case("unread count", "SELECT COUNT(*) FROM messages WHERE peerAddress = ? AND isRead = 0 AND isMine = 0", arrayOf(peer)),
+            Case("latest incoming", "SELECT MAX(COALESCE(senderTimestamp, timestamp)) FROM messages WHERE senderOnionAddress = ? AND isMine = 0", arrayOf(peer)),
+            Case("outbox", "SELECT * FROM messages WHERE isMine = 1 AND status IN (0, 2) AND peerAddress = ? ORDER BY timestamp ASC, id ASC", arrayOf(peer)),
+            Case("outbox peers", "SELECT DISTINCT peerAddress FROM messages WHERE status IN (0, 2) AND isMine = 1", arrayOf()),
+            // MessageFts: a common word, a rare pair, a prefix while typing, and scoped to one chat
+            Case("search common", SEARCH_SQL, arrayOf("\"hello\"", null, null, Int.MAX_VALUE), SEARCH_BUDGET_MS),
+            Case("search rare", SEARCH_SQL, arrayOf("\"birthday\" \"${ROW_COUNT / 3}\"", null, null, Int.MAX_VALUE), SEARCH_BUDGET_MS),
+            Case("search prefix", SEARCH_SQL, arrayOf("\"mee\"*", null, null, Int.MAX_VALUE), SEARCH_BUDGET_MS),
+            Case("search in chat", SEARCH_SQL, arrayOf("\"coffee\"", peer, peer, Int.MAX_VALUE), SEARCH_BUDGET_MS),
+            Case("find message", "SELECT id FROM messages WHERE senderOnionAddress = ? AND ((isMine = 1 AND timestamp = ?) OR (isMine = 0 AND senderTimestamp = ?)) LIMIT 1",
+                arrayOf(peer, deep, deep))
+        )
+    }
+
+    private lateinit var context: Context
+    private lateinit var database: AppDatabase
+
+    @Before
+    fun setUp() {
+        context = InstrumentationRegistry.getInstrumentation().targetContext
+        context.deleteDatabase(DB_NAME)
+        database = Room.databaseBuilder(context, AppDatabase::class.java, DB_NAME).build()
+    }
+
+    @After
+    fun tearDown() {
+        database.close()
+        context.deleteDatabase(DB_NAME)
+    }
+
+    @Test
+    fun conversationQueriesUseIndicesAndSearchMeetsBudget() {
+        val db = database.openHelper.writableDatabase
+        val populateStart = SystemClock.elapsedRealtime()
+        populate(db)
+        Log.i(TAG, "$ROW_COUNT rows in ${SystemClock.elapsedRealtime() - populateStart}ms")
+
+        val results = cases().map { case ->
+            Result(case.name, explain(db, case), time(db, case), case.budgetMs).also { Log.i(TAG, it.toString()) }
+        }
+        val scans = results.filterNot { it.usesIndex }
+        assertTrue("Full table scans: ${scans.joinToString()}", scans.isEmpty())
+        val slow = results.filter { it.overBudget }
+        assertTrue("Over ${SEARCH_BUDGET_MS}ms: ${slow.joinToString()}", slow.isEmpty())
+    }
+
+    private fun populate(db: SupportSQLiteDatabase) {
+        val insert = db.compileStatement(
+            "INSERT INTO messages (senderOnionAddress, receiverOnionAddress, content, timestamp, isMine, isRead, type, " +
+                "senderTimestamp, status, peerAddress) VALUES (?, ?, ?, ?, ?, ?, 0, ?, ?, ?)"
+        )
+        db.beginTransaction()
+        try {
+            for (i in 0 until ROW_COUNT) {
+                val peer = peer(i % PEER_COUNT)
+                val mine = i % 2 == 0
+                val timestamp = i.toLong()
+                insert.clearBindings()
+                insert.bindString(1, if (mine) me else peer)
+                insert.bindString(2, if (mine) peer else me)
+                insert.bindString(3, "Benchmark message $i ${WORDS[i % WORDS.size]} ${WORDS[i / 7 % WORDS.size]}")
+                insert.bindLong(4, timestamp)
+                insert.bindLong(5, if (mine) 1 else 0)
+                // The newest 1% is unread; a few of my messages are still queued
+                insert.bindLong(6, if (mine || i < ROW_COUNT * 99L / 100) 1 else 0)
+                if (mine) insert.bindNull(7) else insert.bindLong(7, timestamp)
+                insert.bindLong(8, if (mine && i % 1000 == 0) Message.STATUS_FAILED.toLong() else Message.STATUS_SENT.toLong())
+                insert.bindString(9, peer)
+                insert.executeInsert()
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    private fun explain(db: SupportSQLiteDatabase, case: Case): List<String> {
+        val plan = ArrayList<String>()
+        db.query(SimpleSQLiteQuery("EXPLAIN QUERY PLAN ${case.sql}", case.args)).use { cursor ->
+            val detail = cursor.getColumnIndex("detail")
+            while (cursor.moveToNext()) plan.add(cursor.getString(detail))
+        }
+        return plan
+    }
+
+    // Median of a few runs, reading every row so lazy cursors can't flatter the numbers
+    private fun time(db: SupportSQLiteDatabase, case: Case): Double {
+        val samples = (0 until RUNS).map {
+            val start = System.nanoTime()
+            db.query(SimpleSQLiteQuery(case.sql, case.args)).use { cursor -> while (cursor.moveToNext()) {} }
+            (System.nanoTime() - start) / 1_000_000.0
+        }
+        return samples.sorted()[RUNS / 2]
+    }
+}
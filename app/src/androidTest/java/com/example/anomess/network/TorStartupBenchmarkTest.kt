@@ -0,0 +1,83 @@
+package com.example.anomess.network
+
+import android.os.SystemClock
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.example.anomess.AnomessApp
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Benchmark comparing the Tor runtimes on a device: time until the control port is up,
+ * time to 100% bootstrap, memory once bootstrapped, and the cost of a restart.
+ *
+ * It stops and restarts the app's Tor instance and needs network access. The configured runtime
+ * is measured last, so restoring it never brings back an embedded Tor that was already released.
+ */
+@RunWith(AndroidJUnit4::class)
+class TorStartupBenchmarkTest {
+
+    private class Result(
+        val mode: TorRuntime.Mode,
+        val started: Boolean,
+        val startMs: Long,       // startTor() until the control connection is up
+        val bootstrapMs: Long,   // startTor() until 100% bootstrap
+        val restartMs: Long,     // stop + start until 100% bootstrap again
+        val appPssKb: Long,
+        val torRssKb: Long       // Tor's own process; 0 when it runs inside the app
+    ) {
+        override fun toString(): String =
+            if (!started) "$mode: failed to start"
+            else "$mode: start ${startMs}ms, bootstrap ${bootstrapMs}ms, restart ${restartMs}ms, " +
+                "app PSS ${appPssKb / 1024}MB, Tor RSS ${torRssKb / 1024}MB"
+    }
+
+    companion object {
+        private const val TAG = "TorBenchmark"
+        private const val BOOTSTRAP_TIMEOUT_MS = 3 * 60 * 1000L
+    }
+
+    private val torManager: TorManager get() = AnomessApp.instance.torManager
+
+    @Test
+    fun compareRuntimes() = runBlocking {
+        val original = torManager.runtimeMode()
+        val modes = TorRuntime.Mode.values().filter { it != original } + original
+        val results = ArrayList<Result>()
+        try {
+            for (mode in modes) {
+                results.add(measure(mode).also { Log.i(TAG, it.toString()) })
+            }
+        } finally {
+            torManager.stopTor()
+            torManager.setRuntimeMode(original)
+        }
+
+        assertTrue("$original: ${results.last()}", results.last().started)
+        assertTrue("$original restarted", torManager.startTor() && torManager.awaitBootstrapped(BOOTSTRAP_TIMEOUT_MS))
+    }
+
+    private suspend fun measure(mode: TorRuntime.Mode): Result {
+        torManager.stopTor()
+        torManager.setRuntimeMode(mode)
+
+        val startedAt = SystemClock.elapsedRealtime()
+        if (!torManager.startTor()) return Result(mode, false, 0, 0, 0, 0, 0)
+        val startMs = SystemClock.elapsedRealtime() - startedAt
+        if (!torManager.awaitBootstrapped(BOOTSTRAP_TIMEOUT_MS)) return Result(mode, false, startMs, 0, 0, 0, 0)
+        val bootstrapMs = SystemClock.elapsedRealtime() - startedAt
+
+        // Let startup garbage settle before sampling
+        Runtime.getRuntime().gc()
+        val (appPss, torRss) = torManager.memoryUsageKb()
+
+        val restartAt = SystemClock.elapsedRealtime()
+        torManager.stopTor()
+        val restarted = torManager.startTor() && torManager.awaitBootstrapped(BOOTSTRAP_TIMEOUT_MS)
+        val restartMs = if (restarted) SystemClock.elapsedRealtime() - restartAt else -1
+
+        return Result(mode, true, startMs, bootstrapMs, restartMs, appPss, torRss)
+    }
+}
@@ -12,6 +12,7 @@ class AnomessApp : Application(), coil.ImageLoaderFactory {
     lateinit var database: AppDatabase
     lateinit var repository: MessageRepository
     lateinit var p2pConnectionManager: P2PConnectionManager
+    lateinit var outbox: com.example.anomess.network.MessageOutbox
     lateinit var securityManager: com.example.anomess.security.SecurityManager
     
     companion object {
@@ -23,20 +24,25 @@ class AnomessApp : Application(), coil.ImageLoaderFactory {
         super.onCreate()
         instance = this
         
-        // Initialize Security
+        // Initialize Security (process-wide identity; never construct another SecurityManager)
         securityManager = com.example.anomess.security.SecurityManager(this)
+        Thread { securityManager.warmUp() }.start()
         
         torManager = TorManager(this)
         
         // Initialize Encrypted Database
         val dbKey = securityManager.getDatabasePassphrase()
         database = AppDatabase.getDatabase(this, dbKey)
+        com.example.anomess.data.DatabaseMaintenance(database).start()
         
-        repository = MessageRepository(this, database.messageDao(), database.contactDao())
+        repository = MessageRepository(this, database.messageDao(), database.contactDao(), database.invalidationTracker, securityManager)
         
         // Pass SecurityManager to P2P for Signing/Verification
         p2pConnectionManager = P2PConnectionManager(torManager, repository, securityManager, this)
         
+        // Single delivery path for pending/failed outgoing messages
+        outbox = com.example.anomess.network.MessageOutbox(torManager, p2pConnectionManager, repository)
+        
         // Start Tor Service to keep app alive
         val serviceIntent = android.content.Intent(this, com.example.anomess.service.TorService::class.java)
         serviceIntent.action = com.example.anomess.service.TorService.ACTION_START
@@ -42,6 +42,9 @@ class MainActivity : ComponentActivity() {
                 ) {
                     var currentScreen by remember { mutableStateOf("contacts") }
                     var selectedContact by remember { mutableStateOf<com.example.anomess.data.Contact?>(null) }
+                    // Search scope (null = all chats) and the hit a chat was opened at
+                    var searchPeer by remember { mutableStateOf<com.example.anomess.data.Contact?>(null) }
+                    var jumpTo by remember { mutableStateOf<com.example.anomess.data.MessageSearchHit?>(null) }
                     
                     androidx.compose.animation.AnimatedContent(
                         targetState = currentScreen,
@@ -65,16 +68,38 @@ class MainActivity : ComponentActivity() {
                                     viewModel = viewModel,
                                     onContactSelected = { contact ->
                                         selectedContact = contact
+                                        jumpTo = null
                                         currentScreen = "chat"
+                                    },
+                                    onSearch = {
+                                        searchPeer = null
+                                        currentScreen = "search"
                                     }
                                 )
                             }
+                            "search" -> {
+                                com.example.anomess.ui.SearchScreen(
+                                    viewModel = viewModel,
+                                    peer = searchPeer,
+                                    onResultSelected = { contact, hit ->
+                                        selectedContact = contact
+                                        jumpTo = hit
+                                        currentScreen = "chat"
+                                    },
+                                    onBack = { currentScreen = if (searchPeer != null) "chat" else "contacts" }
+                                )
+                            }
                             "chat" -> {
                                 selectedContact?.let { contact ->
                                     ChatScreen(
                                         viewModel = viewModel,
                                         contact = contact,
-                                        onBack = { currentScreen = "contacts" }
+                                        onBack = { currentScreen = "contacts" },
+                                        jumpTo = jumpTo,
+                                        onSearch = {
+                                            searchPeer = contact
+                                            currentScreen = "search"
+                                        }
                                     )
                                 }
                             }
@@ -4,8 +4,10 @@ import android.content.Context
 import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
 
-@Database(entities = [Message::class, Contact::class], version = 7, exportSchema = false)
+@Database(entities = [Message::class, Contact::class, ConversationSummary::class, MessageFts::class], version = 11, exportSchema = false)
 abstract class AppDatabase : RoomDatabase() {
     abstract fun messageDao(): MessageDao
     abstract fun contactDao(): ContactDao
@@ -14,17 +16,79 @@ abstract class AppDatabase : RoomDatabase() {
         @Volatile
         private var INSTANCE: AppDatabase? = null
 
+        // peerAddress backfilled from the existing columns, plus the conversation indices
+        val MIGRATION_7_8 = object : Migration(7, 8) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE messages ADD COLUMN peerAddress TEXT NOT NULL DEFAULT ''")
+                db.execSQL("UPDATE messages SET peerAddress = CASE WHEN isMine = 1 THEN receiverOnionAddress ELSE senderOnionAddress END")
+                db.execSQL("CREATE INDEX IF NOT EXISTS index_messages_peerAddress_timestamp ON messages (peerAddress, timestamp)")
+                db.execSQL("CREATE INDEX IF NOT EXISTS index_messages_peerAddress_isRead ON messages (peerAddress, isRead)")
+                db.execSQL("CREATE INDEX IF NOT EXISTS index_messages_status ON messages (status)")
+                db.execSQL("CREATE INDEX IF NOT EXISTS index_messages_senderOnionAddress_senderTimestamp ON messages (senderOnionAddress, senderTimestamp)")
+            }
+        }
+
+        val MIGRATION_8_9 = object : Migration(8, 9) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `conversation_summary` (`peerAddress` TEXT NOT NULL, `lastMessageId` INTEGER NOT NULL, " +
+                        "`lastContent` TEXT NOT NULL, `lastType` INTEGER NOT NULL, `lastTimestamp` INTEGER NOT NULL, " +
+                        "`lastIsMine` INTEGER NOT NULL, `lastStatus` INTEGER NOT NULL, `unreadCount` INTEGER NOT NULL, PRIMARY KEY(`peerAddress`))"
+                )
+                db.execSQL("CREATE INDEX IF NOT EXISTS index_conversation_summary_lastTimestamp ON conversation_summary (lastTimestamp)")
+                ConversationSummary.TRIGGERS.forEach { db.execSQL(it) }
+                db.execSQL(ConversationSummary.BACKFILL)
+            }
+        }
+
+        // Same table and sync triggers Room generates for MessageFts, then index the existing rows
+        val MIGRATION_9_10 = object : Migration(9, 10) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `messages_fts` USING FTS4(`content` TEXT NOT NULL, tokenize=unicode61, content=`messages`)")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_messages_fts_BEFORE_UPDATE BEFORE UPDATE ON `messages` BEGIN DELETE FROM `messages_fts` WHERE `docid`=OLD.`rowid`; END")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_messages_fts_BEFORE_DELETE BEFORE DELETE ON `messages` BEGIN DELETE FROM `messages_fts` WHERE `docid`=OLD.`rowid`; END")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_messages_fts_AFTER_UPDATE AFTER UPDATE ON `messages` BEGIN INSERT INTO `messages_fts`(`docid`, `content`) VALUES (NEW.`rowid`, NEW.`content`); END")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_messages_fts_AFTER_INSERT AFTER INSERT ON `messages` BEGIN INSERT INTO `messages_fts`(`docid`, `content`) VALUES (NEW.`rowid`, NEW.`content`); END")
+                db.execSQL("INSERT INTO messages_fts(messages_fts) VALUES ('rebuild')")
+            }
+        }
+
+        // messages_fts with prefix indexes: FTS options can't be altered, so recreate it and reindex.
+        // The sync triggers on `messages` only refer to it by name and stay as they are.
+        val MIGRATION_10_11 = object : Migration(10, 11) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("DROP TABLE IF EXISTS `messages_fts`")
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `messages_fts` USING FTS4(`content` TEXT NOT NULL, tokenize=unicode61, content=`messages`, prefix=`2,3`)")
+                db.execSQL("INSERT INTO messages_fts(messages_fts) VALUES ('rebuild')")
+            }
+        }
+
+        // Room creates tables but not triggers. onOpen runs after the tables exist on every path
+        // (fresh, migrated or destructively recreated), and the triggers are IF NOT EXISTS.
+        // onDestructiveMigration is no good: it runs between dropping and recreating the tables.
+        private val triggerCallback = object : RoomDatabase.Callback() {
+            override fun onOpen(db: SupportSQLiteDatabase) {
+                ConversationSummary.TRIGGERS.forEach { db.execSQL(it) }
+            }
+        }
+
+        private const val DB_NAME = "anomess_database"
+
         fun getDatabase(context: Context, passphrase: String): AppDatabase {
             return INSTANCE ?: synchronized(this) {
-                val supportFactory = net.sqlcipher.database.SupportFactory(net.sqlcipher.database.SQLiteDatabase.getBytes(passphrase.toCharArray()))
-                
                 val instance = Room.databaseBuilder(
                     context.applicationContext,
                     AppDatabase::class.java,
-                    "anomess_database"
+                    DB_NAME
                 )
-                .openHelperFactory(supportFactory)
-                .fallbackToDestructiveMigration()
+                .openHelperFactory(KeyedOpenHelperFactory(context.applicationContext, passphrase))
+                .setJournalMode(RoomDatabase.JournalMode.WRITE_AHEAD_LOGGING)
+                .setQueryExecutor(DatabaseTuning.readerExecutor)
+                .setTransactionExecutor(DatabaseTuning.writerExecutor)
+                .addMigrations(MIGRATION_7_8, MIGRATION_8_9, MIGRATION_9_10, MIGRATION_10_11)
+                .addCallback(triggerCallback)
+                // Schemas before 7 predate any release that kept history worth migrating
+                .fallbackToDestructiveMigrationFrom(1, 2, 3, 4, 5, 6)
                 .build()
                 INSTANCE = instance
                 instance
@@ -0,0 +1,95 @@
+package com.example.anomess.data
+
+import androidx.paging.PagingSource
+import androidx.paging.PagingState
+import androidx.room.InvalidationTracker
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Pages one conversation newest first, keyed on `(timestamp, id)` instead of an OFFSET:
+ * every page is an index range scan from its cursor, however far back it is.
+ *
+ * Placeholders come from two COUNT queries on the first refresh only ([countPlaceholders]), so a
+ * jump deep into the history lands at its real index. Those counts are range scans over the whole
+ * conversation, and any write to `messages` (in any chat) invalidates the source, so the reloads
+ * that follow skip them: each costs a couple of index seeks, and the keyed list keeps its position.
+ */
+class ConversationPagingSource(
+    private val messageDao: MessageDao,
+    private val invalidationTracker: InvalidationTracker,
+    private val peerAddress: String,
+    private val countPlaceholders: Boolean = true
+) : PagingSource<ConversationPagingSource.Cursor, Message>() {
+
+    /** Boundary message of a page and which way to read from it (exclusive). */
+    data class Cursor(val timestamp: Long, val id: Int, val newer: Boolean)
+
+    companion object {
+        // "Older than" one id past the message includes it, so the page starts at it
+        fun startingAt(timestamp: Long, id: Int) = Cursor(timestamp, id + 1, newer = false)
+    }
+
+    private val observer = object : InvalidationTracker.Observer("messages") {
+        override fun onInvalidated(tables: Set<String>) {
+            invalidate()
+        }
+    }
+
+    private val observing = AtomicBoolean(false)
+
+    override suspend fun load(params: LoadParams<Cursor>): LoadResult<Cursor, Message> {
+        // Registering syncs Room's triggers, so do it off the main thread, before the first query
+        if (observing.compareAndSet(false, true)) {
+            withContext(Dispatchers.IO) { invalidationTracker.addObserver(observer) }
+            registerInvalidatedCallback { invalidationTracker.removeObserver(observer) }
+        }
+        return try {
+            val key = params.key
+            val rows = if (key?.newer == true) {
+                // Read ascending from the cursor, present newest first like every other page
+                messageDao.getMessagesAfter(peerAddress, key.timestamp, key.id, params.loadSize).asReversed()
+            } else {
+                messageDao.getMessagesBefore(
+                    peerAddress,
+                    key?.timestamp ?: Long.MAX_VALUE,
+                    key?.id ?: Int.MAX_VALUE,
+                    params.loadSize
+                )
+            }
+            if (invalid) return LoadResult.Invalid()
+
+            val newest = rows.firstOrNull()
+            val oldest = rows.lastOrNull()
+            val full = rows.size >= params.loadSize
+            val prevKey = newest?.let { Cursor(it.timestamp, it.id, newer = true) }
+                ?.takeIf { key?.newer != true || full }
+            val nextKey = oldest?.let { Cursor(it.timestamp, it.id, newer = false) }
+                ?.takeIf { key?.newer == true || full }
+
+            if (params is LoadParams.Refresh && countPlaceholders && newest != null && oldest != null) {
+                val itemsBefore = messageDao.countMessagesAfter(peerAddress, newest.timestamp, newest.id)
+                val itemsAfter = messageDao.countMessagesBefore(peerAddress, oldest.timestamp, oldest.id)
+                LoadResult.Page(
+                    data = rows,
+                    prevKey = prevKey.takeIf { itemsBefore > 0 },
+                    nextKey = nextKey.takeIf { itemsAfter > 0 },
+                    itemsBefore = itemsBefore,
+                    itemsAfter = itemsAfter
+                )
+            } else {
+                LoadResult.Page(data = rows, prevKey = prevKey, nextKey = nextKey)
+            }
+        } catch (e: Exception) {
+            LoadResult.Error(e)
+        }
+    }
+
+    // Reload starting at the message at the anchor
+    override fun getRefreshKey(state: PagingState<Cursor, Message>): Cursor? {
+        val anchor = state.anchorPosition ?: return null
+        val message = state.closestItemToPosition(anchor) ?: return null
+        return startingAt(message.timestamp, message.id)
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.anomess.data
+
+import androidx.compose.runtime.Immutable
+import androidx.room.Entity
+import androidx.room.Index
+import androidx.room.PrimaryKey
+
+/**
+ * One row per conversation: its newest message and unread count, so the contact list
+ * is a single small query instead of a last-message and an unread-count query per contact.
+ *
+ * Maintained by SQLite triggers on `messages` ([TRIGGERS]), so every write path
+ * (DAO, migrations, raw SQL) keeps it in step within the same transaction.
+ */
+@Immutable
+@Entity(
+    tableName = "conversation_summary",
+    indices = [Index(value = ["lastTimestamp"])]
+)
+data class ConversationSummary(
+    @PrimaryKey val peerAddress: String,
+    val lastMessageId: Int,
+    val lastContent: String, // Preview, truncated to PREVIEW_LENGTH
+    val lastType: Int,
+    val lastTimestamp: Long,
+    val lastIsMine: Boolean,
+    val lastStatus: Int,
+    val unreadCount: Int
+) {
+    companion object {
+        const val PREVIEW_LENGTH = 100
+
+        private const val COLUMNS =
+            "peerAddress, lastMessageId, lastContent, lastType, lastTimestamp, lastIsMine, lastStatus, unreadCount"
+
+        private fun unreadCountOf(peer: String) =
+            "(SELECT COUNT(*) FROM messages WHERE peerAddress = $peer AND isRead = 0 AND isMine = 0)"
+
+        val TRIGGERS = listOf(
+            """
+            CREATE TRIGGER IF NOT EXISTS conversation_summary_insert AFTER INSERT ON messages BEGIN
+                INSERT OR IGNORE INTO conversation_summary ($COLUMNS)
+                    VALUES (NEW.peerAddress, NEW.id, substr(NEW.content, 1, $PREVIEW_LENGTH), NEW.type, NEW.timestamp, NEW.isMine, NEW.status, 0);
+                UPDATE conversation_summary
+                    SET lastMessageId = NEW.id, lastContent = substr(NEW.content, 1, $PREVIEW_LENGTH), lastType = NEW.type,
+                        lastTimestamp = NEW.timestamp, lastIsMine = NEW.isMine, lastStatus = NEW.status
+                    WHERE peerAddress = NEW.peerAddress
+                    AND (NEW.timestamp > lastTimestamp OR (NEW.timestamp = lastTimestamp AND NEW.id > lastMessageId));
+                UPDATE conversation_summary SET unreadCount = unreadCount + 1
+                    WHERE peerAddress = NEW.peerAddress AND NEW.isMine = 0 AND NEW.isRead = 0;
+            END
+            """,
+            """
+            CREATE TRIGGER IF NOT EXISTS conversation_summary_read AFTER UPDATE OF isRead ON messages
+            WHEN OLD.isRead != NEW.isRead AND NEW.isMine = 0 BEGIN
+                UPDATE conversation_summary SET unreadCount = unreadCount + (CASE WHEN NEW.isRead THEN -1 ELSE 1 END)
+                    WHERE peerAddress = NEW.peerAddress;
+            END
+            """,
+            """
+            CREATE TRIGGER IF NOT EXISTS conversation_summary_status AFTER UPDATE OF status ON messages
+            WHEN OLD.status != NEW.status BEGIN
+                UPDATE conversation_summary SET lastStatus = NEW.status
+                    WHERE peerAddress = NEW.peerAddress AND lastMessageId = NEW.id;
+            END
+            """,
+            // Deleting the newest message drops the row and rebuilds it from what's left (none: stays gone)
+            """
+            CREATE TRIGGER IF NOT EXISTS conversation_summary_delete AFTER DELETE ON messages BEGIN
+                UPDATE conversation_summary SET unreadCount = unreadCount - 1
+                    WHERE peerAddress = OLD.peerAddress AND OLD.isMine = 0 AND OLD.isRead = 0;
+                DELETE FROM conversation_summary WHERE peerAddress = OLD.peerAddress AND lastMessageId = OLD.id;
+                INSERT INTO conversation_summary ($COLUMNS)
+                    SELECT peerAddress, id, substr(content, 1, $PREVIEW_LENGTH), type, timestamp, isMine, status, ${unreadCountOf("OLD.peerAddress")}
+                    FROM messages
+                    WHERE peerAddress = OLD.peerAddress
+                    AND NOT EXISTS (SELECT 1 FROM conversation_summary WHERE peerAddress = OLD.peerAddress)
+                    ORDER BY timestamp DESC, id DESC LIMIT 1;
+            END
+            """
+        )
+
+        // Rebuilds every row from messages; used when the table is introduced
+        val BACKFILL = """
+            INSERT OR REPLACE INTO conversation_summary ($COLUMNS)
+            SELECT p.peerAddress, m.id, substr(m.content, 1, $PREVIEW_LENGTH), m.type, m.timestamp, m.isMine, m.status, ${unreadCountOf("p.peerAddress")}
+            FROM (SELECT DISTINCT peerAddress FROM messages) p
+            JOIN messages m ON m.id = (
+                SELECT id FROM messages WHERE peerAddress = p.peerAddress ORDER BY timestamp DESC, id DESC LIMIT 1
+            )
+        """
+    }
+}
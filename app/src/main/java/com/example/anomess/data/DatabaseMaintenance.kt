@@ -0,0 +1,74 @@
+package com.example.anomess.data
+
+import androidx.sqlite.db.SimpleSQLiteQuery
+import com.example.anomess.network.TorManager
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+
+/**
+ * Periodic housekeeping for the WAL database, run on the writer thread so it never races a commit.
+ *
+ * SQLite only checkpoints passively while readers allow it, so under steady traffic the WAL keeps
+ * growing; a TRUNCATE checkpoint folds it back and resets the file. ANALYZE refreshes the planner's
+ * statistics as conversations grow, bounded by `analysis_limit` so it stays cheap on large tables.
+ */
+class DatabaseMaintenance(private val database: AppDatabase) {
+
+    private val scope = CoroutineScope(SupervisorJob() + DatabaseTuning.writerExecutor.asCoroutineDispatcher())
+    private var job: Job? = null
+
+    companion object {
+        private const val INITIAL_DELAY_MS = 2 * 60 * 1000L // Stay out of the way of startup
+        private const val CHECKPOINT_INTERVAL_MS = 15 * 60 * 1000L
+        private const val ANALYZE_EVERY = 24 * 4 // Checkpoints, i.e. daily
+        private const val ANALYSIS_LIMIT = 1000 // Rows sampled per index
+    }
+
+    fun start() {
+        if (job?.isActive == true) return
+        job = scope.launch {
+            delay(INITIAL_DELAY_MS)
+            var round = 0
+            while (isActive) {
+                checkpoint()
+                if (round % ANALYZE_EVERY == 0) analyze()
+                round++
+                delay(CHECKPOINT_INTERVAL_MS)
+            }
+        }
+    }
+
+    fun stop() {
+        job?.cancel()
+    }
+
+    private fun checkpoint() {
+        try {
+            // Returns (busy, wal pages, checkpointed pages)
+            database.openHelper.writableDatabase.query(SimpleSQLiteQuery("PRAGMA wal_checkpoint(TRUNCATE)")).use { cursor ->
+                if (cursor.moveToFirst() && cursor.getInt(0) != 0) {
+                    TorManager.log("WAL checkpoint incomplete: ${cursor.getInt(2)}/${cursor.getInt(1)} pages")
+                }
+            }
+        } catch (e: Exception) {
+            TorManager.error("WAL checkpoint failed", e)
+        }
+    }
+
+    private fun analyze() {
+        try {
+            val db = database.openHelper.writableDatabase
+            db.query(SimpleSQLiteQuery("PRAGMA analysis_limit = $ANALYSIS_LIMIT")).use { it.moveToFirst() }
+            val start = System.currentTimeMillis()
+            db.execSQL("ANALYZE")
+            TorManager.log("Database ANALYZE took ${System.currentTimeMillis() - start}ms")
+        } catch (e: Exception) {
+            TorManager.error("ANALYZE failed", e)
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.anomess.data
+
+import android.content.Context
+import android.util.Base64
+import com.example.anomess.network.TorManager
+import net.sqlcipher.database.SQLiteDatabase
+import net.sqlcipher.database.SQLiteDatabaseHook
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * How the encrypted database is opened: key format, connection pragmas and Room's executors.
+ *
+ * The database secret is already 32 random bytes, so it is handed to SQLCipher as a raw key
+ * (`x'…'`) and the PBKDF2 derivation a passphrase needs on every open is skipped. Databases
+ * created with the Base64 passphrase are rekeyed once ([useRawKey]).
+ */
+object DatabaseTuning {
+
+    private const val PREFS = "db_prefs"
+    private const val PREF_RAW_KEY = "raw_key"
+    private const val READER_THREADS = 4
+
+    // Negative = KiB: 8 MiB of page cache instead of SQLite's 2 MiB default
+    private const val CACHE_SIZE_KIB = 8 * 1024
+
+    /**
+     * SQLCipher's page size (4096) is fixed when a file is created and already matches the flash
+     * page, so it's left alone. Memory wiping of freed buffers costs more than it buys here: the key
+     * sits in process memory regardless. WAL with synchronous=NORMAL can only lose the last commits
+     * on power loss, never corrupt the file.
+     */
+    val hook = object : SQLiteDatabaseHook {
+        override fun preKey(database: SQLiteDatabase) {
+            database.rawExecSQL("PRAGMA cipher_memory_security = OFF")
+        }
+
+        override fun postKey(database: SQLiteDatabase) {
+            database.rawExecSQL("PRAGMA cache_size = -$CACHE_SIZE_KIB")
+            database.rawExecSQL("PRAGMA journal_mode = WAL")
+            database.rawExecSQL("PRAGMA synchronous = NORMAL")
+            database.rawExecSQL("PRAGMA temp_store = MEMORY")
+        }
+    }
+
+    // Transactions (all writes) are serialized on one thread; reads get their own pool so they
+    // never queue behind an ingest commit for an executor thread
+    val writerExecutor: ExecutorService = Executors.newSingleThreadExecutor { Thread(it, "db-writer") }
+    val readerExecutor: ExecutorService = Executors.newFixedThreadPool(READER_THREADS) { Thread(it, "db-reader") }
+
+    /** SQLCipher raw key literal for a Base64 32-byte secret; null if [passphrase] isn't one. */
+    fun rawKeyOf(passphrase: String): String? {
+        val bytes = try {
+            Base64.decode(passphrase, Base64.NO_WRAP)
+        } catch (e: IllegalArgumentException) {
+            return null
+        }
+        if (bytes.size != 32) return null
+        return "x'" + bytes.joinToString("") { "%02X".format(it) } + "'"
+    }
+
+    /**
+     * Makes sure database [name] is keyed with [rawKey], rekeying a passphrase-keyed file once.
+     * Returns false (keep using [passphrase]) if the rekey failed.
+     */
+    fun useRawKey(context: Context, name: String, passphrase: String, rawKey: String): Boolean {
+        val prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+        if (prefs.getBoolean(PREF_RAW_KEY, false)) return true
+
+        val file = context.getDatabasePath(name)
+        if (file.exists()) {
+            SQLiteDatabase.loadLibs(context)
+            if (!rekey(file.path, passphrase, rawKey) && !opens(file.path, rawKey)) {
+                // Neither rekeyed now nor by an earlier run that died before saving the flag
+                return false
+            }
+        }
+        prefs.edit().putBoolean(PREF_RAW_KEY, true).commit()
+        return true
+    }
+
+    // One-off: rewrites every page, so it takes a moment on a large history
+    private fun rekey(path: String, passphrase: String, rawKey: String): Boolean {
+        return try {
+            val db = SQLiteDatabase.openDatabase(path, SQLiteDatabase.getBytes(passphrase.toCharArray()), null, SQLiteDatabase.OPEN_READWRITE, null)
+            try {
+                // Rekeying rewrites the main file; fold any WAL back in first
+                db.rawExecSQL("PRAGMA journal_mode = DELETE")
+                db.rawExecSQL("PRAGMA rekey = \"$rawKey\"")
+            } finally {
+                db.close()
+            }
+            TorManager.log("Database rekeyed to a raw key")
+            true
+        } catch (e: Exception) {
+            TorManager.error("Database rekey failed", e)
+            false
+        }
+    }
+
+    private fun opens(path: String, key: String): Boolean {
+        return try {
+            val db = SQLiteDatabase.openDatabase(path, SQLiteDatabase.getBytes(key.toCharArray()), null, SQLiteDatabase.OPEN_READONLY, null)
+            try {
+                db.rawQuery("SELECT count(*) FROM sqlite_master", emptyArray<String>()).use { it.moveToFirst() }
+            } finally {
+                db.close()
+            }
+        } catch (e: Exception) {
+            false
+        }
+    }
+}
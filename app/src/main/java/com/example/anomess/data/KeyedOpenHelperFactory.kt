@@ -0,0 +1,55 @@
+package com.example.anomess.data
+
+import android.content.Context
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteOpenHelper
+import net.sqlcipher.database.SQLiteDatabase
+import net.sqlcipher.database.SupportFactory
+
+/**
+ * SQLCipher open helper factory that settles the key on first open instead of at build time.
+ *
+ * Room builds the database in Application.onCreate but only opens it from its executors, so the
+ * one-off rekey to a raw key ([DatabaseTuning.useRawKey]), which rewrites every page of the file,
+ * runs there and never on the main thread.
+ */
+class KeyedOpenHelperFactory(
+    private val context: Context,
+    private val passphrase: String
+) : SupportSQLiteOpenHelper.Factory {
+
+    override fun create(configuration: SupportSQLiteOpenHelper.Configuration): SupportSQLiteOpenHelper =
+        Helper(configuration)
+
+    private inner class Helper(private val configuration: SupportSQLiteOpenHelper.Configuration) : SupportSQLiteOpenHelper {
+        // Room sets this while building, before anything is opened
+        @Volatile private var writeAheadLogging: Boolean? = null
+
+        private val delegate: Lazy<SupportSQLiteOpenHelper> = lazy {
+            val name = configuration.name
+            // Raw key when the secret is one (no PBKDF2 per open); the passphrase only as a fallback
+            val rawKey = if (name == null) null else DatabaseTuning.rawKeyOf(passphrase)
+                ?.takeIf { DatabaseTuning.useRawKey(context, name, passphrase, it) }
+            val key = rawKey ?: passphrase
+            SupportFactory(SQLiteDatabase.getBytes(key.toCharArray()), DatabaseTuning.hook)
+                .create(configuration)
+                .also { helper -> writeAheadLogging?.let { helper.setWriteAheadLoggingEnabled(it) } }
+        }
+
+        override val databaseName: String? get() = configuration.name
+
+        override fun setWriteAheadLoggingEnabled(enabled: Boolean) {
+            writeAheadLogging = enabled
+            if (delegate.isInitialized()) delegate.value.setWriteAheadLoggingEnabled(enabled)
+        }
+
+        override val writableDatabase: SupportSQLiteDatabase get() = delegate.value.writableDatabase
+
+        override val readableDatabase: SupportSQLiteDatabase get() = delegate.value.readableDatabase
+
+        override fun close() {
+            // Nothing to close if it was never opened
+            if (delegate.isInitialized()) delegate.value.close()
+        }
+    }
+}
@@ -2,10 +2,19 @@ package com.example.anomess.data
 
 import androidx.compose.runtime.Immutable
 import androidx.room.Entity
+import androidx.room.Index
 import androidx.room.PrimaryKey
 
 @Immutable
-@Entity(tableName = "messages")
+@Entity(
+    tableName = "messages",
+    indices = [
+        Index(value = ["peerAddress", "timestamp"]), // conversation pages, last message, clear
+        Index(value = ["peerAddress", "isRead"]),    // unread counts, mark as read
+        Index(value = ["status"]),                   // outbox
+        Index(value = ["senderOnionAddress", "senderTimestamp"]) // receipts: findMessageId
+    ]
+)
 data class Message(
     @PrimaryKey(autoGenerate = true) val id: Int = 0,
     val senderOnionAddress: String, // The .onion address of the sender
@@ -19,7 +28,9 @@ data class Message(
     val senderTimestamp: Long? = null, // The timestamp from the sender's clock (for receipts)
     val status: Int = STATUS_SENDING, // 0=Sending, 1=Sent, 2=Failed
     val replyToMessageId: Int? = null, // ID of message being replied to
-    val replyToContent: String? = null // Preview of replied message (denormalized for perf)
+    val replyToContent: String? = null, // Preview of replied message (denormalized for perf)
+    // The other side of the conversation (denormalized so conversation queries hit one indexed column)
+    val peerAddress: String = if (isMine) receiverOnionAddress else senderOnionAddress
 ) {
     companion object {
         const val TYPE_TEXT = 0
@@ -2,33 +2,113 @@ package com.example.anomess.data
 
 import androidx.room.Dao
 import androidx.room.Insert
+import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import androidx.room.Transaction
 import kotlinx.coroutines.flow.Flow
 
 @Dao
 interface MessageDao {
-    @Query("SELECT * FROM messages WHERE senderOnionAddress = :address OR receiverOnionAddress = :address ORDER BY timestamp ASC")
-    fun getMessagesForConversation(address: String): Flow<List<Message>>
+    // Keyset pages on (timestamp, id), so a page costs the same at any depth of the history.
+    // Older-than pages come newest first, newer-than pages oldest first.
+    @Query("""
+        SELECT * FROM messages
+        WHERE peerAddress = :address
+        AND (timestamp < :timestamp OR (timestamp = :timestamp AND id < :id))
+        ORDER BY timestamp DESC, id DESC LIMIT :limit
+    """)
+    suspend fun getMessagesBefore(address: String, timestamp: Long, id: Int, limit: Int): List<Message>
 
-    @Query("SELECT * FROM messages WHERE senderOnionAddress = :address OR receiverOnionAddress = :address ORDER BY timestamp DESC LIMIT 1")
-    fun getLastMessage(address: String): Flow<Message?>
+    @Query("""
+        SELECT * FROM messages
+        WHERE peerAddress = :address
+        AND (timestamp > :timestamp OR (timestamp = :timestamp AND id > :id))
+        ORDER BY timestamp ASC, id ASC LIMIT :limit
+    """)
+    suspend fun getMessagesAfter(address: String, timestamp: Long, id: Int, limit: Int): List<Message>
+
+    // Placeholder counts around a loaded page; O(conversation), so only on a pager's first load
+    @Query("""
+        SELECT COUNT(*) FROM messages
+        WHERE peerAddress = :address
+        AND (timestamp < :timestamp OR (timestamp = :timestamp AND id < :id))
+    """)
+    suspend fun countMessagesBefore(address: String, timestamp: Long, id: Int): Int
+
+    @Query("""
+        SELECT COUNT(*) FROM messages
+        WHERE peerAddress = :address
+        AND (timestamp > :timestamp OR (timestamp = :timestamp AND id > :id))
+    """)
+    suspend fun countMessagesAfter(address: String, timestamp: Long, id: Int): Int
 
     @Insert
     suspend fun insertMessage(message: Message): Long
+
+    @Insert
+    suspend fun insertMessages(messages: List<Message>)
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    suspend fun insertContactIfAbsent(contact: Contact)
+
+    @Query("UPDATE contacts SET publicKey = :publicKey WHERE onionAddress = :address AND publicKey IS NULL")
+    suspend fun pinContactKeyIfUnset(address: String, publicKey: String)
+
+    @Query("SELECT onionAddress, publicKey FROM contacts WHERE onionAddress IN (:addresses) AND publicKey IS NOT NULL")
+    suspend fun getPinnedKeys(addresses: List<String>): List<PinnedKey>
+
+    // Incoming batch: contacts first (trust on first use, never replacing a pinned key), then the
+    // messages, in one transaction so a burst costs one commit and one invalidation.
+    // Messages are paired with the key that verified them; a message whose key isn't the one now
+    // pinned for its sender lost the TOFU race (or is an impostor) and is dropped. Returns those.
+    @Transaction
+    suspend fun insertIncoming(messages: List<Pair<Message, String?>>, contacts: List<Contact>): List<Message> {
+        for (contact in contacts) {
+            insertContactIfAbsent(contact)
+            contact.publicKey?.let { pinContactKeyIfUnset(contact.onionAddress, it) }
+        }
+        val pinned = getPinnedKeys(messages.map { it.first.senderOnionAddress }.distinct())
+            .associate { it.onionAddress to it.publicKey }
+        val (kept, dropped) = messages.partition { (message, key) ->
+            key == null || pinned[message.senderOnionAddress].let { it == null || it == key }
+        }
+        insertMessages(kept.map { it.first })
+        return dropped.map { it.first }
+    }
     
     @Query("SELECT * FROM messages ORDER BY timestamp DESC")
     fun getAllMessages(): Flow<List<Message>>
 
-    @Query("UPDATE messages SET isRead = 1 WHERE senderOnionAddress = :contactAddress AND isRead = 0")
+    @Query("UPDATE messages SET isRead = 1 WHERE peerAddress = :contactAddress AND isRead = 0 AND isMine = 0")
     suspend fun markMessagesAsRead(contactAddress: String)
 
-    @Query("SELECT COUNT(*) FROM messages WHERE senderOnionAddress = :contactAddress AND isRead = 0")
-    fun getUnreadCount(contactAddress: String): Flow<Int>
+    // Full-text search over text messages, newest hits first; keyset on rowid like the conversation pages.
+    // :query must be a MATCH expression (MessageSearchPagingSource.matchExpression).
+    @Query("""
+        SELECT m.id, m.peerAddress, m.timestamp, m.isMine,
+            snippet(messages_fts, char(2), char(3), '…', -1, 10) AS snippet
+        FROM messages_fts JOIN messages m ON m.id = messages_fts.rowid
+        WHERE messages_fts MATCH :query
+        AND m.type = 0
+        AND (:peer IS NULL OR m.peerAddress = :peer)
+        AND messages_fts.rowid < :beforeId
+        ORDER BY messages_fts.rowid DESC LIMIT :limit
+    """)
+    suspend fun searchMessages(query: String, peer: String?, beforeId: Int, limit: Int): List<MessageSearchHit>
+
+    // Kept up to date by triggers; one query for the whole contact list
+    @Query("SELECT * FROM conversation_summary ORDER BY lastTimestamp DESC")
+    fun getConversationSummaries(): Flow<List<ConversationSummary>>
+
+    // Scoped to the conversation with the peer that sent the receipt
+    @Query("UPDATE messages SET isRead = 1 WHERE peerAddress = :peerAddress AND isRead = 0 AND isMine = 1 AND timestamp <= :timestamp")
+    suspend fun markMessagesAsReadByPeer(peerAddress: String, timestamp: Long)
 
-    @Query("UPDATE messages SET isRead = 1 WHERE timestamp <= :timestamp AND isMine = 1 AND isRead = 0")
-    suspend fun markMessageAsReadByPeer(timestamp: Long)
+    // High-water mark for read receipts: newest incoming message, on the sender's clock
+    @Query("SELECT MAX(COALESCE(senderTimestamp, timestamp)) FROM messages WHERE senderOnionAddress = :address AND isMine = 0")
+    suspend fun getLatestIncomingTimestamp(address: String): Long?
 
-    @Query("DELETE FROM messages WHERE senderOnionAddress = :address OR receiverOnionAddress = :address")
+    @Query("DELETE FROM messages WHERE peerAddress = :address")
     suspend fun clearConversation(address: String)
 
     @Query("DELETE FROM messages WHERE id IN (:ids)")
@@ -37,8 +117,15 @@ interface MessageDao {
     @Query("UPDATE messages SET status = :status WHERE id = :id")
     suspend fun updateMessageStatus(id: Int, status: Int)
 
-    @Query("SELECT * FROM messages WHERE status = 2 ORDER BY timestamp ASC") // Only retry FAILED messages (status=2)
-    suspend fun getPendingMessages(): List<Message>
+    // Outbox: my messages that still need delivery (SENDING or FAILED), oldest first
+    @Query("SELECT * FROM messages WHERE isMine = 1 AND status IN (0, 2) AND peerAddress = :address ORDER BY timestamp ASC, id ASC")
+    suspend fun getOutboxMessages(address: String): List<Message>
+
+    @Query("SELECT DISTINCT peerAddress FROM messages WHERE status IN (0, 2) AND isMine = 1")
+    suspend fun getOutboxPeers(): List<String>
+
+    @Query("SELECT * FROM messages WHERE id = :id")
+    suspend fun getMessageById(id: Int): Message?
 
     @Query("""
         SELECT id FROM messages 
@@ -0,0 +1,17 @@
+package com.example.anomess.data
+
+import androidx.room.Entity
+import androidx.room.Fts4
+import androidx.room.FtsOptions
+
+/**
+ * External-content FTS4 index over [Message.content]. Room creates the sync triggers on
+ * `messages`, so the index follows inserts, updates and deletes without extra code.
+ * Only the index lives here; rows are read back from `messages` by rowid.
+ * Prefix indexes for 2 and 3 characters keep search-as-you-type from walking every matching term.
+ */
+@Fts4(contentEntity = Message::class, tokenizer = FtsOptions.TOKENIZER_UNICODE61, prefix = [2, 3])
+@Entity(tableName = "messages_fts")
+data class MessageFts(
+    val content: String
+)
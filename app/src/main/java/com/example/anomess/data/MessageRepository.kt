@@ -7,20 +7,22 @@ import android.net.Uri
 import java.io.File
 import java.io.FileOutputStream
 import java.io.InputStream
+import java.io.OutputStream
+import java.security.MessageDigest
 import java.util.UUID
 
 class MessageRepository(
     private val context: Context,
     private val messageDao: MessageDao, 
-    private val contactDao: ContactDao
+    private val contactDao: ContactDao,
+    private val invalidationTracker: androidx.room.InvalidationTracker,
+    private val securityManager: com.example.anomess.security.SecurityManager? = null
 ) {
     private val mediaDir = File(context.filesDir, "media").apply { mkdirs() }
     private val mediaCrypter = com.example.anomess.security.MediaCrypter(context)
 
     fun saveIncomingMedia(fileName: String, data: ByteArray): String {
-        // SECURITY: Sanitize filename to prevent Path Traversal
-        val safeFileName = File(fileName).name.replace("[^a-zA-Z0-9._-]".toRegex(), "_")
-        val file = File(mediaDir, safeFileName)
+        val file = newMediaFile(fileName)
         
         // Use MediaCrypter for encryption
         mediaCrypter.getOutputStream(file).use { it.write(data) }
@@ -28,6 +30,57 @@ class MessageRepository(
         return file.absolutePath
     }
 
+    // SECURITY: Sanitize filename to prevent Path Traversal
+    private fun safeFileName(fileName: String): String =
+        File(fileName).name.replace("[^a-zA-Z0-9._-]".toRegex(), "_")
+
+    /**
+     * A fresh file in the media store that no peer can name: timestamp + UUID, keeping only a
+     * sanitized extension of [fileName]. Writing here never replaces an existing file.
+     */
+    fun newMediaFile(fileName: String): File {
+        val extension = File(fileName).extension.replace("[^a-zA-Z0-9]".toRegex(), "").take(8)
+        val name = "${System.currentTimeMillis()}_${UUID.randomUUID()}"
+        return File(mediaDir, if (extension.isEmpty()) name else "$name.$extension")
+    }
+
+    // Encrypted sink for streaming writes. EncryptedFile binds the file name,
+    // so callers must write to the final destination (no temp + rename).
+    fun openMediaOutput(file: File): OutputStream {
+        return mediaCrypter.getOutputStream(file)
+    }
+
+    /**
+     * Encrypts [input] into the media store in one chunked pass, hashing it on the way.
+     */
+    fun importMedia(input: InputStream, fileName: String): StoredMedia {
+        // Own directory per import: two picks with the same name never share a file, and the
+        // stored file keeps the display name the outbox sends as "filename"
+        val file = File(File(mediaDir, UUID.randomUUID().toString()).apply { mkdirs() }, safeFileName(fileName))
+        val digest = MessageDigest.getInstance("SHA-256")
+        
+        val length = mediaCrypter.getOutputStream(file).use { output ->
+            com.example.anomess.network.BinaryProtocol.copyChunked(input, output, digest)
+        }
+        return StoredMedia(file.absolutePath, length, digest.digest())
+    }
+
+    /**
+     * Re-derives length and digest of an already stored file (used for resends).
+     */
+    fun digestMedia(path: String): StoredMedia? {
+        val digest = MessageDigest.getInstance("SHA-256")
+        // OutputStream.nullOutputStream() needs API 33, so discard manually
+        val discard = object : OutputStream() {
+            override fun write(b: Int) {}
+            override fun write(b: ByteArray, off: Int, len: Int) {}
+        }
+        val length = getDecryptedInputStream(path)?.use { input ->
+            com.example.anomess.network.BinaryProtocol.copyChunked(input, discard, digest)
+        } ?: return null
+        return StoredMedia(path, length, digest.digest())
+    }
+
     fun saveOutgoingMedia(uri: Uri): String {
         val extension = context.contentResolver.getType(uri)?.split("/")?.lastOrNull() ?: "bin"
         val fileName = "${System.currentTimeMillis()}_${UUID.randomUUID()}.$extension"
@@ -68,12 +121,32 @@ class MessageRepository(
         }
     }
 
-    fun getMessages(peerAddress: String): Flow<List<Message>> {
-        return messageDao.getMessagesForConversation(peerAddress)
+    // Newest first; pages are loaded around what's on screen, so long histories open in constant time.
+    // [startAt] opens the conversation at an older message (e.g. a search hit) instead of the newest.
+    fun getMessages(peerAddress: String, startAt: ConversationPagingSource.Cursor? = null): Flow<androidx.paging.PagingData<Message>> {
+        // Only the first source counts placeholders; later ones come from invalidations
+        var generation = 0
+        return androidx.paging.Pager(
+            config = androidx.paging.PagingConfig(
+                pageSize = MESSAGE_PAGE_SIZE,
+                initialLoadSize = MESSAGE_PAGE_SIZE * 2,
+                enablePlaceholders = true
+            ),
+            initialKey = startAt,
+            pagingSourceFactory = {
+                ConversationPagingSource(messageDao, invalidationTracker, peerAddress, countPlaceholders = generation++ == 0)
+            }
+        ).flow
     }
 
-    fun getLastMessage(peerAddress: String): Flow<Message?> {
-        return messageDao.getLastMessage(peerAddress)
+    // All conversations, or only [peerAddress]'s
+    fun searchMessages(query: String, peerAddress: String? = null): Flow<androidx.paging.PagingData<MessageSearchHit>> {
+        val match = MessageSearchPagingSource.matchExpression(query)
+            ?: return kotlinx.coroutines.flow.flowOf(androidx.paging.PagingData.empty())
+        return androidx.paging.Pager(
+            config = androidx.paging.PagingConfig(pageSize = SEARCH_PAGE_SIZE, enablePlaceholders = false),
+            pagingSourceFactory = { MessageSearchPagingSource(messageDao, match, peerAddress) }
+        ).flow
     }
 
     suspend fun sendMessage(message: Message): Long {
@@ -105,12 +178,16 @@ class MessageRepository(
         messageDao.markMessagesAsRead(contactAddress)
     }
 
-    fun getUnreadCount(contactAddress: String): Flow<Int> {
-        return messageDao.getUnreadCount(contactAddress)
+    fun getConversationSummaries(): Flow<List<ConversationSummary>> {
+        return messageDao.getConversationSummaries()
+    }
+
+    suspend fun markMessagesAsReadByPeer(peerAddress: String, timestamp: Long) {
+        messageDao.markMessagesAsReadByPeer(peerAddress, timestamp)
     }
 
-    suspend fun markMessageAsReadByPeer(timestamp: Long) {
-        messageDao.markMessageAsReadByPeer(timestamp)
+    suspend fun getLatestIncomingTimestamp(address: String): Long? {
+        return messageDao.getLatestIncomingTimestamp(address)
     }
 
     suspend fun clearConversation(address: String) {
@@ -125,8 +202,16 @@ class MessageRepository(
         messageDao.updateMessageStatus(id, status)
     }
 
-    suspend fun getPendingMessages(): List<Message> {
-        return messageDao.getPendingMessages()
+    suspend fun getOutboxMessages(address: String): List<Message> {
+        return messageDao.getOutboxMessages(address)
+    }
+
+    suspend fun getOutboxPeers(): List<String> {
+        return messageDao.getOutboxPeers()
+    }
+
+    suspend fun getMessageById(id: Int): Message? {
+        return messageDao.getMessageById(id)
     }
 
     suspend fun getContact(address: String): Contact? {
@@ -134,26 +219,24 @@ class MessageRepository(
     }
 
     suspend fun updateContactKey(address: String, publicKey: String) {
+        val previousKey = contactDao.getContact(address)?.publicKey
         contactDao.updatePublicKey(address, publicKey)
-    }
-    
-    suspend fun sendMessage(message: Message, publicKey: String? = null): Long {
-        val id = messageDao.insertMessage(message)
         
-        // If it's an incoming message and we have a key, ensure contact exists/updated
-        if (!message.isMine && publicKey != null) {
-            val existing = contactDao.getContact(message.senderOnionAddress)
-            if (existing == null) {
-                // Auto-create contact? Or just leave it?
-                // Usually better to have a contact entry even if name is unknown
-                val newContact = Contact(message.senderOnionAddress, "Unknown_${message.senderOnionAddress.take(6)}", publicKey)
-                contactDao.insertContact(newContact)
-            } else if (existing.publicKey == null) {
-                // Trust first key seen
-                contactDao.updatePublicKey(message.senderOnionAddress, publicKey)
-            }
+        // Pinned key changed: the old key's cached verifier must not linger
+        if (previousKey != null && previousKey != publicKey) {
+            securityManager?.invalidateVerifier(android.util.Base64.decode(previousKey, android.util.Base64.NO_WRAP))
         }
-        return id
+    }
+    
+    // Batch from the ingest writer: messages paired with the sender key that verified them, if any.
+    // A sender with a key gets a contact entry even if its name is unknown; the first key seen is trusted,
+    // and messages signed by any other key are dropped (returned) rather than stored under that contact.
+    suspend fun saveIncomingMessages(messages: List<Pair<Message, String?>>): List<Message> {
+        val contacts = messages
+            .filter { (message, key) -> !message.isMine && key != null }
+            .distinctBy { (message, _) -> message.senderOnionAddress }
+            .map { (message, key) -> Contact(message.senderOnionAddress, "Unknown_${message.senderOnionAddress.take(6)}", key) }
+        return messageDao.insertIncoming(messages, contacts)
     }
 
     suspend fun findMessageId(senderAddress: String, timestamp: Long): Int? {
@@ -163,4 +246,9 @@ class MessageRepository(
     suspend fun updateContactName(address: String, newName: String) {
         contactDao.updateContactName(address, newName)
     }
+
+    companion object {
+        private const val MESSAGE_PAGE_SIZE = 50
+        private const val SEARCH_PAGE_SIZE = 30
+    }
 }
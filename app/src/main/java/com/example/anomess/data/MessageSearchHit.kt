@@ -0,0 +1,18 @@
+package com.example.anomess.data
+
+import androidx.compose.runtime.Immutable
+
+/** A search result: enough to list it and to open the conversation at it. */
+@Immutable
+data class MessageSearchHit(
+    val id: Int,
+    val peerAddress: String,
+    val timestamp: Long,
+    val isMine: Boolean,
+    val snippet: String // Matched terms wrapped in SNIPPET_START / SNIPPET_END
+) {
+    companion object {
+        const val SNIPPET_START = '\u0002'
+        const val SNIPPET_END = '\u0003'
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.anomess.data
+
+import androidx.paging.PagingSource
+import androidx.paging.PagingState
+
+/**
+ * Pages full-text hits newest first, keyed on the last message id seen. FTS4 walks its
+ * doclists in rowid order, so each page stops after `limit` hits instead of scoring them all.
+ */
+class MessageSearchPagingSource(
+    private val messageDao: MessageDao,
+    private val match: String,
+    private val peerAddress: String?
+) : PagingSource<Int, MessageSearchHit>() {
+
+    companion object {
+        // Separators of the unicode61 tokenizer: everything but letters, numbers and private use
+        private val TOKEN_SEPARATORS = Regex("[^\\p{L}\\p{N}\\p{Co}]+")
+
+        /**
+         * Turns what the user typed into an FTS MATCH expression: every token must appear,
+         * the last one as a prefix (search as you type). Input is split where the tokenizer splits
+         * indexed text ("don't" is "don" + "t"), so operators and quotes can never be a syntax
+         * error. Null when nothing searchable is left.
+         */
+        fun matchExpression(query: String): String? {
+            val tokens = query.split(TOKEN_SEPARATORS).filter { it.isNotEmpty() }
+            if (tokens.isEmpty()) return null
+            return tokens.mapIndexed { i, token -> if (i == tokens.lastIndex) "\"$token\"*" else "\"$token\"" }
+                .joinToString(" ")
+        }
+    }
+
+    override suspend fun load(params: LoadParams<Int>): LoadResult<Int, MessageSearchHit> {
+        return try {
+            val hits = messageDao.searchMessages(match, peerAddress, params.key ?: Int.MAX_VALUE, params.loadSize)
+            LoadResult.Page(
+                data = hits,
+                prevKey = null,
+                nextKey = hits.lastOrNull()?.id?.takeIf { hits.size >= params.loadSize }
+            )
+        } catch (e: Exception) {
+            LoadResult.Error(e)
+        }
+    }
+
+    // Results are a snapshot of the moment of the search; a refresh starts over
+    override fun getRefreshKey(state: PagingState<Int, MessageSearchHit>): Int? = null
+}
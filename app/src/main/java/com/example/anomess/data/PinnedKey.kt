@@ -0,0 +1,4 @@
+package com.example.anomess.data
+
+/** Projection of a contact's pinned key, for checking an incoming batch against it. */
+data class PinnedKey(val onionAddress: String, val publicKey: String)
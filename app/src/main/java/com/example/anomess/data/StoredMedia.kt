@@ -0,0 +1,11 @@
+package com.example.anomess.data
+
+/**
+ * A media file in the encrypted store together with the plaintext
+ * length and SHA-256 digest needed to sign it without re-reading it.
+ */
+class StoredMedia(
+    val path: String,
+    val length: Long,
+    val sha256: ByteArray
+)
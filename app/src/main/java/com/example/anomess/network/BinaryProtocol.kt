@@ -6,106 +6,306 @@ import java.io.DataInputStream
 import java.io.DataOutputStream
 import java.io.InputStream
 import java.io.OutputStream
+import java.security.MessageDigest
 
 object BinaryProtocol {
-    private const val VERSION: Int = 2
+    const val VERSION_2: Int = 2 // Gson JSON metadata
+    const val VERSION_3: Int = 3 // Binary metadata (MetadataCodec)
+    const val LATEST_VERSION: Int = VERSION_3
     private val gson = Gson()
+    private val metadataMapType = object : TypeToken<Map<String, String>>() {}.type
 
-    // Header Structure V2:
+    // Capability hint carried in V2 metadata so peers learn we can read V3
+    const val META_PROTOCOL = "proto"
+
+    // V3 key pinning: short id of the sender's raw Ed25519 key, and of the key
+    // the sender has pinned for the recipient (so the recipient knows it can stop sending its key)
+    const val META_KEY_ID = "keyId"
+    const val META_PEER_KEY_ID = "peerKeyId"
+
+    // DoS Mitigation: payloads read into memory are capped at 100MB to prevent OOM
+    const val MAX_BUFFERED_PAYLOAD: Long = 100L * 1024 * 1024
+    // Streamed payloads never touch the heap as a whole, so they can be larger
+    const val MAX_STREAMED_PAYLOAD: Long = 1024L * 1024 * 1024
+    // Bounded chunk size used when piping payloads between streams
+    const val STREAM_CHUNK_SIZE = 64 * 1024
+
+    // Metadata flag: when set to DIGEST_SHA256 the signature covers
+    // rawMetadata + SHA-256(payload) instead of rawMetadata + payload,
+    // so media can be verified without ever holding it in memory.
+    const val META_PAYLOAD_DIGEST = "payloadDigest"
+    const val DIGEST_SHA256 = "sha256"
+
+    // Control frame: unsigned, empty, only keeps a pooled stream alive
+    const val TYPE_KEEPALIVE = 100
+    // Resumable chunked transfer frames (see FileTransferManager)
+    const val TYPE_TRANSFER_START = 101
+    const val TYPE_TRANSFER_CHUNK = 102
+    const val TYPE_TRANSFER_ACK = 103
+    // Signed, empty payload; metadata carries the reader's high-water mark (see ReadReceiptAggregator)
+    const val TYPE_READ_RECEIPT = 104
+    const val META_READ_UP_TO = "readUpTo"
+    // Unsigned, empty; metadata carries how many message/receipt frames the reader has taken off the stream
+    const val TYPE_DELIVERY_ACK = 105
+    const val META_DELIVERED = "delivered"
+    private val EMPTY_METADATA = MetadataCodec.encode(emptyMap())
+
+    // Header Structure V2/V3 (V3 only changes the metadata encoding):
     // VERSION (1 byte)
     // TYPE (1 byte)
     // METADATA_LEN (4 bytes Int)
     // PAYLOAD_LEN (8 bytes Long)
     // SIG_LEN (4 bytes Int)
     // KEY_LEN (4 bytes Int)
-    // [Metadata]
+    // [Metadata]    V2: Gson JSON map, V3: MetadataCodec binary fields
     // [Payload]
     // [Signature]
     // [PublicKey]
 
+    /**
+     * Everything that precedes the payload section of a frame.
+     */
+    class Header(
+        val version: Int,
+        val type: Int,
+        val metadata: Map<String, String>,
+        val rawMetadata: ByteArray,
+        val payloadLength: Long,
+        val signatureLength: Int,
+        val keyLength: Int
+    ) {
+        // True if the sender signed a digest of the payload, which allows streaming verification
+        val isDigestSigned: Boolean
+            get() = metadata[META_PAYLOAD_DIGEST] == DIGEST_SHA256
+    }
+
+    /**
+     * Result of a streamed payload read. The payload itself went to the sink.
+     */
+    class StreamedBody(
+        val payloadDigest: ByteArray,
+        val signature: ByteArray?,
+        val senderPublicKey: ByteArray?
+    )
+
     fun write(output: OutputStream, payload: MessagePayload) {
         val dos = DataOutputStream(output)
-        
+
         // Use existing rawMetadata if available (for exact signature match), else serialize
-        val metadataBytes = payload.rawMetadata ?: gson.toJson(payload.metadata).toByteArray(Charsets.UTF_8)
-        
-        dos.writeByte(VERSION)
+        val metadataBytes = payload.rawMetadata ?: encodeMetadata(payload.metadata, payload.version)
+
+        dos.writeByte(payload.version)
         dos.writeByte(payload.type)
         dos.writeInt(metadataBytes.size)
         dos.writeLong(payload.data.size.toLong())
-        
+
         val sigBytes = payload.signature ?: ByteArray(0)
         val keyBytes = payload.senderPublicKey ?: ByteArray(0)
-        
+
         dos.writeInt(sigBytes.size)
         dos.writeInt(keyBytes.size)
-        
+
         dos.write(metadataBytes)
         dos.write(payload.data)
         dos.write(sigBytes)
         dos.write(keyBytes)
-        
+
         dos.flush()
     }
 
+    /**
+     * Writes a media frame, piping the payload from [source] in bounded chunks.
+     * Fails if the source does not produce exactly [MediaPayload.length] bytes.
+     */
+    fun writeStreaming(output: OutputStream, payload: MediaPayload, source: InputStream) {
+        val dos = DataOutputStream(output)
+
+        val sigBytes = payload.signature ?: ByteArray(0)
+        val keyBytes = payload.senderPublicKey ?: ByteArray(0)
+
+        dos.writeByte(payload.version)
+        dos.writeByte(payload.type)
+        dos.writeInt(payload.rawMetadata.size)
+        dos.writeLong(payload.length)
+        dos.writeInt(sigBytes.size)
+        dos.writeInt(keyBytes.size)
+
+        dos.write(payload.rawMetadata)
+        val copied = copyChunked(source, dos)
+        if (copied != payload.length) {
+            throw java.io.IOException("Media source changed: expected ${payload.length} bytes, got $copied")
+        }
+        dos.write(sigBytes)
+        dos.write(keyBytes)
+
+        dos.flush()
+    }
+
+    fun writeKeepalive(output: OutputStream) {
+        val dos = DataOutputStream(output)
+        // Only persistent (V3-capable) peers keep streams open long enough to see these
+        dos.writeByte(VERSION_3)
+        dos.writeByte(TYPE_KEEPALIVE)
+        dos.writeInt(EMPTY_METADATA.size)
+        dos.writeLong(0L)
+        dos.writeInt(0)
+        dos.writeInt(0)
+        dos.write(EMPTY_METADATA)
+        dos.flush()
+    }
+
+    /**
+     * Message and read receipt frames are acked by the reader, so a sender on a pooled stream
+     * knows they were taken off it rather than lost to an eviction or a peer that hung up.
+     */
+    fun expectsDeliveryAck(type: Int): Boolean = type < TYPE_KEEPALIVE || type == TYPE_READ_RECEIPT
+
+    /**
+     * Copies [input] to [output] with a single bounded buffer, optionally hashing as it goes.
+     * Returns the number of bytes copied.
+     */
+    fun copyChunked(input: InputStream, output: OutputStream, digest: MessageDigest? = null): Long {
+        val buffer = ByteArray(STREAM_CHUNK_SIZE)
+        var total = 0L
+        while (true) {
+            val read = input.read(buffer)
+            if (read < 0) break
+            digest?.update(buffer, 0, read)
+            output.write(buffer, 0, read)
+            total += read
+        }
+        return total
+    }
+
     fun read(input: InputStream): MessagePayload {
         val dis = DataInputStream(input)
-        
+        val header = readHeader(dis)
+        return readBody(dis, header)
+    }
+
+    fun readHeader(input: InputStream): Header {
+        val dis = input as? DataInputStream ?: DataInputStream(input)
+
         val version = dis.readByte().toInt()
-        
-        if (version != 1 && version != 2) {
+
+        if (version < 1 || version > LATEST_VERSION) {
              throw IllegalArgumentException("Unsupported protocol version: $version")
         }
-        
+
         val type = dis.readByte().toInt()
         val metadataLen = dis.readInt()
         val payloadLen = dis.readLong()
-        
+
         var sigLen = 0
         var keyLen = 0
-        
+
         if (version >= 2) {
             sigLen = dis.readInt()
             keyLen = dis.readInt()
         }
-        
+
         // Read Metadata
         // SECURITY FIX VULN-001: Limit metadata size to 64KB to prevent OOM DoS attacks
         if (metadataLen < 0 || metadataLen > 64 * 1024) {
              throw IllegalArgumentException("Metadata invalid size: $metadataLen bytes (Max 64KB)")
         }
+        if (sigLen < 0 || sigLen > 1024 || keyLen < 0 || keyLen > 64 * 1024) {
+            throw IllegalArgumentException("Signature/key invalid size: sig=$sigLen key=$keyLen")
+        }
 
         val metadataBytes = ByteArray(metadataLen)
         dis.readFully(metadataBytes)
-        val metadataJson = String(metadataBytes, Charsets.UTF_8)
-        
-        val mapType = object : TypeToken<Map<String, String>>() {}.type
-        val metadata: Map<String, String> = gson.fromJson(metadataJson, mapType)
-        
-        // Read Payload
-        // DoS Mitigation: Reduce max payload to 100MB to prevent OOM
+        val metadata = decodeMetadata(metadataBytes, version)
+
         // Also check for negative lengths which could cause issues
-        if (payloadLen < 0 || payloadLen > 100 * 1024 * 1024) { 
-            throw IllegalArgumentException("Payload invalid size: $payloadLen bytes (Max 100MB)")
+        if (payloadLen < 0 || payloadLen > MAX_STREAMED_PAYLOAD) {
+            throw IllegalArgumentException("Payload invalid size: $payloadLen bytes (Max ${MAX_STREAMED_PAYLOAD / (1024 * 1024)}MB)")
         }
-        
-        val data = ByteArray(payloadLen.toInt())
+
+        return Header(version, type, metadata, metadataBytes, payloadLen, sigLen, keyLen)
+    }
+
+    /**
+     * Reads the payload into memory. Only used for small frames and legacy senders.
+     */
+    fun readBody(input: InputStream, header: Header): MessagePayload {
+        val dis = input as? DataInputStream ?: DataInputStream(input)
+
+        if (header.payloadLength > MAX_BUFFERED_PAYLOAD) {
+            throw IllegalArgumentException("Payload invalid size: ${header.payloadLength} bytes (Max 100MB)")
+        }
+
+        val data = ByteArray(header.payloadLength.toInt())
         dis.readFully(data)
-        
+
+        val (signature, publicKey) = readTrailer(dis, header)
+
+        return MessagePayload(header.type, header.metadata, data, signature, publicKey, header.rawMetadata, header.version)
+    }
+
+    /**
+     * Pipes the payload into [sink] in bounded chunks while hashing it,
+     * so heap use stays flat regardless of the payload size.
+     * The sink is not closed.
+     */
+    fun readStreamingBody(input: InputStream, header: Header, sink: OutputStream): StreamedBody {
+        val dis = input as? DataInputStream ?: DataInputStream(input)
+        val digest = MessageDigest.getInstance("SHA-256")
+        val buffer = ByteArray(STREAM_CHUNK_SIZE)
+
+        var remaining = header.payloadLength
+        while (remaining > 0) {
+            val toRead = minOf(remaining, buffer.size.toLong()).toInt()
+            dis.readFully(buffer, 0, toRead)
+            digest.update(buffer, 0, toRead)
+            sink.write(buffer, 0, toRead)
+            remaining -= toRead
+        }
+
+        val (signature, publicKey) = readTrailer(dis, header)
+
+        return StreamedBody(digest.digest(), signature, publicKey)
+    }
+
+    private fun readTrailer(dis: DataInputStream, header: Header): Pair<ByteArray?, ByteArray?> {
         var signature: ByteArray? = null
         var publicKey: ByteArray? = null
-        
-        if (version >= 2) {
-            if (sigLen > 0) {
-                signature = ByteArray(sigLen)
+
+        if (header.version >= 2) {
+            if (header.signatureLength > 0) {
+                signature = ByteArray(header.signatureLength)
                 dis.readFully(signature)
             }
-            if (keyLen > 0) {
-                publicKey = ByteArray(keyLen)
+            if (header.keyLength > 0) {
+                publicKey = ByteArray(header.keyLength)
                 dis.readFully(publicKey)
             }
         }
-        
-        return MessagePayload(type, metadata, data, signature, publicKey, metadataBytes)
+        return Pair(signature, publicKey)
+    }
+
+    /**
+     * Serializes metadata for the given wire version. The result is what gets signed.
+     */
+    fun encodeMetadata(metadata: Map<String, String>, version: Int): ByteArray {
+        return if (version >= VERSION_3) {
+            MetadataCodec.encode(metadata)
+        } else {
+            gson.toJson(metadata).toByteArray(Charsets.UTF_8)
+        }
+    }
+
+    private fun decodeMetadata(bytes: ByteArray, version: Int): Map<String, String> {
+        if (version >= VERSION_3) return MetadataCodec.decode(bytes)
+
+        // Legacy V1/V2 peers
+        return gson.fromJson<Map<String, String>>(String(bytes, Charsets.UTF_8), metadataMapType) ?: emptyMap()
+    }
+
+    /**
+     * Bytes covered by the signature of a digest-signed frame.
+     */
+    fun digestSignedBytes(rawMetadata: ByteArray, payloadDigest: ByteArray): ByteArray {
+        return rawMetadata + payloadDigest
     }
 }
@@ -0,0 +1,130 @@
+package com.example.anomess.network
+
+import android.content.ComponentName
+import android.content.Context
+import android.content.Intent
+import android.content.ServiceConnection
+import android.os.IBinder
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
+import org.torproject.jni.TorService
+import java.io.File
+
+/**
+ * Runs Tor inside the app process through tor-android's [TorService].
+ *
+ * TorService starts Tor on its own thread with our torrc, a unix ControlSocket and its own
+ * DataDirectory (app_TorService, which survives cache clears). Tor can only run once per
+ * process, so [stop] parks the daemon with `DisableNetwork 1` instead of halting it and the
+ * next [launch] simply re-enables the network — that is also what a "restart" costs here.
+ * Switching to another runtime [release]s it for the rest of the process.
+ */
+class EmbeddedTorRuntime(
+    private val context: Context,
+    private val sockets: TorSockets
+) : TorRuntime {
+
+    override val mode = TorRuntime.Mode.EMBEDDED
+
+    @Volatile private var service: TorService? = null
+    @Volatile private var parked = false
+    @Volatile private var bound: CompletableDeferred<Unit>? = null
+    @Volatile private var released = false
+
+    companion object {
+        private const val BIND_TIMEOUT_MS = 10_000L
+    }
+
+    private val connection = object : ServiceConnection {
+        override fun onServiceConnected(name: ComponentName?, binder: IBinder?) {
+            service = (binder as? TorService.LocalBinder)?.service
+            bound?.complete(Unit)
+        }
+
+        override fun onServiceDisconnected(name: ComponentName?) {
+            TorManager.log("Embedded TorService disconnected")
+            service = null
+        }
+    }
+
+    // TorService turns cookie auth off and relies on the socket's file permissions
+    override val cookieFile: File
+        get() = File(TorService.getAppTorServiceDataDir(context), "control_auth_cookie")
+
+    override val isAlive: Boolean get() = service != null
+
+    override fun prepareDataDirectory(): Boolean {
+        return File(TorService.getAppTorServiceDataDir(context), "cached-microdesc-consensus").length() > 0
+    }
+
+    // TorService passes DataDirectory and ControlSocket on the command line
+    override fun torrcLines(unixSockets: Boolean): List<String> = listOf("SocksPort ${socksPort(unixSockets)}")
+
+    private fun socksPort(unixSockets: Boolean): String {
+        val address = if (unixSockets) TorEndpoint.Unix(sockets.socks).torrcValue else "auto"
+        return "$address IsolateSOCKSAuth ExtendedErrors"
+    }
+
+    // Nothing outlives the app process: the daemon lives and dies with us
+    override suspend fun cleanupStale() {}
+
+    override suspend fun launch(torrc: File): Boolean {
+        if (released) {
+            TorManager.error("Embedded Tor was shut down for another runtime; it can only run again after an app restart")
+            return false
+        }
+        if (service != null) {
+            // Already running (parked by stop()); the torrc it started with is still in effect
+            TorManager.log("Embedded Tor already running; re-enabling network")
+            return true
+        }
+        withContext(Dispatchers.IO) { torrc.copyTo(TorService.getTorrc(context), overwrite = true) }
+
+        val waiter = CompletableDeferred<Unit>()
+        bound = waiter
+        val intent = Intent(context, TorService::class.java)
+        if (!context.bindService(intent, connection, Context.BIND_AUTO_CREATE)) {
+            TorManager.error("Could not bind the embedded TorService")
+            return false
+        }
+        TorManager.log("Binding embedded TorService...")
+        return withTimeoutOrNull(BIND_TIMEOUT_MS) { waiter.await() } != null
+    }
+
+    override fun openControlStream(): TorStream =
+        TorEndpoint.Unix(TorService.getControlSocket(context)).connect(0)
+
+    override suspend fun configure(client: TorControlClient, unixSockets: Boolean) {
+        // The command line's SocksPort wins over torrc; set ours (listener and isolation flags) again
+        val socks = client.command("SETCONF SocksPort=\"${socksPort(unixSockets)}\"")
+        if (!socks.isOk) TorManager.log("SETCONF SocksPort failed: ${socks.lines.lastOrNull()}")
+        if (parked) {
+            client.command("SETCONF DisableNetwork=0")
+            parked = false
+        }
+    }
+
+    override fun stop(client: TorControlClient?) {
+        if (client == null || service == null) return
+        client.close("SETCONF DisableNetwork=1")
+        parked = true
+    }
+
+    // Unbinding destroys TorService, which halts the daemon; Tor can't start again in this process
+    override fun release() {
+        if (service == null && bound == null) return
+        released = true
+        try {
+            context.unbindService(connection)
+        } catch (e: IllegalArgumentException) {
+            // Never bound
+        }
+        context.stopService(Intent(context, TorService::class.java))
+        service = null
+        bound = null
+        parked = false
+        TorManager.log("Embedded Tor released")
+    }
+}
@@ -0,0 +1,375 @@
+package com.example.anomess.network
+
+import android.content.Context
+import com.example.anomess.data.MessageRepository
+import com.example.anomess.data.StoredMedia
+import com.google.gson.Gson
+import kotlinx.coroutines.channels.Channel
+import java.io.File
+import java.io.IOException
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Resumable chunked media transfers.
+ *
+ * Flow: sender sends a signed TRANSFER_START (metadata carries transferId, total length and
+ * the whole-file SHA-256), receiver answers with an ACK holding the offset it already has.
+ * Sender then streams TRANSFER_CHUNK frames from that offset, each with its own hash, and the
+ * receiver acks every chunk. Progress is persisted on both sides, so a retry (or a resend after
+ * a Tor restart) continues from the last acknowledged offset.
+ *
+ * Once the last chunk is in, the file is assembled off the reader while acks at the full length
+ * keep the sender waiting for DONE. Completed transfers leave a tombstone, so a START retried
+ * after a lost DONE is answered DONE again instead of starting over.
+ *
+ * Chunk and ack frames are unsigned: they are only accepted on the connection that carried the
+ * verified START (or the one we sent it on), and the assembled file is checked against the
+ * signed whole-file digest.
+ */
+class FileTransferManager(
+    context: Context,
+    private val repository: MessageRepository
+) {
+    private val gson = Gson()
+    private val incomingDir = File(context.filesDir, "transfers/in").apply { mkdirs() }
+    private val outgoingDir = File(context.filesDir, "transfers/out").apply { mkdirs() }
+    private val trackers = ConcurrentHashMap<String, AckTracker>()
+    private val transferLocks = Array(LOCK_STRIPES) { Any() }
+    // Incoming state is keyed by verified sender + transferId (see incomingKey), never the id alone
+    private val incomingConnections = ConcurrentHashMap<String, PeerConnection>() // key -> START's stream
+    private val assembling = ConcurrentHashMap.newKeySet<String>()
+
+    companion object {
+        const val CHUNK_SIZE = 256 * 1024
+        const val CHUNKED_THRESHOLD = 1024 * 1024L // Smaller files go as a single streamed frame
+        const val WINDOW_BYTES = 8L * CHUNK_SIZE // Unacknowledged bytes in flight
+        const val ACK_TIMEOUT_MS = 45_000L
+        private const val STALE_TRANSFER_MS = 7 * 24 * 60 * 60 * 1000L
+        private const val LOCK_STRIPES = 32
+
+        // Metadata keys
+        const val META_TRANSFER_ID = "transferId"
+        const val META_MEDIA_TYPE = "mediaType"
+        const val META_TOTAL_LENGTH = "totalLength"
+        const val META_FILE_SHA256 = "fileSha256"
+        const val META_OFFSET = "offset"
+        const val META_CHUNK_SHA256 = "chunkSha256"
+        const val META_STATUS = "status"
+
+        const val STATUS_OK = "ok"
+        const val STATUS_DONE = "done"
+        const val STATUS_RESET = "reset" // Receiver has no (valid) state; sender must restart
+
+        fun toHex(bytes: ByteArray): String = bytes.joinToString("") { "%02x".format(it) }
+
+        fun fromHex(hex: String): ByteArray? {
+            if (hex.length % 2 != 0) return null
+            return try {
+                ByteArray(hex.length / 2) { hex.substring(it * 2, it * 2 + 2).toInt(16).toByte() }
+            } catch (e: NumberFormatException) {
+                null
+            }
+        }
+    }
+
+    /** Thrown when the peer does not speak the chunked protocol (legacy build). */
+    class PeerUnsupportedException(message: String) : IOException(message)
+
+    class TransferAck(val transferId: String, val offset: Long, val status: String)
+
+    class AckTracker(val connection: PeerConnection) {
+        val acks = Channel<TransferAck>(Channel.UNLIMITED)
+    }
+
+    // Persisted sender progress (transfers/out/<id>.json)
+    class OutgoingState(
+        val transferId: String,
+        val recipient: String,
+        val mediaPath: String,
+        val totalLength: Long,
+        var ackedOffset: Long
+    )
+
+    // Persisted receiver progress (transfers/in/<id>/state.json, chunks in <offset>.part)
+    class IncomingState(
+        val transferId: String,
+        val metadata: Map<String, String>,
+        val mediaType: Int,
+        val totalLength: Long,
+        val fileSha256: String,
+        val senderPublicKey: String?,
+        var nextOffset: Long,
+        val createdAt: Long
+    )
+
+    // assembleKey is set once every byte is in: the caller should run [completeIncoming] with it
+    class IncomingStep(val ack: TransferAck, val assembleKey: String? = null)
+
+    class AssemblyResult(val ack: TransferAck, val completed: CompletedTransfer?)
+
+    class CompletedTransfer(val payload: MessagePayload, val mediaPath: String)
+
+    init {
+        purgeStaleTransfers()
+    }
+
+    // --- Sender side ---
+
+    /**
+     * Loads or creates sender state. The id is derived from recipient + file + digest,
+     * so it stays the same across retries and app restarts.
+     */
+    fun outgoingState(recipient: String, media: StoredMedia): OutgoingState {
+        val idSource = "$recipient|${media.path}|${toHex(media.sha256)}".toByteArray(Charsets.UTF_8)
+        val transferId = toHex(MessageDigest.getInstance("SHA-256").digest(idSource).copyOf(16))
+        val file = File(outgoingDir, "$transferId.json")
+        if (file.exists()) {
+            try {
+                return gson.fromJson(file.readText(), OutgoingState::class.java)
+            } catch (e: Exception) {
+                TorManager.error("Corrupt transfer state $transferId, starting over", e)
+            }
+        }
+        val state = OutgoingState(transferId, recipient, media.path, media.length, 0L)
+        saveOutgoing(state)
+        return state
+    }
+
+    fun recordAck(state: OutgoingState, offset: Long) {
+        if (offset == state.ackedOffset) return
+        state.ackedOffset = offset
+        saveOutgoing(state)
+    }
+
+    fun finishOutgoing(state: OutgoingState) {
+        File(outgoingDir, "${state.transferId}.json").delete()
+    }
+
+    private fun saveOutgoing(state: OutgoingState) {
+        File(outgoingDir, "${state.transferId}.json").writeText(gson.toJson(state))
+    }
+
+    fun track(transferId: String, connection: PeerConnection): AckTracker {
+        val tracker = AckTracker(connection)
+        trackers.put(transferId, tracker)?.acks?.close()
+        return tracker
+    }
+
+    fun untrack(transferId: String, tracker: AckTracker) {
+        trackers.remove(transferId, tracker)
+        tracker.acks.close()
+    }
+
+    fun onAck(metadata: Map<String, String>, connection: PeerConnection) {
+        val transferId = metadata[META_TRANSFER_ID] ?: return
+        val offset = metadata[META_OFFSET]?.toLongOrNull() ?: return
+        val status = metadata[META_STATUS] ?: STATUS_OK
+        val tracker = trackers[transferId] ?: return
+        if (tracker.connection !== connection) {
+            TorManager.log("Transfer $transferId: ignoring ack from another connection")
+            return
+        }
+        tracker.acks.trySend(TransferAck(transferId, offset, status))
+    }
+
+    /**
+     * Wakes up senders waiting for acks on a stream that just died.
+     */
+    fun onConnectionClosed(connection: PeerConnection) {
+        trackers.values.filter { it.connection === connection }.forEach { it.acks.close() }
+        incomingConnections.entries.removeIf { it.value === connection }
+    }
+
+    // --- Receiver side ---
+
+    /**
+     * Opens (or resumes) an incoming transfer from an already verified START frame received on
+     * [connection]; its chunks are only accepted there. The ack holds the offset the sender should
+     * continue from, or DONE if this transfer was already completed.
+     */
+    fun openIncoming(start: MessagePayload, connection: PeerConnection): IncomingStep {
+        val metadata = start.metadata
+        val sender = metadata["sender"] ?: throw IllegalArgumentException("Missing sender")
+        val transferId = metadata[META_TRANSFER_ID] ?: throw IllegalArgumentException("Missing transferId")
+        if (!transferId.matches("[0-9a-f]{32}".toRegex())) throw IllegalArgumentException("Invalid transferId")
+        val totalLength = metadata[META_TOTAL_LENGTH]?.toLongOrNull() ?: throw IllegalArgumentException("Missing totalLength")
+        val fileSha256 = metadata[META_FILE_SHA256] ?: throw IllegalArgumentException("Missing fileSha256")
+        val mediaType = metadata[META_MEDIA_TYPE]?.toIntOrNull() ?: throw IllegalArgumentException("Missing mediaType")
+        if (totalLength <= 0 || totalLength > BinaryProtocol.MAX_STREAMED_PAYLOAD) {
+            throw IllegalArgumentException("Transfer invalid size: $totalLength")
+        }
+
+        val key = incomingKey(sender, transferId)
+        synchronized(lockFor(key)) {
+            if (tombstone(key).takeIf { it.exists() }?.readText() == fileSha256) {
+                TorManager.log("Transfer $transferId already completed")
+                return IncomingStep(TransferAck(transferId, totalLength, STATUS_DONE))
+            }
+            incomingConnections[key] = connection
+            val existing = loadIncoming(key)
+            if (existing != null && existing.totalLength == totalLength && existing.fileSha256 == fileSha256 &&
+                existing.metadata["sender"] == metadata["sender"]) {
+                TorManager.log("Resuming transfer $transferId at ${existing.nextOffset}/$totalLength")
+                // All in but not assembled yet (still running, or the app died before it finished)
+                val complete = existing.nextOffset == totalLength
+                return IncomingStep(TransferAck(transferId, existing.nextOffset, STATUS_OK), key.takeIf { complete && it !in assembling })
+            }
+            if (key in assembling) {
+                return IncomingStep(TransferAck(transferId, 0L, STATUS_RESET))
+            }
+
+            // New transfer (or one that changed underneath us): start clean
+            transferDir(key).deleteRecursively()
+            val publicKey = start.senderPublicKey?.let { android.util.Base64.encodeToString(it, android.util.Base64.NO_WRAP) }
+            val state = IncomingState(transferId, metadata, mediaType, totalLength, fileSha256, publicKey, 0L, System.currentTimeMillis())
+            saveIncoming(key, state)
+            return IncomingStep(TransferAck(transferId, 0L, STATUS_OK))
+        }
+    }
+
+    /**
+     * Stores one chunk. Out-of-order or corrupt chunks are dropped and the ack tells
+     * the sender where we really are. After the last chunk the transfer is ready to assemble.
+     */
+    fun acceptChunk(chunk: MessagePayload, connection: PeerConnection): IncomingStep {
+        val transferId = chunk.metadata[META_TRANSFER_ID] ?: throw IllegalArgumentException("Missing transferId")
+        val offset = chunk.metadata[META_OFFSET]?.toLongOrNull() ?: throw IllegalArgumentException("Missing offset")
+
+        // Only a stream that carried this id's verified START can name the transfer, and only its sender's
+        val key = incomingConnections.entries.firstOrNull { it.value === connection && it.key.endsWith("_$transferId") }?.key
+        if (key == null) {
+            TorManager.log("Transfer $transferId: dropping chunk from a connection without its START")
+            return IncomingStep(TransferAck(transferId, 0L, STATUS_RESET))
+        }
+
+        synchronized(lockFor(key)) {
+            if (incomingConnections[key] !== connection) {
+                // A newer START moved the transfer to another stream
+                return IncomingStep(TransferAck(transferId, 0L, STATUS_RESET))
+            }
+            val state = loadIncoming(key)
+                ?: return IncomingStep(TransferAck(transferId, 0L, STATUS_RESET))
+
+            val expectedHash = chunk.metadata[META_CHUNK_SHA256]
+            val actualHash = toHex(MessageDigest.getInstance("SHA-256").digest(chunk.data))
+            if (offset != state.nextOffset || expectedHash != actualHash ||
+                offset + chunk.data.size > state.totalLength) {
+                TorManager.log("Transfer $transferId: dropping chunk at $offset (expected ${state.nextOffset})")
+                return IncomingStep(TransferAck(transferId, state.nextOffset, STATUS_OK))
+            }
+
+            repository.openMediaOutput(File(transferDir(key), "$offset.part")).use { it.write(chunk.data) }
+            state.nextOffset = offset + chunk.data.size
+            saveIncoming(key, state)
+
+            return IncomingStep(TransferAck(transferId, state.nextOffset, STATUS_OK), key.takeIf { state.nextOffset == state.totalLength })
+        }
+    }
+
+    /**
+     * Assembles a fully received transfer; slow for large files, so never called on a reader.
+     * Returns null if it is already being assembled elsewhere or there is nothing to assemble.
+     */
+    fun completeIncoming(key: String): AssemblyResult? {
+        val state = synchronized(lockFor(key)) {
+            val state = loadIncoming(key)?.takeIf { it.nextOffset == it.totalLength } ?: return null
+            if (!assembling.add(key)) return null
+            state
+        }
+        val transferId = state.transferId
+        try {
+            val completed = assemble(key, state)
+            synchronized(lockFor(key)) {
+                transferDir(key).deleteRecursively()
+                if (completed == null) {
+                    return AssemblyResult(TransferAck(transferId, 0L, STATUS_RESET), null)
+                }
+                tombstone(key).writeText(state.fileSha256)
+                return AssemblyResult(TransferAck(transferId, state.totalLength, STATUS_DONE), completed)
+            }
+        } finally {
+            assembling.remove(key)
+        }
+    }
+
+    /**
+     * The stream that carried the latest verified START for [key], where its acks go.
+     */
+    fun incomingConnection(key: String): PeerConnection? = incomingConnections[key]
+
+    fun finishIncoming(key: String, connection: PeerConnection) {
+        incomingConnections.remove(key, connection)
+    }
+
+    /**
+     * Concatenates the parts into the final encrypted media file and checks the signed digest.
+     */
+    private fun assemble(key: String, state: IncomingState): CompletedTransfer? {
+        val dir = transferDir(key)
+        val filename = state.metadata["filename"] ?: "file_${System.currentTimeMillis()}"
+        val target = repository.newMediaFile(filename) // Never the sender's name: that could replace stored media
+        val digest = MessageDigest.getInstance("SHA-256")
+
+        repository.openMediaOutput(target).use { output ->
+            var offset = 0L
+            while (offset < state.totalLength) {
+                val part = File(dir, "$offset.part")
+                val copied = repository.getDecryptedInputStream(part.absolutePath)?.use { input ->
+                    BinaryProtocol.copyChunked(input, output, digest)
+                } ?: 0L
+                if (copied <= 0L) break
+                offset += copied
+            }
+        }
+
+        if (toHex(digest.digest()) != state.fileSha256) {
+            TorManager.error("Transfer ${state.transferId}: assembled file digest mismatch, discarding")
+            target.delete()
+            return null
+        }
+
+        val publicKey = state.senderPublicKey?.let { android.util.Base64.decode(it, android.util.Base64.NO_WRAP) }
+        val payload = MessagePayload(state.mediaType, state.metadata, ByteArray(0), null, publicKey, null)
+        return CompletedTransfer(payload, target.absolutePath)
+    }
+
+    /**
+     * Transfer ids are chosen by the sender, so receiver state is namespaced by the verified
+     * sender: another peer reusing an id can't resume, reset or complete someone else's transfer.
+     */
+    private fun incomingKey(sender: String, transferId: String): String {
+        val senderId = MessageDigest.getInstance("SHA-256").digest(sender.toByteArray(Charsets.UTF_8)).copyOf(8)
+        return "${toHex(senderId)}_$transferId"
+    }
+
+    private fun transferDir(key: String) = File(incomingDir, key)
+
+    // Holds the file digest of a completed transfer; purged with the stale ones
+    private fun tombstone(key: String) = File(incomingDir, "$key.done")
+
+    private fun loadIncoming(key: String): IncomingState? {
+        val file = File(transferDir(key), "state.json")
+        if (!file.exists()) return null
+        return try {
+            gson.fromJson(file.readText(), IncomingState::class.java)
+        } catch (e: Exception) {
+            TorManager.error("Corrupt incoming transfer state $key", e)
+            null
+        }
+    }
+
+    private fun saveIncoming(key: String, state: IncomingState) {
+        val dir = transferDir(key).apply { mkdirs() }
+        File(dir, "state.json").writeText(gson.toJson(state))
+    }
+
+    // Striped, so the lock table stays bounded however many ids peers make up
+    private fun lockFor(key: String): Any = transferLocks[(key.hashCode() and Int.MAX_VALUE) % LOCK_STRIPES]
+
+    private fun purgeStaleTransfers() {
+        val cutoff = System.currentTimeMillis() - STALE_TRANSFER_MS
+        incomingDir.listFiles()?.filter { it.lastModified() < cutoff }?.forEach { it.deleteRecursively() }
+        outgoingDir.listFiles()?.filter { it.lastModified() < cutoff }?.forEach { it.delete() }
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.anomess.network
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Per-onion latency model used to pick connect timeouts and retry delays.
+ *
+ * Same estimator as TCP's RTO (RFC 6298): a smoothed RTT plus four times its mean deviation.
+ * Connect samples are the SOCKS connect time, i.e. the full rendezvous with the hidden service;
+ * write samples are the time to push one frame onto an open stream. Timed-out connects give no
+ * sample (Karn) but double the next timeout until a connect succeeds again.
+ * Peers we have never measured start from the average of all peers, or a fixed default.
+ */
+class LatencyEstimator {
+
+    companion object {
+        private const val DEFAULT_CONNECT_TIMEOUT_MS = 20_000
+        private const val MIN_CONNECT_TIMEOUT_MS = 8_000
+        private const val MAX_CONNECT_TIMEOUT_MS = 60_000
+        private const val MIN_RETRY_DELAY_MS = 500L
+        private const val MAX_RETRY_DELAY_MS = 5_000L
+        private const val ALPHA = 0.125
+        private const val BETA = 0.25
+    }
+
+    /** Snapshot of one destination's model, for diagnostics. */
+    data class LatencyStats(
+        val address: String,
+        val connectSrttMs: Long,
+        val connectRttVarMs: Long,
+        val connectSamples: Int,
+        val connectTimeoutMs: Int,
+        val consecutiveTimeouts: Int,
+        val writeSrttMs: Long,
+        val writeSamples: Int,
+        val updatedAt: Long
+    ) {
+        override fun toString(): String =
+            "${address.take(8)}…: connect ${connectSrttMs}±${connectRttVarMs}ms (n=$connectSamples), timeout ${connectTimeoutMs}ms, " +
+                "write ${writeSrttMs}ms (n=$writeSamples)" + if (consecutiveTimeouts > 0) ", $consecutiveTimeouts timeouts" else ""
+    }
+
+    private class Rtt {
+        var srtt = 0.0
+        var rttVar = 0.0
+        var samples = 0
+
+        fun add(sampleMs: Double) {
+            if (samples == 0) {
+                srtt = sampleMs
+                rttVar = sampleMs / 2
+            } else {
+                rttVar = (1 - BETA) * rttVar + BETA * Math.abs(srtt - sampleMs)
+                srtt = (1 - ALPHA) * srtt + ALPHA * sampleMs
+            }
+            samples++
+        }
+
+        val rto: Double get() = srtt + 4 * rttVar
+    }
+
+    private class PeerLatency {
+        val connect = Rtt()
+        val write = Rtt()
+        var consecutiveTimeouts = 0
+        var updatedAt = 0L
+    }
+
+    private val peers = ConcurrentHashMap<String, PeerLatency>()
+    private val global = Rtt() // Prior for peers without samples
+
+    fun connectTimeoutMs(address: String): Int {
+        val peer = peers[address]
+        val base = synchronized(this) {
+            when {
+                peer != null && peer.connect.samples > 0 -> peer.connect.rto
+                global.samples > 0 -> global.rto
+                else -> DEFAULT_CONNECT_TIMEOUT_MS.toDouble()
+            }
+        }
+        // Karn's backoff: each consecutive timeout doubles the timeout
+        val backedOff = base * (1 shl minOf(peer?.consecutiveTimeouts ?: 0, 3))
+        return backedOff.toInt().coerceIn(MIN_CONNECT_TIMEOUT_MS, MAX_CONNECT_TIMEOUT_MS)
+    }
+
+    /**
+     * Pause before retry [attemptNo] (1-based), scaled to how fast this peer usually answers.
+     */
+    fun retryDelayMs(address: String, attemptNo: Int): Long {
+        val srtt = synchronized(this) {
+            peers[address]?.connect?.takeIf { it.samples > 0 }?.srtt ?: global.srtt
+        }
+        val base = (srtt / 4).toLong().coerceIn(MIN_RETRY_DELAY_MS, MAX_RETRY_DELAY_MS)
+        return (base * attemptNo).coerceAtMost(MAX_RETRY_DELAY_MS)
+    }
+
+    fun onConnected(address: String, elapsedMs: Long) {
+        synchronized(this) {
+            val peer = peers.getOrPut(address) { PeerLatency() }
+            peer.connect.add(elapsedMs.toDouble())
+            peer.consecutiveTimeouts = 0
+            peer.updatedAt = System.currentTimeMillis()
+            global.add(elapsedMs.toDouble())
+        }
+    }
+
+    fun onConnectTimeout(address: String) {
+        synchronized(this) {
+            val peer = peers.getOrPut(address) { PeerLatency() }
+            peer.consecutiveTimeouts++
+            peer.updatedAt = System.currentTimeMillis()
+        }
+    }
+
+    fun onWrite(address: String, elapsedMs: Long) {
+        synchronized(this) {
+            val peer = peers.getOrPut(address) { PeerLatency() }
+            peer.write.add(elapsedMs.toDouble())
+            peer.updatedAt = System.currentTimeMillis()
+        }
+    }
+
+    fun diagnostics(): List<LatencyStats> {
+        val addresses = peers.keys.toList()
+        return addresses.mapNotNull { address ->
+            val timeout = connectTimeoutMs(address)
+            synchronized(this) {
+                val peer = peers[address] ?: return@synchronized null
+                LatencyStats(
+                    address,
+                    peer.connect.srtt.toLong(),
+                    peer.connect.rttVar.toLong(),
+                    peer.connect.samples,
+                    timeout,
+                    peer.consecutiveTimeouts,
+                    peer.write.srtt.toLong(),
+                    peer.write.samples,
+                    peer.updatedAt
+                )
+            }
+        }.sortedByDescending { it.updatedAt }
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.anomess.network
+
+/**
+ * Outbound media frame. The payload is streamed from the local encrypted
+ * media store at send time instead of being held in memory.
+ */
+class MediaPayload(
+    val type: Int, // 1=Image, 2=Audio, 3=File
+    val metadata: Map<String, String>,
+    val rawMetadata: ByteArray, // Exact bytes that were signed
+    val mediaPath: String, // Encrypted file in the media store
+    val length: Long, // Plaintext payload length
+    val signature: ByteArray? = null, // Ed25519 Signature over rawMetadata + SHA-256(payload)
+    val senderPublicKey: ByteArray? = null,
+    val version: Int = BinaryProtocol.VERSION_2
+)
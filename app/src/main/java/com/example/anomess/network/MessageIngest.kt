@@ -0,0 +1,161 @@
+package com.example.anomess.network
+
+import android.os.SystemClock
+import com.example.anomess.data.Message
+import com.example.anomess.data.MessageRepository
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Ingest stage for incoming messages.
+ *
+ * Connection readers only parse frames and hand them off: a few workers check signatures in
+ * parallel, and a single writer commits whatever has been accepted so far in one transaction
+ * (messages plus the contacts they introduce). A peer draining its outbox 200 messages at once
+ * then costs a handful of commits and UI invalidations instead of several per message.
+ */
+class MessageIngest(
+    private val repository: MessageRepository,
+    private val verify: suspend (MessagePayload) -> Boolean,
+    private val build: suspend (payload: MessagePayload, mediaPath: String?, receivedAt: Long) -> Accepted?
+) {
+    /** A verified message ready to store, with the sender key to pin if the contact has none. */
+    class Accepted(val message: Message, val publicKey: String?)
+
+    data class Metrics(
+        val batches: Long = 0,
+        val messages: Long = 0,
+        val rejected: Long = 0,
+        val lastBatchSize: Int = 0,
+        val maxBatchSize: Int = 0,
+        val lastCommitMs: Long = 0,
+        val maxCommitMs: Long = 0,
+        val totalCommitMs: Long = 0
+    ) {
+        val averageBatchSize: Double get() = if (batches == 0L) 0.0 else messages.toDouble() / batches
+        val averageCommitMs: Double get() = if (batches == 0L) 0.0 else totalCommitMs.toDouble() / batches
+
+        override fun toString(): String =
+            "$messages messages in $batches commits (batch avg ${"%.1f".format(averageBatchSize)}, max $maxBatchSize; " +
+                "commit avg ${"%.1f".format(averageCommitMs)}ms, max ${maxCommitMs}ms), $rejected rejected"
+    }
+
+    private class Frame(
+        val payload: MessagePayload,
+        val receivedAt: Long,
+        val onVerified: () -> Unit,
+        val onRejected: () -> Unit
+    )
+
+    companion object {
+        private const val QUEUE_CAPACITY = 256 // Past this readers suspend: backpressure onto the sockets
+        private const val MAX_BATCH = 200
+        private val VERIFY_WORKERS = Runtime.getRuntime().availableProcessors().coerceIn(2, 4)
+    }
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val frames = Channel<Frame>(QUEUE_CAPACITY)
+    private val accepted = Channel<Accepted>(QUEUE_CAPACITY)
+    private val receiveClock = AtomicLong(0)
+    private val rejected = AtomicLong(0)
+    @Volatile private var stats = Metrics() // Written by the writer only
+
+    init {
+        repeat(VERIFY_WORKERS) { scope.launch(Dispatchers.Default) { verifyLoop() } }
+        scope.launch { writeLoop() }
+    }
+
+    fun metrics(): Metrics = stats.copy(rejected = rejected.get())
+
+    /**
+     * Queues a frame whose signature still has to be checked. [onVerified] or [onRejected]
+     * runs on a worker once it has been; frames of one connection may finish out of order.
+     */
+    suspend fun submit(payload: MessagePayload, onVerified: () -> Unit, onRejected: () -> Unit) {
+        frames.send(Frame(payload, nextReceivedAt(), onVerified, onRejected))
+    }
+
+    /** Queues a payload that was already verified (media checked against its digest). */
+    suspend fun submitVerified(payload: MessagePayload, mediaPath: String?) {
+        build(payload, mediaPath, nextReceivedAt())?.let { accepted.send(it) }
+    }
+
+    // Local ordering timestamp taken on arrival and strictly increasing, so parallel
+    // verification can't reorder a burst
+    private fun nextReceivedAt(): Long = receiveClock.updateAndGet { maxOf(it + 1, System.currentTimeMillis()) }
+
+    private suspend fun verifyLoop() {
+        for (frame in frames) {
+            val ok = try {
+                verify(frame.payload)
+            } catch (e: Exception) {
+                TorManager.error("Verification error", e)
+                false
+            }
+            if (!ok) {
+                rejected.incrementAndGet()
+                TorManager.error("Security verification failed for message from ${frame.payload.metadata["sender"]}")
+                frame.onRejected()
+                continue
+            }
+            frame.onVerified()
+            val item = try {
+                build(frame.payload, null, frame.receivedAt)
+            } catch (e: Exception) {
+                TorManager.error("Error processing message", e)
+                null
+            }
+            if (item != null) accepted.send(item)
+        }
+    }
+
+    private suspend fun writeLoop() {
+        while (true) {
+            // Whatever piled up while the previous commit ran goes into this one
+            val batch = arrayListOf(accepted.receive())
+            while (batch.size < MAX_BATCH) batch.add(accepted.tryReceive().getOrNull() ?: break)
+            batch.sortBy { it.message.timestamp }
+
+            val start = SystemClock.elapsedRealtime()
+            try {
+                reportKeyMismatches(repository.saveIncomingMessages(batch.map { it.message to it.publicKey }))
+            } catch (e: Exception) {
+                TorManager.error("Committing ${batch.size} incoming messages failed; retrying one by one", e)
+                for (item in batch) {
+                    try {
+                        reportKeyMismatches(repository.saveIncomingMessages(listOf(item.message to item.publicKey)))
+                    } catch (e: Exception) {
+                        TorManager.error("Error saving message from ${item.message.senderOnionAddress}", e)
+                    }
+                }
+            }
+            record(batch.size, SystemClock.elapsedRealtime() - start)
+        }
+    }
+
+    // Verified against a key that lost the TOFU race to another frame of the same new sender
+    private fun reportKeyMismatches(dropped: List<Message>) {
+        if (dropped.isEmpty()) return
+        rejected.addAndGet(dropped.size.toLong())
+        dropped.distinctBy { it.senderOnionAddress }.forEach {
+            TorManager.error("SECURITY ALERT: Dropped message(s) from ${it.senderOnionAddress} signed by a key other than the pinned one")
+        }
+    }
+
+    private fun record(size: Int, commitMs: Long) {
+        val s = stats
+        stats = s.copy(
+            batches = s.batches + 1,
+            messages = s.messages + size,
+            lastBatchSize = size,
+            maxBatchSize = maxOf(s.maxBatchSize, size),
+            lastCommitMs = commitMs,
+            maxCommitMs = maxOf(s.maxCommitMs, commitMs),
+            totalCommitMs = s.totalCommitMs + commitMs
+        )
+    }
+}
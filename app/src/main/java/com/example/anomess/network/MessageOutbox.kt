@@ -0,0 +1,230 @@
+package com.example.anomess.network
+
+import com.example.anomess.data.Message
+import com.example.anomess.data.MessageRepository
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Durable outbox: the only component that delivers rows in STATUS_SENDING / STATUS_FAILED.
+ *
+ * The messages table is the queue, so nothing is lost across restarts. Each peer gets its own
+ * worker that sends that peer's messages in order, so one unreachable peer never delays the others.
+ * A failed attempt backs off exponentially (with full jitter) for that peer only; connectivity
+ * and Tor-ready events cut the backoff short. Message ids in flight are tracked so a row is
+ * never sent twice concurrently (e.g. a manual retry racing the worker).
+ */
+class MessageOutbox(
+    private val torManager: TorManager,
+    private val connectionManager: P2PConnectionManager,
+    private val repository: MessageRepository
+) {
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val workers = ConcurrentHashMap<String, PeerWorker>()
+    private val inFlight = ConcurrentHashMap.newKeySet<Int>()
+    // Digests of freshly imported media, so the first send doesn't re-read the file
+    private val importedMedia = ConcurrentHashMap<String, com.example.anomess.data.StoredMedia>()
+    @Volatile private var started = false
+
+    init {
+        // Every transition into Ready (first start, restart, network back) drains the queue
+        scope.launch {
+            var wasReady = false
+            torManager.state.collect { state ->
+                val ready = state == TorState.Ready
+                if (ready && !wasReady) onTorReady()
+                wasReady = ready
+            }
+        }
+    }
+
+    companion object {
+        private const val BASE_BACKOFF_MS = 5_000L
+        private const val MAX_BACKOFF_MS = 10 * 60 * 1000L
+        private const val NOT_READY_RECHECK_MS = 60_000L
+    }
+
+    /**
+     * Tor is up and the listener is running: start draining every peer with pending rows.
+     * Driven by [TorManager.state]; safe to call repeatedly.
+     */
+    fun onTorReady() {
+        started = true
+        wakeAll(resetBackoff = true)
+    }
+
+    /** Network came back: anything waiting out a backoff is worth retrying now. */
+    fun onConnectivityRestored() {
+        if (started) wakeAll(resetBackoff = true)
+    }
+
+    /** A new row for [peer] was written with STATUS_SENDING. */
+    fun enqueue(peer: String) {
+        if (started) workerFor(peer).wake(resetBackoff = false)
+    }
+
+    /** Same as [enqueue] for a media row whose file was just imported (and hashed). */
+    fun enqueue(peer: String, media: com.example.anomess.data.StoredMedia) {
+        importedMedia[media.path] = media
+        enqueue(peer)
+    }
+
+    /** User asked to retry a failed message: mark it pending and skip the peer's backoff. */
+    fun retryNow(message: Message) {
+        scope.launch {
+            if (message.id !in inFlight) {
+                repository.updateMessageStatus(message.id, Message.STATUS_SENDING)
+            }
+            if (started) workerFor(message.receiverOnionAddress).wake(resetBackoff = true)
+        }
+    }
+
+    private fun wakeAll(resetBackoff: Boolean) {
+        scope.launch {
+            try {
+                val peers = repository.getOutboxPeers()
+                if (peers.isNotEmpty()) {
+                    TorManager.log("Outbox: ${peers.size} peer(s) with pending messages")
+                }
+                peers.forEach { workerFor(it).wake(resetBackoff) }
+                // Workers that went idle keep their backoff state; reset those too
+                if (resetBackoff) workers.values.forEach { it.wake(true) }
+            } catch (e: Exception) {
+                TorManager.error("Outbox: failed to load pending peers", e)
+            }
+        }
+    }
+
+    private fun workerFor(peer: String): PeerWorker {
+        return workers.getOrPut(peer) { PeerWorker(peer).also { it.start() } }
+    }
+
+    private inner class PeerWorker(val peer: String) {
+        // true = reset backoff; CONFLATED keeps only the latest, so merge resets via the flag below
+        private val signals = Channel<Boolean>(Channel.CONFLATED)
+        @Volatile private var resetRequested = false
+        private var failures = 0
+
+        fun wake(resetBackoff: Boolean) {
+            if (resetBackoff) resetRequested = true
+            signals.trySend(resetBackoff)
+        }
+
+        fun start() {
+            scope.launch {
+                while (true) {
+                    try {
+                        drain()
+                    } catch (e: Exception) {
+                        TorManager.error("Outbox worker for $peer failed", e)
+                        failures++
+                        waitBackoff()
+                    }
+                }
+            }
+        }
+
+        private suspend fun drain() {
+            if (torManager.state.value != TorState.Ready) {
+                // Suspend until Tor is usable again; the timeout only covers a missed liveness event
+                torManager.awaitReady(NOT_READY_RECHECK_MS)
+                return
+            }
+            if (resetRequested) {
+                resetRequested = false
+                failures = 0
+            }
+
+            val pending = repository.getOutboxMessages(peer)
+            if (pending.isEmpty()) {
+                failures = 0
+                signals.receive() // Idle until something new is queued
+                return
+            }
+
+            var delivered = 0
+            for (message in pending) {
+                if (!inFlight.add(message.id)) continue
+                val sent = try {
+                    deliver(message)
+                } finally {
+                    inFlight.remove(message.id)
+                }
+                when (sent) {
+                    true -> {
+                        delivered++
+                        failures = 0
+                    }
+                    false -> {
+                        // Keep per-peer order: later messages wait for this one
+                        failures++
+                        waitBackoff()
+                        return
+                    }
+                    null -> Unit // Nothing to send (media deleted); don't block the queue on it
+                }
+            }
+            // Only in-flight or unsendable rows left: wait for news instead of spinning
+            if (delivered == 0) signals.receive()
+        }
+
+        // Jittered exponential backoff: base/2 + uniform[0, min(cap, base * 2^n)), cut short by an urgent wake-up
+        private suspend fun waitBackoff() {
+            val ceiling = minOf(MAX_BACKOFF_MS, BASE_BACKOFF_MS shl minOf(failures - 1, 16).coerceAtLeast(0))
+            val delayMs = BASE_BACKOFF_MS / 2 + (Math.random() * ceiling).toLong()
+            TorManager.log("Outbox: $peer unreachable ($failures failures), next attempt in ${delayMs / 1000}s")
+            val deadline = System.currentTimeMillis() + delayMs
+            while (true) {
+                val remaining = deadline - System.currentTimeMillis()
+                if (remaining <= 0) return
+                val urgent = withTimeoutOrNull(remaining) { signals.receive() } ?: return
+                if (urgent || resetRequested) return
+            }
+        }
+    }
+
+    /**
+     * Sends one row and records the outcome. Returns null if the row can't be sent at all.
+     */
+    private suspend fun deliver(message: Message): Boolean? {
+        if (message.type != Message.TYPE_TEXT && (message.mediaPath == null || !java.io.File(message.mediaPath).exists())) {
+            if (message.status != Message.STATUS_FAILED) {
+                repository.updateMessageStatus(message.id, Message.STATUS_FAILED)
+            }
+            return null
+        }
+        repository.updateMessageStatus(message.id, Message.STATUS_SENDING)
+        val sent = try {
+            if (message.type == Message.TYPE_TEXT) {
+                // Reply context is rebuilt from the stored row, as the UI did when composing
+                val replyTo = message.replyToMessageId?.let { repository.getMessageById(it) }
+                connectionManager.sendMessage(
+                    message.receiverOnionAddress,
+                    message.content,
+                    message.replyToContent,
+                    replyTo?.let { it.senderTimestamp ?: it.timestamp },
+                    replyTo?.senderOnionAddress
+                )
+            } else {
+                // Re-hash the stored file (streamed) and resend it signed
+                val media = importedMedia.remove(message.mediaPath) ?: repository.digestMedia(message.mediaPath!!)
+                media != null && connectionManager.sendMediaFile(
+                    message.receiverOnionAddress,
+                    message.type,
+                    java.io.File(message.mediaPath).name,
+                    media
+                )
+            }
+        } catch (e: Exception) {
+            TorManager.error("Outbox: delivery of message ${message.id} failed", e)
+            false
+        }
+        repository.updateMessageStatus(message.id, if (sent) Message.STATUS_SENT else Message.STATUS_FAILED)
+        return sent
+    }
+}
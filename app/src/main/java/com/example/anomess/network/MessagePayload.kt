@@ -6,7 +6,8 @@ data class MessagePayload(
     val data: ByteArray, // Content bytes
     val signature: ByteArray? = null, // Ed25519 Signature
     val senderPublicKey: ByteArray? = null, // Sender's Ed25519 Public Key
-    val rawMetadata: ByteArray? = null // For verification stability
+    val rawMetadata: ByteArray? = null, // For verification stability
+    val version: Int = BinaryProtocol.VERSION_2 // Wire version; decides how metadata is encoded
 ) {
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
@@ -0,0 +1,204 @@
+package com.example.anomess.network
+
+import java.io.ByteArrayOutputStream
+
+/**
+ * Compact binary metadata section used by protocol V3 (replaces the Gson JSON map).
+ *
+ * Layout: FIELD_COUNT (varint), then per field:
+ *   KEY (1 byte enum) | VALUE_LEN (varint) | VALUE
+ *
+ * Values are typed by key: onion addresses are the 35 raw bytes behind the 56 base32 chars,
+ * numbers are unsigned varints, hashes/ids are raw bytes, everything else is UTF-8.
+ * Values that don't fit their key's type (or unknown keys) go into an EXTENSION field
+ * carrying both key and value as strings, so encoding is always lossless.
+ * Decoding is a plain byte walk: no reflection, no intermediate JSON.
+ */
+object MetadataCodec {
+
+    private const val MAX_FIELDS = 64
+    private const val ONION_BYTES = 35
+    private const val ONION_SUFFIX = ".onion"
+    private const val BASE32 = "abcdefghijklmnopqrstuvwxyz234567"
+    private val onionRegex = "^[a-z2-7]{56}\\.onion$".toRegex()
+    private val hexRegex = "^([0-9a-f]{2})+$".toRegex()
+
+    private enum class Kind { ONION, VARINT, HEX, STRING }
+
+    private enum class Key(val id: Int, val key: String, val kind: Kind) {
+        SENDER(1, "sender", Kind.ONION),
+        TIMESTAMP(2, "timestamp", Kind.VARINT),
+        FILENAME(3, "filename", Kind.STRING),
+        REPLY_TO_CONTENT(4, "replyToContent", Kind.STRING),
+        REPLY_TO_TIMESTAMP(5, "replyToTimestamp", Kind.VARINT),
+        REPLY_TO_SENDER(6, "replyToSender", Kind.ONION),
+        PAYLOAD_DIGEST(7, BinaryProtocol.META_PAYLOAD_DIGEST, Kind.STRING),
+        TRANSFER_ID(8, FileTransferManager.META_TRANSFER_ID, Kind.HEX),
+        MEDIA_TYPE(9, FileTransferManager.META_MEDIA_TYPE, Kind.VARINT),
+        TOTAL_LENGTH(10, FileTransferManager.META_TOTAL_LENGTH, Kind.VARINT),
+        FILE_SHA256(11, FileTransferManager.META_FILE_SHA256, Kind.HEX),
+        OFFSET(12, FileTransferManager.META_OFFSET, Kind.VARINT),
+        CHUNK_SHA256(13, FileTransferManager.META_CHUNK_SHA256, Kind.HEX),
+        STATUS(14, FileTransferManager.META_STATUS, Kind.STRING),
+        KEY_ID(15, BinaryProtocol.META_KEY_ID, Kind.HEX),
+        PEER_KEY_ID(16, BinaryProtocol.META_PEER_KEY_ID, Kind.HEX),
+        READ_UP_TO(17, BinaryProtocol.META_READ_UP_TO, Kind.VARINT);
+
+        companion object {
+            private val byId = values().associateBy { it.id }
+            private val byName = values().associateBy { it.key }
+            fun fromId(id: Int) = byId[id]
+            fun fromName(name: String) = byName[name]
+        }
+    }
+
+    private const val EXTENSION_ID = 0xFF
+
+    fun encode(metadata: Map<String, String>): ByteArray {
+        val out = ByteArrayOutputStream(64 + metadata.size * 16)
+        writeVarint(out, metadata.size.toLong())
+        for ((name, value) in metadata) {
+            val key = Key.fromName(name)
+            val typed = key?.let { encodeValue(it.kind, value) }
+            if (key != null && typed != null) {
+                out.write(key.id)
+                writeVarint(out, typed.size.toLong())
+                out.write(typed)
+            } else {
+                val nameBytes = name.toByteArray(Charsets.UTF_8)
+                val valueBytes = value.toByteArray(Charsets.UTF_8)
+                val ext = ByteArrayOutputStream(nameBytes.size + valueBytes.size + 4)
+                writeVarint(ext, nameBytes.size.toLong())
+                ext.write(nameBytes)
+                ext.write(valueBytes)
+                out.write(EXTENSION_ID)
+                writeVarint(out, ext.size().toLong())
+                ext.writeTo(out)
+            }
+        }
+        return out.toByteArray()
+    }
+
+    fun decode(bytes: ByteArray): Map<String, String> {
+        val reader = Reader(bytes)
+        val count = reader.varint()
+        if (count < 0 || count > MAX_FIELDS) throw IllegalArgumentException("Metadata invalid field count: $count")
+
+        val metadata = LinkedHashMap<String, String>(count.toInt() * 2)
+        repeat(count.toInt()) {
+            val id = reader.byte()
+            val len = reader.varint()
+            if (len < 0 || len > reader.remaining) throw IllegalArgumentException("Metadata field overruns section")
+            val start = reader.position
+            val end = start + len.toInt()
+
+            if (id == EXTENSION_ID) {
+                val ext = Reader(bytes, start, end)
+                val nameLen = ext.varint()
+                if (nameLen < 0 || nameLen > ext.remaining) throw IllegalArgumentException("Metadata extension overruns field")
+                val name = String(bytes, ext.position, nameLen.toInt(), Charsets.UTF_8)
+                val valueStart = ext.position + nameLen.toInt()
+                metadata[name] = String(bytes, valueStart, end - valueStart, Charsets.UTF_8)
+            } else {
+                // Unknown typed keys come from newer peers; skip them
+                Key.fromId(id)?.let { key -> metadata[key.key] = decodeValue(key.kind, bytes, start, end) }
+            }
+            reader.position = end
+        }
+        if (reader.remaining != 0) throw IllegalArgumentException("Trailing bytes in metadata")
+        return metadata
+    }
+
+    // Returns null if the value doesn't round-trip through the typed encoding
+    private fun encodeValue(kind: Kind, value: String): ByteArray? {
+        return when (kind) {
+            Kind.ONION -> if (onionRegex.matches(value)) base32Decode(value.removeSuffix(ONION_SUFFIX)) else null
+            Kind.VARINT -> {
+                val number = value.toLongOrNull() ?: return null
+                if (number < 0 || number.toString() != value) return null
+                ByteArrayOutputStream(10).also { writeVarint(it, number) }.toByteArray()
+            }
+            Kind.HEX -> if (hexRegex.matches(value)) FileTransferManager.fromHex(value) else null
+            Kind.STRING -> value.toByteArray(Charsets.UTF_8)
+        }
+    }
+
+    private fun decodeValue(kind: Kind, bytes: ByteArray, start: Int, end: Int): String {
+        return when (kind) {
+            Kind.ONION -> {
+                if (end - start != ONION_BYTES) throw IllegalArgumentException("Onion field must be $ONION_BYTES bytes")
+                base32Encode(bytes, start, end) + ONION_SUFFIX
+            }
+            Kind.VARINT -> {
+                val reader = Reader(bytes, start, end)
+                val number = reader.varint()
+                if (reader.remaining != 0) throw IllegalArgumentException("Varint field has trailing bytes")
+                number.toString()
+            }
+            Kind.HEX -> FileTransferManager.toHex(bytes.copyOfRange(start, end))
+            Kind.STRING -> String(bytes, start, end - start, Charsets.UTF_8)
+        }
+    }
+
+    private fun writeVarint(out: ByteArrayOutputStream, value: Long) {
+        var v = value
+        while (v and 0x7FL.inv() != 0L) {
+            out.write(((v and 0x7F) or 0x80).toInt())
+            v = v ushr 7
+        }
+        out.write(v.toInt())
+    }
+
+    private class Reader(val bytes: ByteArray, var position: Int = 0, val limit: Int = bytes.size) {
+        val remaining: Int get() = limit - position
+
+        fun byte(): Int {
+            if (position >= limit) throw IllegalArgumentException("Metadata truncated")
+            return bytes[position++].toInt() and 0xFF
+        }
+
+        fun varint(): Long {
+            var result = 0L
+            var shift = 0
+            while (shift < 64) {
+                val b = byte()
+                result = result or ((b and 0x7F).toLong() shl shift)
+                if (b and 0x80 == 0) return result
+                shift += 7
+            }
+            throw IllegalArgumentException("Varint too long")
+        }
+    }
+
+    private fun base32Decode(text: String): ByteArray {
+        val out = ByteArray(text.length * 5 / 8)
+        var buffer = 0
+        var bits = 0
+        var index = 0
+        for (c in text) {
+            buffer = (buffer shl 5) or BASE32.indexOf(c)
+            bits += 5
+            if (bits >= 8) {
+                bits -= 8
+                out[index++] = (buffer shr bits).toByte()
+            }
+        }
+        return out
+    }
+
+    private fun base32Encode(bytes: ByteArray, start: Int, end: Int): String {
+        val sb = StringBuilder((end - start) * 8 / 5)
+        var buffer = 0
+        var bits = 0
+        for (i in start until end) {
+            buffer = (buffer shl 8) or (bytes[i].toInt() and 0xFF)
+            bits += 8
+            while (bits >= 5) {
+                bits -= 5
+                sb.append(BASE32[(buffer shr bits) and 0x1F])
+            }
+        }
+        if (bits > 0) sb.append(BASE32[(buffer shl (5 - bits)) and 0x1F])
+        return sb.toString()
+    }
+}
@@ -6,16 +6,12 @@ import com.example.anomess.data.MessageRepository
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.withPermit
 import kotlinx.coroutines.withContext
 import java.io.BufferedReader
 import java.io.InputStreamReader
 import java.io.OutputStreamWriter
 import java.io.PrintWriter
-import java.net.InetAddress
-import java.net.InetSocketAddress
-import java.net.Proxy
-import java.net.ServerSocket
-import java.net.Socket
 import kotlin.math.abs
 
 class P2PConnectionManager(
@@ -24,18 +20,48 @@ class P2PConnectionManager(
     private val securityManager: com.example.anomess.security.SecurityManager,
     private val context: android.content.Context
 ) {
-    private var serverSocket: ServerSocket? = null
-    private var isListening = false
+    @Volatile private var listener: TorListener? = null
+    @Volatile private var isListening = false
     
     // Track failed destinations to trigger circuit renewal
     private val failedDestinations = mutableSetOf<String>()
+    
+    private val mediaStreamPermits = kotlinx.coroutines.sync.Semaphore(MAX_CONCURRENT_MEDIA_STREAMS)
+    
+    // Persistent per-peer streams (both dialed and authenticated inbound)
+    private val connectionPool = PeerConnectionPool()
+    private val activeInbound = java.util.concurrent.atomic.AtomicInteger(0)
+    
+    // Resumable chunked media transfers (both directions)
+    private val fileTransfers = FileTransferManager(context, repository)
+    
+    // Per-peer wire version (V3 binary metadata once the peer has shown support)
+    private val protocolNegotiator = ProtocolNegotiator(context)
+    
+    // Debounced per-peer read receipts (one high-water mark frame instead of one per read)
+    private val readReceipts = ReadReceiptAggregator { peer, readUpTo -> sendReadReceiptFrame(peer, readUpTo) }
+    
+    // Learned rendezvous latency per onion: drives connect timeouts and retry pauses
+    private val latency = LatencyEstimator()
+
+    // Parallel signature checks, one batched writer for accepted messages
+    private val ingest = MessageIngest(
+        repository,
+        verify = { payload -> verifyMessage(payload) },
+        build = { payload, mediaPath, receivedAt -> toIncomingMessage(payload, mediaPath, receivedAt) }
+    )
+
+    init {
+        // Tor asks for the listener's address each time it writes torrc
+        torManager.setHiddenServiceBinder { unixSocket -> bindListener(unixSocket) }
+    }
 
     companion object {
         private const val TAG = "P2PConnectionManager"
-        private const val LOCAL_PORT = 8080 // Must match TorManager local port
         private const val MAX_SEND_RETRIES = 3 // Back to 3 for better resilience
-        private const val INITIAL_TIMEOUT_MS = 20000 // 20 seconds (reasonable for Tor)
-        private const val RETRY_TIMEOUT_MS = 15000 // 15 seconds for retries
+        private const val TOR_READY_WAIT_MS = 60_000L
+        private const val MAX_INBOUND_CONNECTIONS = 16
+        private const val MAX_CONCURRENT_MEDIA_STREAMS = 4 // Hard cap on concurrent transfer buffers
     }
 
     private fun isNetworkAvailable(): Boolean {
@@ -55,88 +81,327 @@ class P2PConnectionManager(
         }
     }
 
+    /**
+     * Makes sure the hidden service listener is up. TorManager also (re)binds it on every launch,
+     * before writing torrc, so Tor's HiddenServicePort always points at a live listener.
+     */
     fun startListening() {
-        if (isListening) return
+        bindListener(torManager.hiddenServiceSocket())
+    }
+
+    /**
+     * Binds a unix socket at [unixSocket] when given and that works, else a loopback port the
+     * kernel picks. Neither can clash with another Tor, so there's no bind-retry loop.
+     */
+    @Synchronized
+    private fun bindListener(unixSocket: java.io.File?): TorEndpoint? {
+        listener?.let { current ->
+            if (isListening && (current.endpoint as? TorEndpoint.Unix)?.path == unixSocket) return current.endpoint
+            current.close()
+        }
+        val bound = try {
+            if (unixSocket != null) TorListener.unix(unixSocket) else TorListener.loopback()
+        } catch (e: Exception) {
+            TorManager.error("Could not bind ${if (unixSocket != null) "unix socket" else "loopback"} listener: ${e.message}")
+            if (unixSocket == null) return null
+            try { TorListener.loopback() } catch (e2: Exception) {
+                TorManager.error("Failed to bind server socket. Incoming messages will fail.", e2)
+                return null
+            }
+        }
+        listener = bound
         isListening = true
+        TorManager.log("Listening for P2P connections on ${bound.endpoint.torrcValue}")
+        
         CoroutineScope(Dispatchers.IO).launch {
-            var retries = 0
-            while (serverSocket == null && isListening) {
+            while (isListening && listener === bound) {
                 try {
-                    // SECURE BINDING: Bind only to local loopback interface
-                    // This prevents other devices on the LAN from connecting directly to this port.
-                    // Only the local Tor process (proxying from hidden service) can connect.
-                    serverSocket = ServerSocket(LOCAL_PORT, 50, InetAddress.getByName("127.0.0.1"))
-                    serverSocket?.reuseAddress = true 
-                    TorManager.log("Listening for P2P connections on port $LOCAL_PORT")
-                    
-                    while (isListening) {
-                        try {
-                            val clientSocket = serverSocket?.accept()
-                            // Set timeout to prevent hanging connections (DoS mitigation)
-                            clientSocket?.soTimeout = 30_000 // 30 seconds
-                            clientSocket?.let { handleIncomingConnection(it) }
-                        } catch (e: Exception) {
-                            if (isListening) {
-                                TorManager.error("Error accepting connection", e)
-                            }
-                        }
-                    }
+                    val stream = bound.accept()
+                    // Set timeout to prevent hanging connections (DoS mitigation).
+                    // Persistent peers send keepalives well within this window.
+                    stream.setReadTimeout(PeerConnectionPool.INBOUND_READ_TIMEOUT_MS)
+                    handleIncomingConnection(stream)
                 } catch (e: Exception) {
-                    TorManager.error("Error binding server socket (Attempt ${retries + 1}): ${e.message}")
-                    retries++
-                    try {
-                        kotlinx.coroutines.delay(2000) // Wait 2 seconds before retrying
-                    } catch (ie: InterruptedException) {
-                        // ignore
-                    }
-                    if (retries > 10) {
-                        TorManager.error("Failed to bind server socket after 10 attempts. Incoming messages will fail.")
-                        isListening = false
+                    if (isListening && listener === bound) {
+                        TorManager.error("Error accepting connection", e)
+                    } else {
                         break
                     }
                 }
             }
         }
+        return bound.endpoint
+    }
+
+    private fun handleIncomingConnection(stream: TorStream) {
+        TorManager.log("Accepted connection from ${stream.description}")
+        
+        // Past the cap, fall back to one frame per connection so idle streams can't pin threads
+        val persistent = activeInbound.incrementAndGet() <= MAX_INBOUND_CONNECTIONS
+        serveConnection(PeerConnection(stream, inbound = true), singleFrame = !persistent) {
+            activeInbound.decrementAndGet()
+        }
     }
 
-    private fun handleIncomingConnection(socket: Socket) {
+    /**
+     * Reads frames off a (possibly pooled) stream until it closes, idles out or fails verification.
+     * Inbound streams from a peer whose key was already pinned are pooled for replies.
+     */
+    private fun serveConnection(connection: PeerConnection, singleFrame: Boolean = false, onClosed: () -> Unit = {}) {
         CoroutineScope(Dispatchers.IO).launch {
             try {
-                TorManager.log("Accepted connection from ${socket.remoteSocketAddress}")
-                
-                // Read using BinaryProtocol
-                val payload = BinaryProtocol.read(socket.getInputStream())
-                
-                TorManager.log("Received payload type: ${payload.type}, size: ${payload.data.size}")
-                
-                // --- SECURITY VERIFICATION ---
-                if (!verifyMessage(payload)) {
-                    TorManager.error("Security verification failed for message from ${payload.metadata["sender"]}")
-                    socket.close()
-                    return@launch
+                while (!connection.isClosed) {
+                    val header = try {
+                        BinaryProtocol.readHeader(connection.input)
+                    } catch (e: java.io.EOFException) {
+                        break // Peer closed the stream (legacy peers do this after every frame)
+                    }
+                    
+                    if (header.type == BinaryProtocol.TYPE_KEEPALIVE) continue
+                    connection.markActive()
+                    
+                    val claimedSender = header.metadata["sender"]
+                    val wasPinned = connection.inbound && connection.peerAddress == null &&
+                        claimedSender != null && repository.getContact(claimedSender)?.publicKey != null
+                    
+                    // Runs once the frame's signature checked out, possibly later on an ingest worker
+                    val onVerified = {
+                        // Only V3 peers keep the stream open and ack what we send back on it
+                        if (wasPinned && claimedSender != null && !singleFrame && header.version >= BinaryProtocol.VERSION_3) {
+                            // Signature matched the pinned key: safe to carry our frames back to this peer
+                            connectionPool.put(normalizeOnionAddress(claimedSender), connection)
+                        }
+                    }
+                    if (!receiveFrame(connection, connection.input, header, onVerified)) break
+                    if (BinaryProtocol.expectsDeliveryAck(header.type)) {
+                        val delivered = connection.onFrameReceived()
+                        if (singleFrame) {
+                            sendDeliveryAck(connection, delivered) // Before the stream is closed below
+                        } else {
+                            // Not from the reader: our own writer may be stuck until the peer reads again
+                            launch { sendDeliveryAck(connection, delivered) }
+                        }
+                    }
+                    if (singleFrame) break
                 }
-                
-                processIncomingMessage(payload)
-                
-                socket.close()
             } catch (e: Exception) {
-                TorManager.error("Error handling incoming connection", e)
+                if (!connection.isClosed) {
+                    TorManager.error("Error handling connection", e)
+                }
+            } finally {
+                connectionPool.remove(connection)
+                connection.close()
+                fileTransfers.onConnectionClosed(connection)
+                onClosed()
             }
         }
     }
+
+    /**
+     * Reads, verifies and processes one frame. Returns false if verification failed.
+     * Message frames are handed to [ingest] and verified there: a bad signature closes the
+     * connection from the worker instead, and [onVerified] runs once the check passed.
+     * [onVerified] only ever runs for a signature checked against the frame's sender.
+     */
+    private suspend fun receiveFrame(connection: PeerConnection, input: java.io.InputStream, header: BinaryProtocol.Header, onVerified: () -> Unit): Boolean {
+        // Unsigned transfer control frames: processed, but they prove nothing about who sent them
+        when (header.type) {
+            BinaryProtocol.TYPE_TRANSFER_CHUNK -> return receiveTransferChunk(connection, input, header)
+            BinaryProtocol.TYPE_TRANSFER_ACK -> {
+                BinaryProtocol.readBody(input, header)
+                fileTransfers.onAck(header.metadata, connection)
+                return true
+            }
+            BinaryProtocol.TYPE_DELIVERY_ACK -> {
+                BinaryProtocol.readBody(input, header)
+                header.metadata[BinaryProtocol.META_DELIVERED]?.toLongOrNull()?.let { connection.onDeliveryAck(it) }
+                return true
+            }
+        }
+        
+        val handled = when (header.type) {
+            BinaryProtocol.TYPE_TRANSFER_START -> receiveTransferStart(connection, input, header)
+            BinaryProtocol.TYPE_READ_RECEIPT -> receiveReadReceipt(input, header)
+            else -> if (header.type != Message.TYPE_TEXT && header.isDigestSigned) receiveStreamedMedia(input, header) else null
+        }
+        if (handled != null) {
+            if (handled) onVerified()
+            return handled
+        }
+        
+        val payload = BinaryProtocol.readBody(input, header)
+        
+        TorManager.log("Received payload type: ${payload.type}, size: ${payload.data.size}")
+        
+        // --- SECURITY VERIFICATION --- (on an ingest worker; the reader moves on to the next frame)
+        ingest.submit(payload, onVerified, onRejected = { connection.close() })
+        return true
+    }
     
-    private suspend fun verifyMessage(payload: MessagePayload): Boolean {
+    private suspend fun receiveReadReceipt(input: java.io.InputStream, header: BinaryProtocol.Header): Boolean {
+        val payload = BinaryProtocol.readBody(input, header)
+        if (!verifyMessage(payload)) {
+            TorManager.error("Security verification failed for receipt from ${header.metadata["sender"]}")
+            return false
+        }
+        val sender = payload.metadata["sender"] ?: return false
+        val readUpTo = payload.metadata[BinaryProtocol.META_READ_UP_TO]?.toLongOrNull() ?: return true
+        repository.markMessagesAsReadByPeer(sender, readUpTo)
+        TorManager.log("Received READ receipt from $sender up to $readUpTo")
+        return true
+    }
+
+    private suspend fun receiveTransferStart(connection: PeerConnection, input: java.io.InputStream, header: BinaryProtocol.Header): Boolean {
+        val payload = BinaryProtocol.readBody(input, header)
+        val fileDigest = header.metadata[FileTransferManager.META_FILE_SHA256]?.let { FileTransferManager.fromHex(it) }
+        
+        // --- SECURITY VERIFICATION ---
+        // Signature covers metadata + whole-file digest; the digest is re-checked after assembly
+        if (fileDigest == null || !header.isDigestSigned || !verifyMessage(payload, fileDigest)) {
+            TorManager.error("Security verification failed for transfer from ${header.metadata["sender"]}")
+            return false
+        }
+        
+        val step = fileTransfers.openIncoming(payload, connection)
+        sendTransferAck(connection, step.ack)
+        step.assembleKey?.let { assembleTransfer(it, step.ack) }
+        return true
+    }
+
+    private suspend fun receiveTransferChunk(connection: PeerConnection, input: java.io.InputStream, header: BinaryProtocol.Header): Boolean {
+        if (header.payloadLength > FileTransferManager.CHUNK_SIZE) {
+            throw IllegalArgumentException("Chunk invalid size: ${header.payloadLength}")
+        }
+        val chunk = BinaryProtocol.readBody(input, header)
+        val step = fileTransfers.acceptChunk(chunk, connection)
+        sendTransferAck(connection, step.ack)
+        step.assembleKey?.let { assembleTransfer(it, step.ack) }
+        return true
+    }
+
+    /**
+     * Assembles a complete transfer off the reader. Until it is done, acks at the full length
+     * ([lastAck]) keep the sender waiting for DONE; they go to whichever stream carries the
+     * transfer by then, which may be a retried START's.
+     */
+    private fun assembleTransfer(key: String, lastAck: FileTransferManager.TransferAck) {
+        val transferId = lastAck.transferId
+        CoroutineScope(Dispatchers.IO).launch {
+            val progress = launch {
+                while (true) {
+                    kotlinx.coroutines.delay(FileTransferManager.ACK_TIMEOUT_MS / 3)
+                    fileTransfers.incomingConnection(key)?.let { sendTransferAckQuietly(it, lastAck) }
+                }
+            }
+            val result = try {
+                fileTransfers.completeIncoming(key)
+            } catch (e: Exception) {
+                TorManager.error("Transfer $transferId: assembly failed", e)
+                FileTransferManager.AssemblyResult(FileTransferManager.TransferAck(transferId, 0L, FileTransferManager.STATUS_RESET), null)
+            } finally {
+                progress.cancel()
+            }
+            if (result == null) return@launch // Already being assembled, or nothing left to do
+            
+            result.completed?.let { ingest.submitVerified(it.payload, it.mediaPath) }
+            fileTransfers.incomingConnection(key)?.let {
+                sendTransferAckQuietly(it, result.ack)
+                fileTransfers.finishIncoming(key, it)
+            }
+        }
+    }
+
+    private fun sendTransferAckQuietly(connection: PeerConnection, ack: FileTransferManager.TransferAck) {
+        try {
+            sendTransferAck(connection, ack)
+        } catch (e: Exception) {
+            // The sender retries with a new START and gets the outcome then
+            TorManager.log("Transfer ${ack.transferId}: ack not sent (${e.message})")
+        }
+    }
+
+    private fun sendDeliveryAck(connection: PeerConnection, delivered: Long) {
+        val payload = MessagePayload(BinaryProtocol.TYPE_DELIVERY_ACK, mapOf(
+            BinaryProtocol.META_DELIVERED to delivered.toString()
+        ), ByteArray(0), version = BinaryProtocol.VERSION_3)
+        try {
+            connection.send { BinaryProtocol.write(it, payload) }
+        } catch (e: Exception) {
+            // Legacy senders hang up right after writing and never read it
+        }
+    }
+
+    private fun sendTransferAck(connection: PeerConnection, ack: FileTransferManager.TransferAck) {
+        val payload = MessagePayload(BinaryProtocol.TYPE_TRANSFER_ACK, mapOf(
+            FileTransferManager.META_TRANSFER_ID to ack.transferId,
+            FileTransferManager.META_OFFSET to ack.offset.toString(),
+            FileTransferManager.META_STATUS to ack.status
+        ), ByteArray(0), version = BinaryProtocol.VERSION_3) // Only chunk-capable (V3) peers send transfers
+        connection.send { BinaryProtocol.write(it, payload) }
+    }
+
+    /**
+     * Streams a digest-signed media payload straight into encrypted storage.
+     * The file is only kept if the signature over (metadata + SHA-256) verifies.
+     */
+    private suspend fun receiveStreamedMedia(input: java.io.InputStream, header: BinaryProtocol.Header): Boolean {
+        val defaultName = when (header.type) {
+            Message.TYPE_IMAGE -> "image_${System.currentTimeMillis()}.jpg"
+            Message.TYPE_AUDIO -> "voice_${System.currentTimeMillis()}.m4a"
+            else -> "file_${System.currentTimeMillis()}"
+        }
+        // Unverified bytes go to a name of our choosing; the header can't pick (and so replace) a stored file
+        val file = repository.newMediaFile(header.metadata["filename"] ?: defaultName)
+        
+        TorManager.log("Streaming payload type: ${header.type}, size: ${header.payloadLength} to ${file.name}")
+        
+        var accepted = false
+        try {
+            val body = repository.openMediaOutput(file).use { sink ->
+                BinaryProtocol.readStreamingBody(input, header, sink)
+            }
+            
+            // Metadata only; the payload is represented by its digest
+            val payload = MessagePayload(header.type, header.metadata, ByteArray(0), body.signature, body.senderPublicKey, header.rawMetadata, header.version)
+            
+            // --- SECURITY VERIFICATION ---
+            if (!verifyMessage(payload, body.payloadDigest)) {
+                TorManager.error("Security verification failed for streamed message from ${header.metadata["sender"]}")
+                return false
+            }
+            
+            accepted = true
+            ingest.submitVerified(payload, file.absolutePath)
+            return true
+        } finally {
+            // Never leave unverified or truncated media on disk
+            if (!accepted) file.delete()
+        }
+    }
+    
+    private suspend fun verifyMessage(payload: MessagePayload, payloadDigest: ByteArray? = null): Boolean {
         try {
             val senderOnion = payload.metadata["sender"] ?: return false
             val signature = payload.signature ?: return false
-            val publicKey = payload.senderPublicKey ?: return false
             val rawMetadata = payload.rawMetadata ?: return false // Must have raw bytes for verification
             
+            // Frames carry either a key (raw 32 bytes, or legacy Tink JSON) or just the id of a key we pinned
+            val existingContact = repository.getContact(senderOnion)
+            val pinnedKey = existingContact?.publicKey?.let { securityManager.decodeStoredKey(it) }
+            val frameKey = payload.senderPublicKey?.let { securityManager.toRawPublicKey(it) ?: return false }
+            val publicKey = frameKey
+                ?: pinnedKey?.takeIf { payload.metadata[BinaryProtocol.META_KEY_ID] == securityManager.keyId(it) }
+                ?: return false
+            
             // 1. Verify Signature
             val verifier = securityManager.getVerifierForPeer(publicKey)
-            val dataToVerify = rawMetadata + payload.data
+            val dataToVerify = if (payloadDigest != null) {
+                BinaryProtocol.digestSignedBytes(rawMetadata, payloadDigest)
+            } else {
+                rawMetadata + payload.data
+            }
             try {
-                verifier.verify(signature, dataToVerify)
+                securityManager.verify(verifier, signature, dataToVerify)
             } catch (e: Exception) {
                 TorManager.error("Signature invalid for $senderOnion", e)
                 return false
@@ -152,24 +417,28 @@ class P2PConnectionManager(
             }
             
             // 3. TOFU (Trust On First Use) / Key Pinning
-            val existingContact = repository.getContact(senderOnion)
+            val encodedKey = securityManager.encodeStoredKey(publicKey)
             if (existingContact != null) {
                 if (existingContact.publicKey != null) {
-                    val encodedKey = android.util.Base64.encodeToString(publicKey, android.util.Base64.NO_WRAP)
-                    if (existingContact.publicKey != encodedKey) {
+                    if (pinnedKey == null || !pinnedKey.contentEquals(publicKey)) {
                         TorManager.error("SECURITY ALERT: Man-in-the-Middle detected! Key mismatch for $senderOnion. stored=${existingContact.publicKey}, received=$encodedKey")
                         return false
                     }
+                    if (existingContact.publicKey != encodedKey) {
+                        // Same key pinned in the legacy Tink JSON form: rewrite it as the raw key
+                        TorManager.log("Migrating pinned key of $senderOnion to raw Ed25519.")
+                        repository.updateContactKey(senderOnion, encodedKey)
+                    }
                 } else {
                     // First time seeing a key for this contact (Migration)
                     TorManager.log("Migrating contact $senderOnion to secure key.")
-                    val encodedKey = android.util.Base64.encodeToString(publicKey, android.util.Base64.NO_WRAP)
                     repository.updateContactKey(senderOnion, encodedKey)
                 }
             } else {
                  TorManager.log("New contact $senderOnion. Trusting key (TOFU).")
             }
             
+            protocolNegotiator.onVerifiedFrame(normalizeOnionAddress(senderOnion), payload.version, payload.metadata)
             return true
         } catch (e: Exception) {
             TorManager.error("Verification error", e)
@@ -177,14 +446,20 @@ class P2PConnectionManager(
         }
     }
 
-    private suspend fun processIncomingMessage(payload: MessagePayload) {
+    /**
+     * Turns a verified payload into the message to store; null when there is nothing to store.
+     * [receivedAt] is the local arrival time, used for ordering.
+     */
+    private suspend fun toIncomingMessage(payload: MessagePayload, storedMediaPath: String?, receivedAt: Long): MessageIngest.Accepted? {
         try {
             val sender = payload.metadata["sender"] ?: "unknown"
             val senderTs = payload.metadata["timestamp"]?.toLongOrNull() ?: System.currentTimeMillis()
             
             // Extract Public Key for saving contact securely
-            val publicKeyBytes = payload.senderPublicKey
-            val publicKeyStr = publicKeyBytes?.let { android.util.Base64.encodeToString(it, android.util.Base64.NO_WRAP) }
+            // Stored as the raw Ed25519 key; frames carrying only a key id come from already pinned contacts
+            val publicKeyStr = payload.senderPublicKey
+                ?.let { securityManager.toRawPublicKey(it) }
+                ?.let { securityManager.encodeStoredKey(it) }
             
             if (payload.type == Message.TYPE_TEXT) {
                 val content = String(payload.data, Charsets.UTF_8)
@@ -194,10 +469,10 @@ class P2PConnectionManager(
                     val timestampStr = content.removePrefix("CMD:READ:")
                     val timestamp = timestampStr.toLongOrNull()
                     if (timestamp != null) {
-                        repository.markMessageAsReadByPeer(timestamp)
+                        repository.markMessagesAsReadByPeer(sender, timestamp)
                         TorManager.log("Received READ receipt for message at $timestamp")
                     }
-                    return
+                    return null
                 }
 
                 // Regular Text Message
@@ -223,80 +498,111 @@ class P2PConnectionManager(
                     senderOnionAddress = sender,
                     receiverOnionAddress = myAddress,
                     content = content,
-                    timestamp = System.currentTimeMillis(), // Our local time for ordering
+                    timestamp = receivedAt, // Our local time for ordering
                     isMine = false,
                     type = Message.TYPE_TEXT,
                     senderTimestamp = senderTs, // Store for receipt
                     replyToContent = replyContent, // Include reply context if present
                     replyToMessageId = replyToId
                 )
-                repository.sendMessage(message, publicKeyStr) // Updated to save key
-                TorManager.log("Message saved from $sender")
+                TorManager.log("Message accepted from $sender")
+                return MessageIngest.Accepted(message, publicKeyStr) // Key saved with the contact
             } else if (payload.type == Message.TYPE_IMAGE) {
                 // Handle Image
                 val filename = payload.metadata["filename"] ?: "image_${System.currentTimeMillis()}.jpg"
-                val path = repository.saveIncomingMedia(filename, payload.data)
+                val path = storedMediaPath ?: repository.saveIncomingMedia(filename, payload.data)
                 
                 val myAddress = torManager.getOnionHostname() ?: "unknown"
                 val message = Message(
                     senderOnionAddress = sender,
                     receiverOnionAddress = myAddress,
                     content = "📷 Image",
-                    timestamp = System.currentTimeMillis(),
+                    timestamp = receivedAt,
                     isMine = false,
                     type = Message.TYPE_IMAGE,
                     mediaPath = path,
                     senderTimestamp = senderTs
                 )
-                repository.sendMessage(message, publicKeyStr)
                 TorManager.log("Image received and saved from $sender at $path")
+                return MessageIngest.Accepted(message, publicKeyStr)
             } else if (payload.type == Message.TYPE_AUDIO) {
                  // Handle Audio
                 val filename = payload.metadata["filename"] ?: "voice_${System.currentTimeMillis()}.m4a"
-                val path = repository.saveIncomingMedia(filename, payload.data)
+                val path = storedMediaPath ?: repository.saveIncomingMedia(filename, payload.data)
                 
                 val myAddress = torManager.getOnionHostname() ?: "unknown"
                 val message = Message(
                     senderOnionAddress = sender,
                     receiverOnionAddress = myAddress,
                     content = "🎤 Voice Message",
-                    timestamp = System.currentTimeMillis(),
+                    timestamp = receivedAt,
                     isMine = false,
                     type = Message.TYPE_AUDIO,
                     mediaPath = path,
                     senderTimestamp = senderTs
                 )
-                repository.sendMessage(message, publicKeyStr)
-
                 TorManager.log("Voice message received and saved from $sender at $path")
+                return MessageIngest.Accepted(message, publicKeyStr)
             } else if (payload.type == 3) { // TYPE_FILE
                  // Handle Generic File
                 val filename = payload.metadata["filename"] ?: "file_${System.currentTimeMillis()}"
-                val path = repository.saveIncomingMedia(filename, payload.data)
+                val path = storedMediaPath ?: repository.saveIncomingMedia(filename, payload.data)
                 
                 val myAddress = torManager.getOnionHostname() ?: "unknown"
                 val message = Message(
                     senderOnionAddress = sender,
                     receiverOnionAddress = myAddress,
                     content = "📎 $filename", // Replicate content format
-                    timestamp = System.currentTimeMillis(),
+                    timestamp = receivedAt,
                     isMine = false,
                     type = 3, // TYPE_FILE
                     mediaPath = path,
                     senderTimestamp = senderTs
                 )
-                repository.sendMessage(message, publicKeyStr)
                 TorManager.log("File received and saved from $sender at $path")
+                return MessageIngest.Accepted(message, publicKeyStr)
             } else {
                 TorManager.log("Received non-text message type: ${payload.type} (Not fully supported yet)")
             }
         } catch (e: Exception) {
             TorManager.error("Error processing message", e)
         }
+        return null
     }
+
+    fun ingestMetrics(): MessageIngest.Metrics = ingest.metrics()
     
-    suspend fun sendReadReceipt(recipientOnion: String, messageTimestamp: Long) {
-        sendMessage(recipientOnion, "CMD:READ:$messageTimestamp")
+    /**
+     * Queues a read receipt; receipts to the same peer are coalesced into one high-water mark.
+     */
+    fun sendReadReceipt(recipientOnion: String, messageTimestamp: Long) {
+        readReceipts.onRead(recipientOnion, messageTimestamp)
+    }
+
+    private suspend fun sendReadReceiptFrame(recipientOnion: String, readUpTo: Long): Boolean {
+        val cleanAddress = normalizeOnionAddress(recipientOnion)
+        val version = protocolNegotiator.versionFor(cleanAddress)
+        if (version < BinaryProtocol.VERSION_3) {
+            // Legacy peers only understand the magic text command
+            return sendMessage(recipientOnion, "CMD:READ:$readUpTo")
+        }
+        
+        val metadata = mapOf(
+            "sender" to (torManager.getOnionHostname() ?: "unknown"),
+            "timestamp" to System.currentTimeMillis().toString(),
+            BinaryProtocol.META_READ_UP_TO to readUpTo.toString()
+        ) + keyMetadata(recipientOnion, version)
+        val metadataBytes = BinaryProtocol.encodeMetadata(metadata, version)
+        
+        val signature = try {
+            securityManager.sign(metadataBytes)
+        } catch (e: Exception) {
+            TorManager.error("Signing failed", e)
+            return false
+        }
+        
+        val payload = MessagePayload(BinaryProtocol.TYPE_READ_RECEIPT, metadata, ByteArray(0), frameSignature(signature, version), frameKey(cleanAddress, version), metadataBytes, version)
+        return sendMessagePayload(recipientOnion, payload)
     }
 
     suspend fun sendMessage(recipientOnion: String, content: String, replyToContent: String? = null, replyToTimestamp: Long? = null, replyToSender: String? = null): Boolean {
@@ -316,34 +622,270 @@ class P2PConnectionManager(
             metadata["replyToSender"] = replyToSender
         }
         
+        val cleanAddress = normalizeOnionAddress(recipientOnion)
+        val version = protocolNegotiator.versionFor(cleanAddress)
+        metadata.putAll(protocolNegotiator.advertisement(version))
+        metadata.putAll(keyMetadata(recipientOnion, version))
+        
         // Serialize metadata deterministically for signing
-        val gson = com.google.gson.Gson()
-        val metadataBytes = gson.toJson(metadata).toByteArray(Charsets.UTF_8)
+        val metadataBytes = BinaryProtocol.encodeMetadata(metadata, version)
         
         val data = content.toByteArray(Charsets.UTF_8)
         
         // --- SIGNING ---
         val signature = try {
-            securityManager.signer.sign(metadataBytes + data)
+            securityManager.sign(metadataBytes + data)
         } catch (e: Exception) {
             TorManager.error("Signing failed", e)
             return false
         }
-        val myKey = securityManager.getMyPublicKey()
         
-        val payload = MessagePayload(Message.TYPE_TEXT, metadata, data, signature, myKey, metadataBytes)
+        val payload = MessagePayload(Message.TYPE_TEXT, metadata, data, frameSignature(signature, version), frameKey(cleanAddress, version), metadataBytes, version)
         
         return sendMessagePayload(recipientOnion, payload)
     }
 
+    /**
+     * Signs and streams a media file from the encrypted store.
+     * For V3 peers the signature covers metadata + SHA-256(payload), so the file is never loaded into memory.
+     * Large files use the resumable chunked transfer when the peer supports it.
+     */
+    suspend fun sendMediaFile(recipientOnion: String, type: Int, filename: String, media: com.example.anomess.data.StoredMedia): Boolean {
+        // Hard cap on concurrent streams (and therefore on transfer buffer memory)
+        return mediaStreamPermits.withPermit {
+            if (media.length >= FileTransferManager.CHUNKED_THRESHOLD) {
+                try {
+                    return@withPermit sendChunked(recipientOnion, type, filename, media)
+                } catch (e: FileTransferManager.PeerUnsupportedException) {
+                    TorManager.log("$recipientOnion does not support chunked transfers, sending whole file")
+                }
+            }
+            
+            val payload = signMediaPayload(recipientOnion, type, filename, media) ?: return@withPermit false
+            sendFrame(recipientOnion) { output ->
+                val source = repository.getDecryptedInputStream(payload.mediaPath)
+                    ?: throw java.io.FileNotFoundException("Media missing: ${payload.mediaPath}")
+                source.use { BinaryProtocol.writeStreaming(output, payload, it) }
+            }
+        }
+    }
+
+    /**
+     * V3 peers get the signature over metadata + SHA-256(payload). Legacy (V2) peers only verify
+     * metadata + payload, so for them the file is read once to sign it the old way; [digestSigned]
+     * forces the digest form (TRANSFER_START, which only V3 peers accept anyway).
+     */
+    private suspend fun signMediaPayload(recipientOnion: String, type: Int, filename: String, media: com.example.anomess.data.StoredMedia, extraMetadata: Map<String, String> = emptyMap(), digestSigned: Boolean = false): MediaPayload? {
+        val myAddress = torManager.getOnionHostname() ?: "unknown"
+        val cleanAddress = normalizeOnionAddress(recipientOnion)
+        val version = protocolNegotiator.versionFor(cleanAddress)
+        val useDigest = digestSigned || version >= BinaryProtocol.VERSION_3
+        val metadata = mapOf(
+            "sender" to myAddress,
+            "filename" to filename,
+            "timestamp" to System.currentTimeMillis().toString()
+        ) + (if (useDigest) mapOf(BinaryProtocol.META_PAYLOAD_DIGEST to BinaryProtocol.DIGEST_SHA256) else emptyMap()) +
+            extraMetadata + protocolNegotiator.advertisement(version) + keyMetadata(recipientOnion, version)
+        val metadataBytes = BinaryProtocol.encodeMetadata(metadata, version)
+        
+        // --- SIGNING ---
+        val signature = try {
+            val signed = if (useDigest) {
+                BinaryProtocol.digestSignedBytes(metadataBytes, media.sha256)
+            } else {
+                metadataBytes + repository.readMediaBytes(media.path)
+            }
+            securityManager.sign(signed)
+        } catch (e: Exception) {
+            TorManager.error("Signing failed", e)
+            return null
+        }
+        
+        return MediaPayload(type, metadata, metadataBytes, media.path, media.length, frameSignature(signature, version), frameKey(cleanAddress, version), version)
+    }
+
+    /**
+     * V3 key pinning metadata: our key id, plus the id of the key we pinned for the recipient
+     * (which tells it that it may stop attaching its key to frames for us).
+     */
+    private suspend fun keyMetadata(recipientOnion: String, version: Int): Map<String, String> {
+        if (version < BinaryProtocol.VERSION_3) return emptyMap()
+        val metadata = mutableMapOf(BinaryProtocol.META_KEY_ID to securityManager.myKeyId)
+        val contact = repository.getContact(recipientOnion) ?: repository.getContact(normalizeOnionAddress(recipientOnion))
+        contact?.publicKey?.let { securityManager.decodeStoredKey(it) }?.let {
+            metadata[BinaryProtocol.META_PEER_KEY_ID] = securityManager.keyId(it)
+        }
+        return metadata
+    }
+
+    // V2 peers need the Tink JSON keyset; V3 peers get the raw key, or nothing once they pinned it
+    private fun frameKey(cleanAddress: String, version: Int): ByteArray? {
+        return when {
+            version < BinaryProtocol.VERSION_3 -> securityManager.getMyPublicKey()
+            protocolNegotiator.hasPinnedKey(cleanAddress, securityManager.myKeyId) -> null
+            else -> securityManager.getMyRawPublicKey()
+        }
+    }
+
+    private fun frameSignature(signature: ByteArray, version: Int): ByteArray {
+        return if (version >= BinaryProtocol.VERSION_3) securityManager.rawSignature(signature) else signature
+    }
+
+    private suspend fun sendChunked(recipientOnion: String, type: Int, filename: String, media: com.example.anomess.data.StoredMedia): Boolean {
+        val state = fileTransfers.outgoingState(normalizeOnionAddress(recipientOnion), media)
+        if (state.ackedOffset > 0) {
+            TorManager.log("Transfer ${state.transferId}: last acknowledged offset ${state.ackedOffset}/${media.length}")
+        }
+        val sent = sendWithRetries(recipientOnion) { cleanAddress, timeoutMs ->
+            attemptChunkedTransfer(cleanAddress, state, type, filename, media, timeoutMs)
+        }
+        if (sent) fileTransfers.finishOutgoing(state)
+        return sent
+    }
+
+    /**
+     * One resumable attempt: START, learn the receiver's offset, stream chunks with a
+     * bounded window of unacknowledged bytes, then wait for the DONE ack.
+     */
+    private suspend fun attemptChunkedTransfer(
+        cleanAddress: String,
+        state: FileTransferManager.OutgoingState,
+        type: Int,
+        filename: String,
+        media: com.example.anomess.data.StoredMedia,
+        timeoutMs: Int
+    ): Boolean {
+        // Re-signed on every attempt so the timestamp stays fresh for the receiver's replay check
+        val start = signMediaPayload(cleanAddress, type, filename, media, mapOf(
+            FileTransferManager.META_TRANSFER_ID to state.transferId,
+            FileTransferManager.META_MEDIA_TYPE to type.toString(),
+            FileTransferManager.META_TOTAL_LENGTH to media.length.toString(),
+            FileTransferManager.META_FILE_SHA256 to FileTransferManager.toHex(media.sha256)
+        ), digestSigned = true) ?: return false
+        val startPayload = MessagePayload(BinaryProtocol.TYPE_TRANSFER_START, start.metadata, ByteArray(0), start.signature, start.senderPublicKey, start.rawMetadata, start.version)
+        
+        // Peers not yet seen speaking V3 get a stream of their own; a legacy one hangs up without acking
+        val pooled = protocolNegotiator.versionFor(cleanAddress) >= BinaryProtocol.VERSION_3
+        val (connection, reused) = if (pooled) {
+            connectionPool.acquire(cleanAddress) { openConnection(cleanAddress, timeoutMs) }
+        } else {
+            openConnection(cleanAddress, timeoutMs) to false
+        }
+        val tracker = fileTransfers.track(state.transferId, connection)
+        
+        suspend fun awaitAck(): FileTransferManager.TransferAck {
+            val ack = kotlinx.coroutines.withTimeoutOrNull(FileTransferManager.ACK_TIMEOUT_MS) { tracker.acks.receive() }
+                ?: throw java.net.SocketTimeoutException("No transfer ack from $cleanAddress")
+            if (ack.status == FileTransferManager.STATUS_RESET) {
+                throw java.io.IOException("Receiver reset transfer ${state.transferId}")
+            }
+            fileTransfers.recordAck(state, ack.offset)
+            return ack
+        }
+        
+        try {
+            connection.send { BinaryProtocol.write(it, startPayload) }
+            
+            val startAck = try {
+                awaitAck()
+            } catch (e: kotlinx.coroutines.channels.ClosedReceiveChannelException) {
+                // A fresh stream that closes without any ack is a legacy peer
+                if (!reused) throw FileTransferManager.PeerUnsupportedException("No chunked transfer support at $cleanAddress")
+                throw java.io.IOException("Pooled stream to $cleanAddress closed")
+            }
+            if (startAck.status == FileTransferManager.STATUS_DONE) {
+                // Completed on an earlier attempt whose DONE never reached us
+                TorManager.log("Transfer ${state.transferId} already complete at $cleanAddress")
+                return true
+            }
+            var acked = startAck.offset
+            TorManager.log("Transfer ${state.transferId}: sending from $acked/${media.length}")
+            
+            val source = repository.getDecryptedInputStream(media.path)
+                ?: throw java.io.FileNotFoundException("Media missing: ${media.path}")
+            source.use { input ->
+                skipFully(input, acked)
+                val buffer = ByteArray(FileTransferManager.CHUNK_SIZE)
+                var offset = acked
+                while (offset < media.length) {
+                    while (offset - acked >= FileTransferManager.WINDOW_BYTES) {
+                        acked = awaitAck().offset
+                    }
+                    val read = readChunk(input, buffer)
+                    if (read <= 0) throw java.io.IOException("Media shorter than expected: ${media.path}")
+                    
+                    val chunkData = buffer.copyOf(read)
+                    val chunk = MessagePayload(BinaryProtocol.TYPE_TRANSFER_CHUNK, mapOf(
+                        FileTransferManager.META_TRANSFER_ID to state.transferId,
+                        FileTransferManager.META_OFFSET to offset.toString(),
+                        FileTransferManager.META_CHUNK_SHA256 to FileTransferManager.toHex(java.security.MessageDigest.getInstance("SHA-256").digest(chunkData))
+                    ), chunkData, version = BinaryProtocol.VERSION_3)
+                    connection.send { BinaryProtocol.write(it, chunk) }
+                    offset += read
+                }
+            }
+            
+            while (true) {
+                val ack = awaitAck()
+                if (ack.status == FileTransferManager.STATUS_DONE) {
+                    TorManager.log("Transfer ${state.transferId} complete to $cleanAddress")
+                    return true
+                }
+            }
+        } catch (e: Exception) {
+            if (e !is FileTransferManager.PeerUnsupportedException) {
+                connectionPool.remove(connection)
+                connection.close()
+            }
+            throw e
+        } finally {
+            fileTransfers.untrack(state.transferId, tracker)
+            if (!pooled) connection.close()
+        }
+    }
+
+    private fun skipFully(input: java.io.InputStream, count: Long) {
+        var remaining = count
+        while (remaining > 0) {
+            val skipped = input.skip(remaining)
+            if (skipped <= 0) {
+                if (input.read() < 0) throw java.io.EOFException("Cannot resume at $count")
+                remaining--
+            } else {
+                remaining -= skipped
+            }
+        }
+    }
+
+    private fun readChunk(input: java.io.InputStream, buffer: ByteArray): Int {
+        var filled = 0
+        while (filled < buffer.size) {
+            val read = input.read(buffer, filled, buffer.size - filled)
+            if (read < 0) break
+            filled += read
+        }
+        return filled
+    }
+
     suspend fun sendMessagePayload(recipientOnion: String, payload: MessagePayload): Boolean {
+        return sendFrame(recipientOnion) { output -> BinaryProtocol.write(output, payload) }
+    }
+
+    private suspend fun sendFrame(recipientOnion: String, writeFrame: (java.io.OutputStream) -> Unit): Boolean {
+        return sendWithRetries(recipientOnion) { cleanAddress, timeoutMs ->
+            attemptSend(cleanAddress, writeFrame, timeoutMs)
+        }
+    }
+
+    private suspend fun sendWithRetries(recipientOnion: String, attempt: suspend (String, Int) -> Boolean): Boolean {
         return withContext(Dispatchers.IO) {
-            // 0a. Wait if Tor is restarting - don't try to send during restart!
-            var waitCount = 0
-            while (torManager.isRestarting && waitCount < 60) { // Max 60 seconds wait
-                TorManager.log("Tor is restarting, waiting before send... (${waitCount}s)")
-                kotlinx.coroutines.delay(1000)
-                waitCount++
+            // 0a. Tor starting/restarting: suspend until it's ready instead of failing the send
+            val torState = torManager.state.value
+            if (torState.isTransitional) {
+                TorManager.log("Tor is ${torState}, waiting before send...")
+                if (!torManager.awaitReady(TOR_READY_WAIT_MS)) {
+                    TorManager.log("Tor still not ready (${torManager.state.value}); trying anyway")
+                }
             }
             
             // 0b. Fail-Fast: Check Internet Connection
@@ -353,71 +895,67 @@ class P2PConnectionManager(
             }
 
             // Clean the address once
-            var cleanAddress = recipientOnion.replace("\\s".toRegex(), "")
-            if (cleanAddress.endsWith(".onion.onion")) {
-                cleanAddress = cleanAddress.removeSuffix(".onion")
-            }
-            if (!cleanAddress.endsWith(".onion")) {
-                cleanAddress = "$cleanAddress.onion"
-            }
+            val cleanAddress = normalizeOnionAddress(recipientOnion)
             
             // Check if this destination previously failed - request new circuit first
             if (failedDestinations.contains(cleanAddress)) {
                 TorManager.log("Destination $cleanAddress previously failed, requesting new circuit...")
-                torManager.requestNewCircuit()
+                torManager.rotateIsolation(cleanAddress)
                 failedDestinations.remove(cleanAddress)
-                kotlinx.coroutines.delay(1000) // Reduced wait
+                kotlinx.coroutines.delay(latency.retryDelayMs(cleanAddress, 1))
             }
             
             var lastException: Exception? = null
             
-            for (attempt in 1..MAX_SEND_RETRIES) {
+            for (attemptNo in 1..MAX_SEND_RETRIES) {
                 // Check network again before each attempt (user might have toggle wifi)
                 if (!isNetworkAvailable()) {
                      TorManager.error("Internet lost during retry. Aborting.")
                      return@withContext false
                 }
                 
+                // Timeout and pause come from this peer's measured connect latency
+                val pauseMs = latency.retryDelayMs(cleanAddress, attemptNo)
                 try {
-                    val timeoutMs = if (attempt == 1) INITIAL_TIMEOUT_MS else RETRY_TIMEOUT_MS
-                    val result = attemptSend(cleanAddress, payload, timeoutMs)
+                    val timeoutMs = latency.connectTimeoutMs(cleanAddress)
+                    val result = attempt(cleanAddress, timeoutMs)
                     if (result) {
                         // Success - clear any failure tracking
                         failedDestinations.remove(cleanAddress)
                         return@withContext true
                     }
+                } catch (e: FileTransferManager.PeerUnsupportedException) {
+                    throw e // Caller falls back to another mode, not a network failure
                 } catch (e: java.net.SocketTimeoutException) {
                     lastException = e
-                    TorManager.log("Attempt $attempt/$MAX_SEND_RETRIES timed out for $cleanAddress")
+                    TorManager.log("Attempt $attemptNo/$MAX_SEND_RETRIES timed out for $cleanAddress")
                     
-                    if (attempt < MAX_SEND_RETRIES) {
-                        // Request new circuit before retry
-                        TorManager.log("Requesting new Tor circuit before retry...")
-                        torManager.requestNewCircuit()
-                        kotlinx.coroutines.delay(2000)
+                    if (attemptNo < MAX_SEND_RETRIES) {
+                        // New circuit for this peer only before retry
+                        TorManager.log("Requesting new Tor circuit for $cleanAddress before retry...")
+                        torManager.rotateIsolation(cleanAddress)
+                        kotlinx.coroutines.delay(pauseMs)
                     }
                 } catch (e: java.net.SocketException) {
                     lastException = e
                     val msg = e.message ?: ""
-                    TorManager.log("Attempt $attempt/$MAX_SEND_RETRIES failed for $cleanAddress: $msg")
+                    TorManager.log("Attempt $attemptNo/$MAX_SEND_RETRIES failed for $cleanAddress: $msg")
                     
                     // SOCKS failures indicate routing issues - request new circuit
                     if (msg.contains("general failure") || msg.contains("Host unreachable")) {
-                        TorManager.log("SOCKS failure - requesting new circuit (no restart)")
-                        torManager.requestNewCircuit()
-                        // Wait a bit longer for new circuit
-                        kotlinx.coroutines.delay(5000)
+                        TorManager.log("SOCKS failure - rotating circuit for $cleanAddress (no restart)")
+                        torManager.rotateIsolation(cleanAddress)
                     }
                     
-                    if (attempt < MAX_SEND_RETRIES) {
-                        kotlinx.coroutines.delay(2000)
+                    if (attemptNo < MAX_SEND_RETRIES) {
+                        kotlinx.coroutines.delay(pauseMs)
                     }
                 } catch (e: Exception) {
                     lastException = e
-                    TorManager.log("Attempt $attempt/$MAX_SEND_RETRIES failed for $cleanAddress: ${e.message}")
+                    TorManager.log("Attempt $attemptNo/$MAX_SEND_RETRIES failed for $cleanAddress: ${e.message}")
                     
-                    if (attempt < MAX_SEND_RETRIES) {
-                        kotlinx.coroutines.delay(1000)
+                    if (attemptNo < MAX_SEND_RETRIES) {
+                        kotlinx.coroutines.delay(pauseMs)
                     }
                 }
             }
@@ -429,36 +967,97 @@ class P2PConnectionManager(
         }
     }
     
-    private fun attemptSend(cleanAddress: String, payload: MessagePayload, timeoutMs: Int): Boolean {
-        val socksPort = torManager.getSocksPort()
-        val proxy = Proxy(Proxy.Type.SOCKS, InetSocketAddress("127.0.0.1", socksPort))
+    private fun normalizeOnionAddress(address: String): String {
+        var cleanAddress = address.replace("\\s".toRegex(), "")
+        if (cleanAddress.endsWith(".onion.onion")) {
+            cleanAddress = cleanAddress.removeSuffix(".onion")
+        }
+        if (!cleanAddress.endsWith(".onion")) {
+            cleanAddress = "$cleanAddress.onion"
+        }
+        return cleanAddress
+    }
+
+    private suspend fun attemptSend(cleanAddress: String, writeFrame: (java.io.OutputStream) -> Unit, timeoutMs: Int): Boolean {
+        if (protocolNegotiator.versionFor(cleanAddress) < BinaryProtocol.VERSION_3) {
+            // Legacy peers read one frame per stream and never ack: dial fresh each time
+            val connection = openConnection(cleanAddress, timeoutMs)
+            try {
+                val writeStart = System.nanoTime()
+                connection.send(writeFrame)
+                latency.onWrite(cleanAddress, (System.nanoTime() - writeStart) / 1_000_000)
+                TorManager.log("Payload sent successfully to $cleanAddress")
+                return true
+            } finally {
+                connection.close()
+            }
+        }
         
-        TorManager.log("Connecting to $cleanAddress via SOCKS proxy on $socksPort (timeout: ${timeoutMs}ms)")
+        // A pooled stream may have died since last use; allow one immediate reconnect in that case
+        for (pass in 1..2) {
+            val (connection, reused) = connectionPool.acquire(cleanAddress) { openConnection(cleanAddress, timeoutMs) }
+            try {
+                val writeStart = System.nanoTime()
+                val sequence = connection.sendForDelivery(writeFrame)
+                latency.onWrite(cleanAddress, (System.nanoTime() - writeStart) / 1_000_000)
+                // Written is not delivered: the peer may close or evict the stream with the frame unread
+                if (!connection.awaitDelivery(sequence, timeoutMs.toLong())) {
+                    if (connection.isClosed) throw java.net.SocketException("Stream to $cleanAddress closed before delivery ack")
+                    throw java.net.SocketTimeoutException("No delivery ack from $cleanAddress")
+                }
+                TorManager.log("Payload delivered to $cleanAddress" + if (reused) " (pooled stream)" else "")
+                return true
+            } catch (e: Exception) {
+                connectionPool.remove(connection)
+                connection.close()
+                if (!reused) throw e
+                TorManager.log("Pooled stream to $cleanAddress broke (${e.message}), reconnecting...")
+            }
+        }
+        return false
+    }
+
+    private fun openConnection(cleanAddress: String, timeoutMs: Int): PeerConnection {
+        val socks = torManager.getSocksEndpoint() ?: throw java.net.SocketException("Tor SOCKS listener not available")
+        val (username, password) = torManager.isolationCredentials(cleanAddress)
         
-        val socket = Socket(proxy)
+        TorManager.log("Connecting to $cleanAddress via SOCKS proxy on ${socks.torrcValue} (timeout: ${timeoutMs}ms)")
+        
+        // Hostname goes to Tor unresolved (remote DNS); credentials isolate this peer's circuits
+        val connectStart = System.nanoTime()
+        val stream = try {
+            Socks5Connector.connect(socks, cleanAddress, 80, username, password, timeoutMs)
+        } catch (e: java.net.SocketTimeoutException) {
+            latency.onConnectTimeout(cleanAddress)
+            throw e
+        }
         
         try {
-            // Create UNRESOLVED socket address to force proxy resolution (Remote DNS)
-            val destAddr = InetSocketAddress.createUnresolved(cleanAddress, 80)
-            
-            socket.connect(destAddr, timeoutMs)
+            val connectMs = (System.nanoTime() - connectStart) / 1_000_000
+            latency.onConnected(cleanAddress, connectMs)
+            TorManager.log("Connected to $cleanAddress in ${connectMs}ms (learned timeout now ${latency.connectTimeoutMs(cleanAddress)}ms)")
             
-            // Write using BinaryProtocol
-            BinaryProtocol.write(socket.getOutputStream(), payload)
-            
-            socket.close()
-            TorManager.log("Payload sent successfully to $cleanAddress")
-            return true
+            val connection = PeerConnection(stream, inbound = false)
+            // Peer may send frames back over the same stream
+            serveConnection(connection)
+            return connection
         } catch (e: Exception) {
-            try { socket.close() } catch (_: Exception) {}
+            try { stream.close() } catch (_: Exception) {}
             throw e
         }
     }
 
+    /**
+     * Learned per-destination latency (connect SRTT/variance, current timeout), most recent first.
+     */
+    fun latencyDiagnostics(): List<LatencyEstimator.LatencyStats> = latency.diagnostics()
+
     fun stopListening() {
         isListening = false
+        connectionPool.closeAll()
         try {
-            serverSocket?.close()
+            listener?.close()
+            listener = null
         } catch (e: Exception) {
             Log.e(TAG, "Error closing server socket", e)
         }
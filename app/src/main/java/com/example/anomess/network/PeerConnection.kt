@@ -0,0 +1,108 @@
+package com.example.anomess.network
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.OutputStream
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * A long-lived Tor stream to one peer that carries many frames in both directions.
+ * Writes are serialized; reads are done by a single reader coroutine in P2PConnectionManager.
+ */
+class PeerConnection(
+    private val stream: TorStream,
+    val inbound: Boolean // True if the peer dialed our hidden service
+) {
+    val input = DataInputStream(BufferedInputStream(stream.input, BinaryProtocol.STREAM_CHUNK_SIZE))
+    private val output = BufferedOutputStream(stream.output, BinaryProtocol.STREAM_CHUNK_SIZE)
+    private val writeLock = ReentrantLock()
+
+    // Onion address this stream is pooled under (null until known/authenticated)
+    @Volatile var peerAddress: String? = null
+
+    // Last time a real (non-keepalive) frame went either way; drives idle eviction
+    @Volatile var lastActiveAt: Long = System.currentTimeMillis()
+        private set
+
+    private val closed = MutableStateFlow(false)
+    val isClosed: Boolean get() = closed.value
+
+    // Delivery acks: frames that expect one are counted in each direction, the reader acks its count
+    private var sentFrames = 0L // Under writeLock
+    private var receivedFrames = 0L // Reader coroutine only
+    private val deliveredFrames = MutableStateFlow(0L)
+
+    fun send(writeFrame: (OutputStream) -> Unit) {
+        writeLock.lock()
+        try {
+            if (isClosed) throw java.net.SocketException("Connection closed")
+            writeFrame(output)
+            output.flush()
+            markActive()
+        } finally {
+            writeLock.unlock()
+        }
+    }
+
+    /**
+     * Sends a frame the peer acks (see [BinaryProtocol.expectsDeliveryAck]); returns its number for [awaitDelivery].
+     */
+    fun sendForDelivery(writeFrame: (OutputStream) -> Unit): Long {
+        writeLock.lock()
+        try {
+            send(writeFrame)
+            return ++sentFrames
+        } finally {
+            writeLock.unlock()
+        }
+    }
+
+    /**
+     * Waits until the peer acked frame [sequence]. False on timeout or if the stream closed first.
+     */
+    suspend fun awaitDelivery(sequence: Long, timeoutMs: Long): Boolean {
+        withTimeoutOrNull(timeoutMs) {
+            combine(deliveredFrames, closed) { delivered, isClosed -> delivered >= sequence || isClosed }.first { it }
+        }
+        return deliveredFrames.value >= sequence
+    }
+
+    fun onDeliveryAck(delivered: Long) {
+        deliveredFrames.update { maxOf(it, delivered) }
+    }
+
+    /**
+     * Counts a frame read off this stream that expects an ack; returns the count to ack.
+     */
+    fun onFrameReceived(): Long = ++receivedFrames
+
+    /**
+     * Sends a keepalive unless a frame is currently being written (which already proves liveness).
+     */
+    fun sendKeepalive() {
+        if (!writeLock.tryLock(0, TimeUnit.MILLISECONDS)) return
+        try {
+            if (isClosed) return
+            BinaryProtocol.writeKeepalive(output)
+            output.flush()
+        } finally {
+            writeLock.unlock()
+        }
+    }
+
+    fun markActive() {
+        lastActiveAt = System.currentTimeMillis()
+    }
+
+    fun close() {
+        closed.value = true
+        try { stream.close() } catch (_: Exception) {}
+    }
+}
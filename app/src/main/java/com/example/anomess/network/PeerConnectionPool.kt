@@ -0,0 +1,129 @@
+package com.example.anomess.network
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Bounded pool of persistent per-peer streams, keyed by onion address.
+ * After the first rendezvous, later frames to the same peer go out at stream latency.
+ */
+class PeerConnectionPool {
+
+    // Access-ordered so the eldest entry is the least recently used
+    private val connections = LinkedHashMap<String, PeerConnection>(16, 0.75f, true)
+    private val connectLocks = ConcurrentHashMap<String, Any>()
+    private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+    private var sweeper: Job? = null
+
+    companion object {
+        const val MAX_POOLED_CONNECTIONS = 8
+        const val KEEPALIVE_INTERVAL_MS = 30_000L
+        const val IDLE_TIMEOUT_MS = 5 * 60_000L // Close streams with no real traffic for 5 minutes
+        // Inbound side closes if even keepalives stop arriving
+        const val INBOUND_READ_TIMEOUT_MS = (KEEPALIVE_INTERVAL_MS * 5 / 2).toInt()
+    }
+
+    /**
+     * Returns the live pooled stream for [address], or opens one with [open].
+     * Concurrent callers for the same address share a single rendezvous.
+     * The boolean is true if an existing stream was reused.
+     */
+    fun acquire(address: String, open: () -> PeerConnection): Pair<PeerConnection, Boolean> {
+        val lock = connectLocks.getOrPut(address) { Any() }
+        synchronized(lock) {
+            get(address)?.let { return Pair(it, true) }
+            val connection = open()
+            put(address, connection)
+            return Pair(connection, false)
+        }
+    }
+
+    fun get(address: String): PeerConnection? {
+        synchronized(connections) {
+            val connection = connections[address] ?: return null
+            if (connection.isClosed) {
+                connections.remove(address)
+                return null
+            }
+            return connection
+        }
+    }
+
+    fun put(address: String, connection: PeerConnection) {
+        connection.peerAddress = address
+        val evicted = mutableListOf<PeerConnection>()
+        synchronized(connections) {
+            connections.put(address, connection)?.let { if (it !== connection) evicted.add(it) }
+            val iterator = connections.entries.iterator()
+            while (connections.size > MAX_POOLED_CONNECTIONS && iterator.hasNext()) {
+                val eldest = iterator.next()
+                iterator.remove()
+                evicted.add(eldest.value)
+            }
+        }
+        evicted.forEach {
+            TorManager.log("Closing pooled stream to ${it.peerAddress}")
+            it.close()
+        }
+        ensureSweeper()
+    }
+
+    fun remove(connection: PeerConnection) {
+        val address = connection.peerAddress ?: return
+        synchronized(connections) {
+            if (connections[address] === connection) connections.remove(address)
+        }
+    }
+
+    fun closeAll() {
+        val all = synchronized(connections) {
+            val copy = connections.values.toList()
+            connections.clear()
+            copy
+        }
+        all.forEach { it.close() }
+    }
+
+    private fun ensureSweeper() {
+        synchronized(this) {
+            if (sweeper?.isActive == true) return
+            sweeper = scope.launch {
+                while (isActive) {
+                    delay(KEEPALIVE_INTERVAL_MS)
+                    sweep()
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts idle streams and keeps the rest warm.
+     */
+    private fun sweep() {
+        val now = System.currentTimeMillis()
+        val snapshot = synchronized(connections) { connections.values.toList() }
+        for (connection in snapshot) {
+            if (connection.isClosed || now - connection.lastActiveAt > IDLE_TIMEOUT_MS) {
+                remove(connection)
+                connection.close()
+                continue
+            }
+            // Only the dialing side sends keepalives; the inbound side times out without them
+            if (!connection.inbound) {
+                try {
+                    connection.sendKeepalive()
+                } catch (e: Exception) {
+                    TorManager.log("Keepalive to ${connection.peerAddress} failed: ${e.message}")
+                    remove(connection)
+                    connection.close()
+                }
+            }
+        }
+    }
+}
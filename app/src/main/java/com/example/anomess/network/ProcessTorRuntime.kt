@@ -0,0 +1,210 @@
+package com.example.anomess.network
+
+import android.content.Context
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.util.Scanner
+
+/**
+ * Runs the bundled `libtor.so` as a child process.
+ * Tor's memory is outside the app's heap and a crashed Tor can simply be relaunched,
+ * at the cost of an exec per start and an orphan check against the previous app process
+ * (which would still hold the DataDirectory lock).
+ */
+class ProcessTorRuntime(
+    private val context: Context,
+    private val dataDirectory: TorDataDirectory,
+    private val sockets: TorSockets
+) : TorRuntime {
+
+    override val mode = TorRuntime.Mode.PROCESS
+
+    private var torProcess: Process? = null
+    private var exitingProcess: Process? = null
+    @Volatile private var unixControl = true
+    @Volatile private var outputReader: Thread? = null
+    @Volatile private var unixSocketError: String? = null
+
+    override val cookieFile: File get() = dataDirectory.cookieFile
+
+    override val isAlive: Boolean get() = torProcess?.isAlive == true
+
+    companion object {
+        private const val ORPHAN_EXIT_TIMEOUT_MS = 2_000L
+        private const val CONNECT_TIMEOUT_MS = 1_000
+        private const val OUTPUT_DRAIN_MS = 500L
+        // Tor's own complaints about a unix listener: "[warn] Unix domain sockets not supported...",
+        // "[warn] Before Tor can create a control socket in ...", "[err] ... unix:/..."
+        private val UNIX_SOCKET_ERROR = "\\[(warn|err)\\].*(unix|control socket)".toRegex(RegexOption.IGNORE_CASE)
+    }
+
+    override fun prepareDataDirectory(): Boolean = dataDirectory.prepare()
+
+    override fun torrcLines(unixSockets: Boolean): List<String> {
+        unixControl = unixSockets
+        val listeners = if (unixSockets) {
+            listOf(
+                "ControlPort ${TorEndpoint.Unix(sockets.control).torrcValue}",
+                "SocksPort ${TorEndpoint.Unix(sockets.socks).torrcValue} IsolateSOCKSAuth ExtendedErrors"
+            )
+        } else {
+            // Kernel-assigned ports can't clash; the control port is read back from the file
+            listOf(
+                "ControlPort auto",
+                "ControlPortWriteToFile ${sockets.controlPortFile.absolutePath}",
+                "SocksPort auto IsolateSOCKSAuth ExtendedErrors"
+            )
+        }
+        return listOf("DataDirectory ${dataDirectory.dir.absolutePath}") + listeners + "CookieAuthentication 1"
+    }
+
+    override suspend fun cleanupStale() {
+        // Destroy our managed process; avoid shell commands as they can hang or fail on unrooted devices
+        torProcess?.destroy()
+        exitingProcess = torProcess ?: exitingProcess
+        torProcess = null
+        // Wait for it to release its ports and DataDirectory lock instead of a fixed sleep
+        withContext(Dispatchers.IO) {
+            exitingProcess?.waitFor(ORPHAN_EXIT_TIMEOUT_MS, java.util.concurrent.TimeUnit.MILLISECONDS)
+        }
+        exitingProcess = null
+
+        haltOrphan()
+        // Tor recreates these on launch; stale ones would only point at a dead process
+        sockets.control.delete()
+        sockets.socks.delete()
+        sockets.controlPortFile.delete()
+    }
+
+    /**
+     * A Tor left by a previous app process keeps the DataDirectory lock. Its control listener is
+     * whichever the last torrc used: the unix socket, or the port it wrote to the port file.
+     */
+    private suspend fun haltOrphan() {
+        // Try to read auth cookie if it exists from previous run
+        val authFile = dataDirectory.cookieFile
+        val endpoint = if (sockets.control.exists()) TorEndpoint.Unix(sockets.control) else sockets.readControlPortFile()
+        if (!authFile.exists() || endpoint == null) {
+            TorManager.log("No control listener from a previous run; no orphan Tor to shut down.")
+            return
+        }
+        val client = TorControlClient({ endpoint.connect(CONNECT_TIMEOUT_MS) }, authFile)
+        try {
+            client.connect()
+        } catch (e: Exception) {
+            // Failure to connect means no Tor is running there. Good.
+            client.close()
+            TorManager.log("No orphan Tor found on control listener.")
+            return
+        }
+        // If we connected, something is running. Kill it nicely and wait for it to let go.
+        TorManager.log("Found running Tor instance. Sending HALT via Control Protocol...")
+        client.close("SIGNAL HALT")
+        val deadline = System.currentTimeMillis() + ORPHAN_EXIT_TIMEOUT_MS
+        while (System.currentTimeMillis() < deadline && reachable(endpoint)) delay(50)
+        TorManager.log("Orphan Tor shutdown command sent.")
+    }
+
+    override suspend fun launch(torrc: File): Boolean = withContext(Dispatchers.IO) {
+        // Locate Tor binary in nativeLibraryDir (Do NOT extract to cache, that fails W^X)
+        val torBin = locateBinary() ?: return@withContext false
+
+        val pb = ProcessBuilder(torBin.absolutePath, "-f", torrc.absolutePath)
+        val env = pb.environment()
+        env["HOME"] = context.cacheDir.absolutePath
+        env["LD_LIBRARY_PATH"] = context.applicationInfo.nativeLibraryDir
+
+        // Tor logs to stdout (see torrc) and reports early config errors there too: read both
+        pb.redirectErrorStream(true)
+
+        TorManager.log("Executing: ${pb.command()}")
+        val process = pb.start()
+        torProcess = process
+        unixSocketError = null
+
+        outputReader = Thread {
+            try {
+                val reader = Scanner(process.inputStream)
+                while (reader.hasNextLine()) {
+                    val line = reader.nextLine()
+                    TorManager.log("Tor: $line")
+                    if (unixControl && unixSocketError == null && UNIX_SOCKET_ERROR.containsMatchIn(line)) unixSocketError = line
+                }
+            } catch (e: Exception) {}
+        }.apply { start() }
+        true
+    }
+
+    override fun unixSocketError(): String? {
+        // A dead Tor has written everything; let the reader catch up with its last lines
+        if (torProcess?.isAlive != true) outputReader?.join(OUTPUT_DRAIN_MS)
+        return unixSocketError
+    }
+
+    override fun openControlStream(): TorStream {
+        val endpoint = if (unixControl) {
+            TorEndpoint.Unix(sockets.control)
+        } else {
+            sockets.readControlPortFile() ?: throw java.io.IOException("Control port not written yet")
+        }
+        return endpoint.connect(CONNECT_TIMEOUT_MS)
+    }
+
+    override fun stop(client: TorControlClient?) {
+        client?.close("SIGNAL HALT") // Ask nicely
+        torProcess?.destroy()
+        // The next launch waits for it to exit
+        exitingProcess = torProcess ?: exitingProcess
+        torProcess = null
+    }
+
+    override fun externalMemoryKb(): Long {
+        val pid = pidOf(torProcess ?: return 0) ?: return 0
+        return try {
+            File("/proc/$pid/status").readLines()
+                .firstOrNull { it.startsWith("VmRSS:") }
+                ?.split(Regex("\\s+"))?.getOrNull(1)?.toLongOrNull() ?: 0
+        } catch (e: Exception) {
+            0
+        }
+    }
+
+    private fun locateBinary(): File? {
+        val libPath = context.applicationInfo.nativeLibraryDir
+        val torBin = File(libPath, "libtor.so")
+        TorManager.log("Locating Tor binary at: ${torBin.absolutePath}")
+        if (torBin.exists() && torBin.canExecute()) return torBin
+
+        // Fallback search if exact name check slightly failed or weird split
+        val found = File(libPath).listFiles()?.find { it.name.startsWith("libtor") }
+        if (found != null && found.canExecute()) {
+            TorManager.log("Found alternative binary: ${found.absolutePath}")
+            return found
+        }
+        TorManager.error("Tor binary not found or not executable in nativeLibraryDir.")
+        TorManager.log("Files found: ${File(libPath).listFiles()?.map { it.name }}")
+        return null
+    }
+
+    private fun reachable(endpoint: TorEndpoint): Boolean {
+        return try {
+            endpoint.connect(CONNECT_TIMEOUT_MS).close()
+            true
+        } catch (e: Exception) {
+            false
+        }
+    }
+
+    // Process.pid() needs API 33; Android's process implementation has kept a "pid" field since 1.0
+    private fun pidOf(process: Process): Int? {
+        return try {
+            val field = process.javaClass.getDeclaredField("pid")
+            field.isAccessible = true
+            field.getInt(process)
+        } catch (e: Exception) {
+            null
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.anomess.network
+
+import android.content.Context
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Remembers the highest wire version each peer has shown it can read.
+ *
+ * New builds advertise V3 through a "proto" hint in their V2 metadata (old peers ignore
+ * unknown keys). Once a verified frame tells us a peer understands V3 we switch to it;
+ * a later V2 frame without the hint means the peer downgraded, so we fall back.
+ *
+ * It also remembers which of our key ids each peer reports having pinned ("peerKeyId"),
+ * so V3 frames to that peer can drop the public key and carry only the key id.
+ */
+class ProtocolNegotiator(context: Context) {
+
+    companion object {
+        private const val KEY_PINNED_PREFIX = "pinned_"
+    }
+
+    private val prefs = context.getSharedPreferences("protocol_prefs", Context.MODE_PRIVATE)
+    private val versions = ConcurrentHashMap<String, Int>()
+    private val pinnedKeyIds = ConcurrentHashMap<String, String>()
+
+    /** Wire version to use when sending to [address] (normalized onion). */
+    fun versionFor(address: String): Int {
+        return versions.getOrPut(address) { prefs.getInt(address, BinaryProtocol.VERSION_2) }
+    }
+
+    /** Metadata hint to include in frames sent at [version]. */
+    fun advertisement(version: Int): Map<String, String> {
+        return if (version < BinaryProtocol.VERSION_3) {
+            mapOf(BinaryProtocol.META_PROTOCOL to BinaryProtocol.LATEST_VERSION.toString())
+        } else {
+            emptyMap()
+        }
+    }
+
+    /** True if [address] last told us it has pinned our key [myKeyId]. */
+    fun hasPinnedKey(address: String, myKeyId: String): Boolean {
+        val pinned = pinnedKeyIds.getOrPut(address) { prefs.getString(KEY_PINNED_PREFIX + address, "") ?: "" }
+        return pinned == myKeyId
+    }
+
+    /** Call only for frames whose signature was verified. */
+    fun onVerifiedFrame(address: String, version: Int, metadata: Map<String, String>) {
+        // A peer that stops reporting our key id (reinstall, key reset) gets the full key again
+        val pinned = metadata[BinaryProtocol.META_PEER_KEY_ID] ?: ""
+        if (pinnedKeyIds.put(address, pinned) != pinned) {
+            prefs.edit().putString(KEY_PINNED_PREFIX + address, pinned).apply()
+        }
+
+        val advertised = metadata[BinaryProtocol.META_PROTOCOL]?.toIntOrNull() ?: version
+        val supported = maxOf(version, advertised).coerceIn(BinaryProtocol.VERSION_2, BinaryProtocol.LATEST_VERSION)
+        if (versions.put(address, supported) != supported) {
+            TorManager.log("Peer $address speaks protocol V$supported")
+            prefs.edit().putInt(address, supported).apply()
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.anomess.network
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Coalesces read receipts per peer.
+ *
+ * Marking a conversation read only raises that peer's high-water mark (the newest sender
+ * timestamp we have read). After a short debounce a single receipt carrying the mark is sent;
+ * marks at or below what the peer already got are dropped, so re-renders of an open chat
+ * cost no Tor round-trips at all.
+ */
+class ReadReceiptAggregator(
+    private val send: suspend (peer: String, readUpTo: Long) -> Boolean
+) {
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val peers = ConcurrentHashMap<String, PeerReceipts>()
+
+    companion object {
+        private const val DEBOUNCE_MS = 1_500L
+        private const val RETRY_DELAY_MS = 30_000L
+        private const val MAX_FAILED_SENDS = 3 // Then wait for the next onRead instead of polling a dead peer
+    }
+
+    private class PeerReceipts {
+        var pending = 0L // Highest mark seen locally
+        var sent = 0L // Highest mark delivered to the peer
+        var flushJob: Job? = null
+    }
+
+    /** Records that everything from [peer] up to [readUpTo] (sender clock) has been read. */
+    fun onRead(peer: String, readUpTo: Long) {
+        val state = peers.getOrPut(peer) { PeerReceipts() }
+        synchronized(state) {
+            if (readUpTo <= state.sent) return
+            state.pending = maxOf(state.pending, readUpTo)
+            if (state.flushJob?.isActive == true) return
+            state.flushJob = scope.launch { flush(peer, state, DEBOUNCE_MS) }
+        }
+    }
+
+    private suspend fun flush(peer: String, state: PeerReceipts, initialDelay: Long) {
+        var wait = initialDelay
+        var failures = 0
+        while (true) {
+            delay(wait)
+            val mark = synchronized(state) { state.pending }
+            val delivered = try {
+                send(peer, mark)
+            } catch (e: Exception) {
+                TorManager.error("Read receipt to $peer failed", e)
+                false
+            }
+            synchronized(state) {
+                if (delivered) state.sent = maxOf(state.sent, mark) else failures++
+                // Done unless the mark moved while sending, or the send failed
+                if (state.sent >= state.pending || failures >= MAX_FAILED_SENDS) {
+                    state.flushJob = null
+                    return
+                }
+            }
+            wait = if (delivered) DEBOUNCE_MS else RETRY_DELAY_MS
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.anomess.network
+
+import java.io.DataInputStream
+import java.io.IOException
+import java.net.SocketException
+
+/**
+ * Minimal SOCKS5 client (RFC 1928 / RFC 1929) for Tor's SocksPort.
+ *
+ * java.net's SOCKS support only takes credentials from the process-wide Authenticator,
+ * so it can't give each destination its own username/password. Tor uses those credentials
+ * as a stream isolation key (IsolateSOCKSAuth): streams with different credentials never
+ * share a circuit, which lets us rotate one peer's circuit without touching the others.
+ */
+object Socks5Connector {
+
+    private const val SOCKS_VERSION = 5
+    private const val METHOD_USER_PASS = 0x02
+    private const val CMD_CONNECT = 0x01
+    private const val ATYP_IPV4 = 0x01
+    private const val ATYP_DOMAIN = 0x03
+    private const val ATYP_IPV6 = 0x04
+
+    /**
+     * Opens a stream to [host]:[port] through Tor's SocksPort at [proxy] (unix socket or loopback TCP).
+     * [timeoutMs] bounds the whole handshake, including Tor's rendezvous with the onion service.
+     */
+    fun connect(proxy: TorEndpoint, host: String, port: Int, username: String, password: String, timeoutMs: Int): TorStream {
+        val stream = proxy.connect(timeoutMs)
+        try {
+            stream.setReadTimeout(timeoutMs)
+
+            val output = stream.output
+            val input = DataInputStream(stream.input)
+
+            // Greeting: offer username/password only, so Tor always sees the isolation token
+            output.write(byteArrayOf(SOCKS_VERSION.toByte(), 1, METHOD_USER_PASS.toByte()))
+            output.flush()
+            if (input.readUnsignedByte() != SOCKS_VERSION || input.readUnsignedByte() != METHOD_USER_PASS) {
+                throw SocketException("SOCKS: proxy refused username/password auth")
+            }
+
+            val user = username.toByteArray(Charsets.UTF_8)
+            val pass = password.toByteArray(Charsets.UTF_8)
+            require(user.size in 1..255 && pass.size in 1..255) { "SOCKS credentials too long" }
+            output.write(byteArrayOf(1, user.size.toByte()) + user + byteArrayOf(pass.size.toByte()) + pass)
+            output.flush()
+            input.readUnsignedByte() // Sub-negotiation version
+            if (input.readUnsignedByte() != 0) throw SocketException("SOCKS: authentication rejected")
+
+            // CONNECT by hostname: resolution happens inside Tor
+            val hostBytes = host.toByteArray(Charsets.US_ASCII)
+            require(hostBytes.size in 1..255) { "SOCKS hostname too long" }
+            output.write(
+                byteArrayOf(SOCKS_VERSION.toByte(), CMD_CONNECT.toByte(), 0, ATYP_DOMAIN.toByte(), hostBytes.size.toByte()) +
+                    hostBytes + byteArrayOf((port shr 8).toByte(), port.toByte())
+            )
+            output.flush()
+
+            if (input.readUnsignedByte() != SOCKS_VERSION) throw SocketException("SOCKS: malformed reply")
+            val reply = input.readUnsignedByte()
+            input.readUnsignedByte() // Reserved
+            val boundAddressLength = when (input.readUnsignedByte()) {
+                ATYP_IPV4 -> 4
+                ATYP_IPV6 -> 16
+                ATYP_DOMAIN -> input.readUnsignedByte()
+                else -> throw SocketException("SOCKS: malformed reply")
+            }
+            input.skipBytes(boundAddressLength + 2)
+            if (reply != 0) throw SocketException("SOCKS: ${replyMessage(reply)}")
+
+            stream.setReadTimeout(0) // Established: reads block until the peer writes or closes
+            return stream
+        } catch (e: IOException) {
+            try { stream.close() } catch (_: Exception) {}
+            throw e
+        }
+    }
+
+    // Standard replies plus Tor's ExtendedErrors codes for onion services
+    private fun replyMessage(code: Int): String = when (code) {
+        0x01 -> "general failure"
+        0x02 -> "connection not allowed by ruleset"
+        0x03 -> "Network unreachable"
+        0x04 -> "Host unreachable"
+        0x05 -> "Connection refused"
+        0x06 -> "TTL expired"
+        0x07 -> "command not supported"
+        0x08 -> "address type not supported"
+        0xF0 -> "Host unreachable (onion service descriptor not found)"
+        0xF1 -> "Host unreachable (onion service descriptor invalid)"
+        0xF2 -> "Host unreachable (onion service introduction failed)"
+        0xF3 -> "Host unreachable (onion service rendezvous failed)"
+        0xF4 -> "onion service requires client authorization"
+        0xF5 -> "onion service client authorization invalid"
+        0xF6 -> "invalid onion address"
+        0xF7 -> "general failure (onion service introduction timed out)"
+        else -> "general failure (code $code)"
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.anomess.network
+
+import android.os.SystemClock
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.withTimeoutOrNull
+
+/**
+ * Tracks Tor's bootstrap from control-port status lines.
+ *
+ * Fed by STATUS_CLIENT events and the initial `GETINFO status/bootstrap-phase` reply, which share
+ * the same format: `NOTICE BOOTSTRAP PROGRESS=85 TAG=ap_conn_done SUMMARY="..."`.
+ * Progress 100 means Tor can build circuits, i.e. outbound sends can start.
+ */
+class TorBootstrapMonitor {
+
+    data class Status(
+        val progress: Int,
+        val tag: String,
+        val summary: String,
+        val warning: String? = null
+    ) {
+        val isDone: Boolean get() = progress >= 100
+    }
+
+    private val _status = MutableStateFlow(INITIAL)
+    val status: StateFlow<Status> = _status.asStateFlow()
+    @Volatile private var progressedAt = SystemClock.elapsedRealtime()
+
+    companion object {
+        private val INITIAL = Status(0, "starting", "Starting Tor")
+        private val fieldRegex = "([A-Z_]+)=(\"(?:[^\"\\\\]|\\\\.)*\"|\\S+)".toRegex()
+    }
+
+    /** New Tor process: forget the previous run's progress. */
+    fun reset() {
+        _status.value = INITIAL
+        progressedAt = SystemClock.elapsedRealtime()
+    }
+
+    /**
+     * Applies one status line. Lines that aren't bootstrap reports are ignored;
+     * progress never moves backwards within one run.
+     */
+    fun onStatusLine(line: String) {
+        val parts = line.trim().split(' ', limit = 3)
+        if (parts.size < 3 || parts[1] != "BOOTSTRAP") return
+        val severity = parts[0]
+
+        val fields = fieldRegex.findAll(parts[2]).associate { match ->
+            match.groupValues[1] to match.groupValues[2].removeSurrounding("\"").replace("\\\"", "\"")
+        }
+        val progress = fields["PROGRESS"]?.toIntOrNull() ?: return
+        val current = _status.value
+
+        val next = Status(
+            progress = maxOf(progress, current.progress),
+            tag = fields["TAG"] ?: current.tag,
+            summary = fields["SUMMARY"] ?: current.summary,
+            warning = if (severity == "WARN") fields["WARNING"] ?: fields["REASON"] else null
+        )
+        if (next != current) {
+            if (next.progress != current.progress) progressedAt = SystemClock.elapsedRealtime()
+            _status.value = next
+            if (next.warning != null) {
+                TorManager.log("Bootstrap ${next.progress}% stalled: ${next.warning}")
+            } else if (next.progress != current.progress) {
+                TorManager.log("Bootstrap ${next.progress}%: ${next.summary}")
+            }
+        }
+    }
+
+    /**
+     * True if bootstrap is stuck rather than slow: Tor reported a problem, or progress hasn't moved for [stallMs].
+     */
+    fun isStalled(stallMs: Long): Boolean {
+        val current = _status.value
+        return !current.isDone && (current.warning != null || SystemClock.elapsedRealtime() - progressedAt > stallMs)
+    }
+
+    /** Suspends until bootstrap completes; returns false on timeout. */
+    suspend fun awaitDone(timeoutMs: Long): Boolean {
+        return withTimeoutOrNull(timeoutMs) { status.first { it.isDone } } != null
+    }
+}
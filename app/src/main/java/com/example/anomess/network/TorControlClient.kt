@@ -0,0 +1,257 @@
+package com.example.anomess.network
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asSharedFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeout
+import java.io.BufferedReader
+import java.io.File
+import java.io.IOException
+import java.io.InputStreamReader
+import java.io.OutputStream
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * Coroutine-based Tor control-port client.
+ *
+ * Commands are pipelined: each write enqueues a pending reply and a single reader coroutine
+ * completes them in order, so callers never hold the connection while waiting. Every command
+ * has its own timeout; a timed-out reply is still consumed when it arrives so the queue stays
+ * aligned. Asynchronous 650 replies are published on [events].
+ *
+ * A supervisor keeps the connection up: when the socket drops it reconnects with backoff,
+ * re-authenticates with the (re-read) cookie and re-subscribes to the same events,
+ * until [close] is called.
+ */
+class TorControlClient(
+    private val openStream: () -> TorStream,
+    private val cookieFile: File?
+) {
+    class Reply(val code: Int, val lines: List<String>) {
+        val isOk: Boolean get() = code == 250
+    }
+
+    class Event(val type: String, val body: String)
+
+    class ControlException(message: String) : IOException(message)
+
+    private class Pending(val deferred: CompletableDeferred<Reply>)
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val pending = ConcurrentLinkedQueue<Pending>()
+    private val writeLock = Any()
+    @Volatile private var stream: TorStream? = null
+    @Volatile private var output: OutputStream? = null
+    @Volatile private var closed = false
+    @Volatile private var subscribedEvents: List<String> = emptyList()
+    private var supervisor: Job? = null
+    @Volatile private var readerJob: Job? = null
+
+    private val _events = MutableSharedFlow<Event>(extraBufferCapacity = 256)
+    val events: SharedFlow<Event> = _events.asSharedFlow()
+
+    private val _connected = MutableStateFlow(false)
+    val connected: StateFlow<Boolean> = _connected.asStateFlow()
+
+    companion object {
+        const val DEFAULT_TIMEOUT_MS = 10_000L
+        private const val MAX_RECONNECT_DELAY_MS = 10_000L
+    }
+
+    /**
+     * Opens and authenticates the first connection, then hands it to the supervisor.
+     * Throws if Tor isn't reachable or rejects the cookie.
+     */
+    suspend fun connect() {
+        openAndAuthenticate()
+        supervisor = scope.launch { supervise() }
+    }
+
+    suspend fun command(line: String, timeoutMs: Long = DEFAULT_TIMEOUT_MS): Reply {
+        val entry = Pending(CompletableDeferred())
+        withContext(Dispatchers.IO) {
+            synchronized(writeLock) {
+                val out = output ?: throw ControlException("Control port not connected")
+                // Enqueue under the write lock so queue order matches wire order
+                pending.add(entry)
+                try {
+                    out.write("$line\r\n".toByteArray(Charsets.UTF_8))
+                    out.flush()
+                } catch (e: IOException) {
+                    pending.remove(entry)
+                    throw e
+                }
+            }
+        }
+        return withTimeout(timeoutMs) { entry.deferred.await() }
+    }
+
+    suspend fun getInfo(key: String, timeoutMs: Long = DEFAULT_TIMEOUT_MS): String? {
+        val reply = command("GETINFO $key", timeoutMs)
+        if (!reply.isOk) return null
+        // "key=value" on one line, or "key=" followed by a data block
+        val first = reply.lines.firstOrNull { it.startsWith("$key=") } ?: return null
+        val index = reply.lines.indexOf(first)
+        val inline = first.removePrefix("$key=")
+        return if (inline.isEmpty() && index + 1 < reply.lines.size - 1) {
+            reply.lines.subList(index + 1, reply.lines.size - 1).joinToString("\n")
+        } else {
+            inline
+        }
+    }
+
+    suspend fun signal(name: String, timeoutMs: Long = DEFAULT_TIMEOUT_MS): Boolean {
+        return command("SIGNAL $name", timeoutMs).isOk
+    }
+
+    /** Fire-and-forget signal for callers on a send path; failures are only logged. */
+    fun signalAsync(name: String) {
+        scope.launch {
+            try {
+                if (!signal(name)) TorManager.error("Tor rejected SIGNAL $name")
+            } catch (e: Exception) {
+                TorManager.error("SIGNAL $name failed", e)
+            }
+        }
+    }
+
+    suspend fun setEvents(events: List<String>) {
+        subscribedEvents = events
+        val reply = command("SETEVENTS ${events.joinToString(" ")}")
+        if (!reply.isOk) throw ControlException("SETEVENTS failed: ${reply.lines.lastOrNull()}")
+    }
+
+    /**
+     * Stops supervision and closes the connection. [finalCommand] (e.g. `SIGNAL HALT`) is written
+     * first without waiting for the reply, so this is safe to call from non-suspending code.
+     */
+    fun close(finalCommand: String? = null) {
+        closed = true
+        supervisor?.cancel()
+        if (finalCommand != null) {
+            try {
+                synchronized(writeLock) {
+                    output?.write("$finalCommand\r\n".toByteArray(Charsets.UTF_8))
+                    output?.flush()
+                }
+            } catch (_: Exception) {}
+        }
+        try { stream?.close() } catch (_: Exception) {}
+        failPending(ControlException("Control connection closed"))
+        _connected.value = false
+        scope.cancel()
+    }
+
+    // --- Connection handling ---
+
+    private suspend fun openAndAuthenticate() {
+        val newStream = withContext(Dispatchers.IO) { openStream() }
+        stream = newStream
+        output = newStream.output
+        val reader = BufferedReader(InputStreamReader(newStream.input, Charsets.UTF_8))
+        readerJob = scope.launch { readLoop(newStream, reader) }
+
+        // No cookie: the listener is protected by filesystem permissions instead
+        val cookie = withContext(Dispatchers.IO) { cookieFile?.takeIf { it.exists() }?.readBytes() }
+        val reply = if (cookie != null) {
+            command("AUTHENTICATE ${cookie.joinToString("") { "%02x".format(it) }}")
+        } else {
+            command("AUTHENTICATE")
+        }
+        if (!reply.isOk) {
+            try { newStream.close() } catch (_: Exception) {}
+            throw ControlException("Control port authentication failed: ${reply.lines.lastOrNull()}")
+        }
+        _connected.value = true
+    }
+
+    private suspend fun supervise() {
+        var backoffMs = 250L
+        while (scope.isActive && !closed) {
+            readerJob?.join()
+            if (closed) return
+            _connected.value = false
+            TorManager.log("Control connection lost; reconnecting...")
+            while (!closed) {
+                try {
+                    openAndAuthenticate()
+                    if (subscribedEvents.isNotEmpty()) setEvents(subscribedEvents)
+                    TorManager.log("Control connection re-established")
+                    backoffMs = 250L
+                    break
+                } catch (e: Exception) {
+                    try { stream?.close() } catch (_: Exception) {}
+                    delay(backoffMs)
+                    backoffMs = minOf(backoffMs * 2, MAX_RECONNECT_DELAY_MS)
+                }
+            }
+        }
+    }
+
+    private fun readLoop(source: TorStream, reader: BufferedReader) {
+        val lines = ArrayList<String>()
+        try {
+            while (true) {
+                val line = reader.readLine() ?: break
+                if (line.length < 4) continue
+                val code = line.substring(0, 3).toIntOrNull() ?: continue
+                val separator = line[3]
+                val text = line.substring(4)
+                lines.add(text)
+
+                if (separator == '+') {
+                    // Data block until a lone "."; dot-stuffed lines start with ".."
+                    while (true) {
+                        val data = reader.readLine() ?: break
+                        if (data == ".") break
+                        lines.add(if (data.startsWith("..")) data.substring(1) else data)
+                    }
+                    continue
+                }
+                if (separator != ' ') continue // "-" continuation
+
+                val reply = Reply(code, ArrayList(lines))
+                lines.clear()
+                if (code == 650) {
+                    publishEvent(reply)
+                } else {
+                    pending.poll()?.deferred?.complete(reply)
+                }
+            }
+        } catch (e: IOException) {
+            if (!closed) TorManager.log("Control connection read failed: ${e.message}")
+        } finally {
+            failPending(ControlException("Control connection lost"))
+            try { source.close() } catch (_: Exception) {}
+        }
+    }
+
+    private fun publishEvent(reply: Reply) {
+        val first = reply.lines.firstOrNull() ?: return
+        val type = first.substringBefore(' ')
+        val body = (listOf(first.substringAfter(' ', "")) + reply.lines.drop(1)).joinToString("\n").trim()
+        if (!_events.tryEmit(Event(type, body))) {
+            TorManager.log("Control event buffer full; dropped $type")
+        }
+    }
+
+    private fun failPending(cause: Exception) {
+        while (true) {
+            val entry = pending.poll() ?: break
+            entry.deferred.completeExceptionally(cause)
+        }
+    }
+}
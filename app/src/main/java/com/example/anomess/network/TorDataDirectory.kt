@@ -0,0 +1,150 @@
+package com.example.anomess.network
+
+import android.content.Context
+import java.io.File
+
+/**
+ * Tor's DataDirectory, kept under filesDir so Android never clears it.
+ *
+ * A warm directory lets Tor reuse its consensus, microdescriptors and guard state instead of
+ * downloading everything again. Before each start the cached documents are sanity-checked
+ * (truncated or garbage files are dropped so Tor refetches them) and the directory is kept
+ * under a size cap. Cold and warm bootstrap durations are recorded for comparison.
+ */
+class TorDataDirectory(context: Context) {
+
+    val dir: File = File(context.filesDir, "tor_data")
+    val cookieFile: File get() = File(dir, "control_auth_cookie")
+
+    private val legacyDir = File(context.cacheDir, "data")
+    private val prefs = context.getSharedPreferences("tor_prefs", Context.MODE_PRIVATE)
+
+    companion object {
+        private const val MAX_SIZE_BYTES = 64L * 1024 * 1024
+
+        // Cached directory documents Tor can always refetch, with the header each must start with
+        private val CACHE_FILES = mapOf(
+            "cached-microdesc-consensus" to "network-status-version",
+            "cached-consensus" to "network-status-version",
+            "cached-certs" to "dir-key-certificate-version",
+            "cached-microdescs" to null, // Entries start with "@last-listed" annotations, not a fixed header
+            "cached-microdescs.new" to null,
+            "cached-descriptors" to null,
+            "cached-descriptors.new" to null
+        )
+        private const val DIFF_CACHE_DIR = "diff-cache"
+        private const val STATE_FILE = "state"
+    }
+
+    class BootstrapTiming(val coldMs: Long, val warmMs: Long, val coldRuns: Int, val warmRuns: Int)
+
+    /**
+     * Creates the directory and repairs it. Returns true if it holds a usable consensus (warm start).
+     */
+    fun prepare(): Boolean {
+        if (legacyDir.exists()) {
+            // Old location under cacheDir; Android may have wiped it anyway
+            legacyDir.deleteRecursively()
+        }
+        dir.mkdirs()
+        dir.setReadable(false, false)
+        dir.setReadable(true, true)
+        dir.setWritable(false, false)
+        dir.setWritable(true, true)
+        dir.setExecutable(false, false)
+        dir.setExecutable(true, true)
+
+        // Stale cookie from a previous process must not be mistaken for the new one
+        cookieFile.delete()
+
+        checkIntegrity()
+        enforceSizeCap()
+
+        val warm = File(dir, "cached-microdesc-consensus").length() > 0
+        TorManager.log("Tor data directory: ${sizeBytes() / 1024} KB, ${if (warm) "warm" else "cold"} start")
+        return warm
+    }
+
+    /** Drops every cached directory document (keys and guard state are kept). */
+    fun clearCache() {
+        TorManager.log("Clearing Tor directory cache")
+        CACHE_FILES.keys.forEach { File(dir, it).delete() }
+        File(dir, DIFF_CACHE_DIR).deleteRecursively()
+    }
+
+    /** Last-resort recovery: wipe everything, including guard state. */
+    fun reset() {
+        TorManager.log("Resetting Tor data directory")
+        dir.deleteRecursively()
+        dir.mkdirs()
+    }
+
+    fun sizeBytes(): Long = dir.walkTopDown().filter { it.isFile }.sumOf { it.length() }
+
+    private fun checkIntegrity() {
+        for ((name, header) in CACHE_FILES) {
+            val file = File(dir, name)
+            if (!file.exists()) continue
+            val valid = file.length() > 0 && (header == null || startsWith(file, header))
+            if (!valid) {
+                TorManager.log("Tor cache file $name is corrupt, discarding")
+                file.delete()
+            }
+        }
+        val state = File(dir, STATE_FILE)
+        if (state.exists() && (state.length() == 0L || !startsWith(state, "#"))) {
+            TorManager.log("Tor state file is corrupt, discarding")
+            state.delete()
+        }
+    }
+
+    private fun enforceSizeCap() {
+        val size = sizeBytes()
+        if (size > MAX_SIZE_BYTES) {
+            TorManager.log("Tor data directory is ${size / (1024 * 1024)} MB (cap ${MAX_SIZE_BYTES / (1024 * 1024)} MB)")
+            clearCache()
+        }
+    }
+
+    private fun startsWith(file: File, prefix: String): Boolean {
+        return try {
+            file.inputStream().use { input ->
+                val head = ByteArray(prefix.length)
+                var read = 0
+                while (read < head.size) {
+                    val n = input.read(head, read, head.size - read)
+                    if (n < 0) break
+                    read += n
+                }
+                read == head.size && String(head, Charsets.US_ASCII) == prefix
+            }
+        } catch (e: Exception) {
+            false
+        }
+    }
+
+    // --- Bootstrap timing ---
+
+    fun recordBootstrap(warm: Boolean, durationMs: Long) {
+        val kind = if (warm) "warm" else "cold"
+        val runs = prefs.getInt("${kind}_runs", 0)
+        // Running average, so one outlier doesn't dominate
+        val average = prefs.getLong("${kind}_avg_ms", 0L)
+        val updated = if (runs == 0) durationMs else (average * runs + durationMs) / (runs + 1)
+        prefs.edit()
+            .putInt("${kind}_runs", runs + 1)
+            .putLong("${kind}_avg_ms", updated)
+            .putLong("${kind}_last_ms", durationMs)
+            .apply()
+        TorManager.log("Bootstrap ($kind start) took ${durationMs}ms; average $kind ${updated}ms over ${runs + 1} runs")
+    }
+
+    fun bootstrapTiming(): BootstrapTiming {
+        return BootstrapTiming(
+            prefs.getLong("cold_avg_ms", 0L),
+            prefs.getLong("warm_avg_ms", 0L),
+            prefs.getInt("cold_runs", 0),
+            prefs.getInt("warm_runs", 0)
+        )
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.anomess.network
+
+import android.net.LocalSocket
+import android.net.LocalSocketAddress
+import java.io.File
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.Socket
+
+/**
+ * A Tor listener address: a unix socket in app-private storage, or a loopback TCP port.
+ * Unix sockets can't collide with another Tor (Orbot, a stale instance) and skip the TCP stack.
+ */
+sealed class TorEndpoint {
+
+    /** The address as written in torrc: `unix:/path` or `host:port`. */
+    abstract val torrcValue: String
+
+    abstract fun connect(timeoutMs: Int): TorStream
+
+    data class Unix(val path: File) : TorEndpoint() {
+        override val torrcValue: String get() = "unix:${path.absolutePath}"
+
+        // A local connect never waits on the network, so there's no connect timeout to apply
+        override fun connect(timeoutMs: Int): TorStream {
+            val socket = LocalSocket()
+            try {
+                socket.connect(LocalSocketAddress(path.absolutePath, LocalSocketAddress.Namespace.FILESYSTEM))
+            } catch (e: IOException) {
+                socket.close()
+                throw e
+            }
+            return TorStream.of(socket)
+        }
+    }
+
+    data class Tcp(val host: String, val port: Int) : TorEndpoint() {
+        override val torrcValue: String get() = "$host:$port"
+
+        override fun connect(timeoutMs: Int): TorStream {
+            val socket = Socket()
+            try {
+                socket.tcpNoDelay = true
+                socket.connect(InetSocketAddress(host, port), timeoutMs)
+            } catch (e: IOException) {
+                socket.close()
+                throw e
+            }
+            return TorStream.of(socket)
+        }
+    }
+
+    companion object {
+        /**
+         * Parses one listener as reported by `GETINFO net/listeners/...` (`"unix:/path"`,
+         * `"127.0.0.1:9050"`) or by ControlPortWriteToFile (`PORT=127.0.0.1:9051`).
+         */
+        fun parse(value: String): TorEndpoint? {
+            val address = value.trim().removePrefix("PORT=").trim('"')
+            if (address.startsWith("unix:")) return Unix(File(address.removePrefix("unix:").trim('"')))
+            val host = address.substringBeforeLast(':', "").removeSurrounding("[", "]")
+            val port = address.substringAfterLast(':').toIntOrNull()
+            if (host.isEmpty() || port == null) return null
+            return Tcp(host, port)
+        }
+    }
+}
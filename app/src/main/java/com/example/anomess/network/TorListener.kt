@@ -0,0 +1,56 @@
+package com.example.anomess.network
+
+import android.net.LocalServerSocket
+import android.net.LocalSocket
+import android.net.LocalSocketAddress
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.net.InetAddress
+import java.net.ServerSocket
+
+/**
+ * Where Tor delivers our hidden service's streams (the HiddenServicePort target).
+ */
+class TorListener private constructor(
+    val endpoint: TorEndpoint,
+    private val acceptNext: () -> TorStream,
+    private val onClose: () -> Unit
+) : Closeable {
+
+    /** Blocks until Tor opens the next stream; throws once the listener is closed. */
+    fun accept(): TorStream = acceptNext()
+
+    override fun close() = onClose()
+
+    companion object {
+        /** Binds a unix socket at [path] (LocalServerSocket(String) would use the abstract namespace). */
+        fun unix(path: File): TorListener {
+            path.delete() // A stale socket file from the previous run would make bind fail
+            val bound = LocalSocket(LocalSocket.SOCKET_STREAM)
+            try {
+                bound.bind(LocalSocketAddress(path.absolutePath, LocalSocketAddress.Namespace.FILESYSTEM))
+                val server = LocalServerSocket(bound.fileDescriptor)
+                return TorListener(TorEndpoint.Unix(path), { TorStream.of(server.accept()) }) {
+                    try { server.close() } catch (_: Exception) {}
+                    try { bound.close() } catch (_: Exception) {}
+                    path.delete()
+                }
+            } catch (e: IOException) {
+                try { bound.close() } catch (_: Exception) {}
+                throw e
+            }
+        }
+
+        /**
+         * Loopback-only TCP on a port the kernel picks, so it never clashes with another app.
+         * Binding to 127.0.0.1 keeps other devices on the LAN from connecting directly.
+         */
+        fun loopback(): TorListener {
+            val server = ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))
+            return TorListener(TorEndpoint.Tcp("127.0.0.1", server.localPort), { TorStream.of(server.accept()) }) {
+                try { server.close() } catch (_: Exception) {}
+            }
+        }
+    }
+}
@@ -2,39 +2,78 @@ package com.example.anomess.network
 
 import android.content.Context
 import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
-import net.freehaven.tor.control.TorControlConnection
+import kotlinx.coroutines.withTimeoutOrNull
 import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.asStateFlow
 import java.io.File
-import java.io.FileOutputStream
-import java.io.PrintWriter
-import java.net.Socket
-import java.util.Scanner
 
 class TorManager(private val context: Context) {
 
-    var isTorRunning: Boolean = false
-        private set
-    var isRestarting: Boolean = false
-        private set
+    // Lifecycle: one start/restart in flight at a time; concurrent callers await the same attempt
+    private enum class Phase { STOPPED, STARTING, RUNNING, RESTARTING }
+    @Volatile private var phase = Phase.STOPPED
+    private val lifecycleLock = Any()
+    private var lifecycleJob: Deferred<Boolean>? = null
+    private val _state = MutableStateFlow<TorState>(TorState.Stopped)
+    val state: StateFlow<TorState> = _state.asStateFlow()
     private var lastRestartTime: Long = 0 // Track last restart to prevent loops
     private var onionAddress: String? = null
     
-    private var torProcess: Process? = null
+    // Child process or in-process TorService; chosen at start from the build default or user setting
+    private val prefs = context.getSharedPreferences("tor_prefs", Context.MODE_PRIVATE)
+    private val dataDirectory = TorDataDirectory(context)
+    private val sockets = TorSockets(context)
+    private val runtimes = HashMap<TorRuntime.Mode, TorRuntime>()
+    private var runtime: TorRuntime = runtimeFor(runtimeMode())
+    
+    // Unix sockets for SOCKS/control/hidden service; auto-assigned loopback ports if Tor can't use them
+    @Volatile var unixSocketsEnabled: Boolean = sockets.supported
+        private set
+    @Volatile private var socksEndpoint: TorEndpoint? = null
+    // Binds the hidden service's listener (at the unix socket path if given) and returns its address
+    @Volatile private var hiddenServiceBinder: ((File?) -> TorEndpoint?)? = null
 
-    private var controlConnection: TorControlConnection? = null
+    @Volatile private var controlClient: TorControlClient? = null
+    private val controlScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private var eventJob: Job? = null
+    
+    // Per-destination SOCKS isolation: bumping a peer's generation gives it fresh circuits
+    private val isolationGenerations = java.util.concurrent.ConcurrentHashMap<String, Int>()
+    private val isolationSession = java.util.UUID.randomUUID().toString().take(8)
     
-    private val mutex = kotlinx.coroutines.sync.Mutex()
+    // Bootstrap progress from STATUS_CLIENT events (0..100)
+    private val bootstrapMonitor = TorBootstrapMonitor()
+    val bootstrapStatus: StateFlow<TorBootstrapMonitor.Status> = bootstrapMonitor.status
+    private var hiddenServiceDir: File? = null
+    
+    // Bootstrap timing for the current launch (warm = DataDirectory already had a consensus)
+    private var launchStartedAt = 0L
+    private var warmStart = false
+    @Volatile private var bootstrapRecorded = false
+    
+    // Liveness / circuit / own-descriptor events, used to detect recovery without fixed waits
+    private val readiness = TorReadinessMonitor()
+    val networkLive: StateFlow<Boolean> = readiness.networkLive
 
     companion object {
         private const val TAG = "TorManager"
-        private const val HIDDEN_SERVICE_PORT = 8080 
+        private const val HIDDEN_SERVICE_PORT = 8080 // Only if no listener was registered
         private const val VIRTUAL_PORT = 80
-        private const val CONTROL_PORT = 9051
-        private const val SOCKS_PORT = 9050
+        private const val CONTROL_PORT_TIMEOUT_MS = 15_000L
+        private const val BOOTSTRAP_TIMEOUT_MS = 3 * 60 * 1000L
+        private const val BOOTSTRAP_STALL_MS = 60_000L // No progress for this long counts as stuck
+        private const val RECOVERY_TIMEOUT_MS = 60_000L // Fallback only; events normally arrive much sooner
         
         // Simple in-memory log buffer for debugging without ADB
         private val logBuilder = StringBuilder()
@@ -77,63 +116,89 @@ class TorManager(private val context: Context) {
         }
     }
 
-    suspend fun startTor(): Boolean {
-        mutex.lock()
-        try {
-            return withContext(Dispatchers.IO) {
-                try {
-                if (isTorRunning) {
-                    log("Tor is already running (flag set).")
-                    return@withContext true
+    /**
+     * Starts Tor unless it's already running. The service and the UI both call this on launch;
+     * they share one attempt, so there's never a second process launch or kill cycle.
+     */
+    suspend fun startTor(): Boolean = singleFlight {
+        if (phase == Phase.RUNNING) {
+            log("Tor is already running.")
+            true
+        } else {
+            start(launching = Phase.STARTING, started = Phase.RUNNING)
+        }
+    }
+    
+    /** Runs [action] unless a start/restart is already in flight, in which case its result is shared. */
+    private suspend fun singleFlight(action: suspend () -> Boolean): Boolean {
+        val job = synchronized(lifecycleLock) {
+            lifecycleJob?.takeIf { it.isActive } ?: controlScope.async { action() }.also { lifecycleJob = it }
+        }
+        return job.await()
+    }
+    
+    private suspend fun start(launching: Phase, started: Phase): Boolean {
+        setPhase(launching)
+        val success = withContext(Dispatchers.IO) {
+            try {
+                val mode = runtimeMode()
+                if (runtime.mode != mode) {
+                    log("Switching Tor runtime: ${runtime.mode} -> $mode")
+                    runtime.release()
+                    runtime = runtimeFor(mode)
                 }
-
-                // FORCE KILL old instances to free up lock/ports
-                killOldTorProcesses()
-                cleanupOrphanTor()
-                
-                // Allow a moment for OS cleanup
-                Thread.sleep(500)
-                
-                // 1. Locate Tor binary in nativeLibraryDir (Do NOT extract to cache, that fails W^X)
-                val libPath = context.applicationInfo.nativeLibraryDir
-                val torBin = File(libPath, "libtor.so")
+                log("Starting Tor (${mode.name.lowercase()} runtime)")
                 
-                log("Locating Tor binary at: ${torBin.absolutePath}")
+                // Leftovers from a previous run; this only waits if something was actually running
+                runtime.cleanupStale()
                 
-                if (!torBin.exists() || !torBin.canExecute()) {
-                    // Fallback search if exact name check slightly failed or weird split
-                    val libDir = File(libPath)
-                    val found = libDir.listFiles()?.find { it.name.startsWith("libtor") }
-                    if (found != null && found.canExecute()) {
-                         log("Found alternative binary: ${found.absolutePath}")
-                         // We must use the found file
-                         return@withContext launchTor(found)
-                    }
-                    
-                    error("Tor binary not found or not executable in nativeLibraryDir.")
-                    log("Files found: ${java.io.File(libPath).listFiles()?.map { it.name } }")
-                    return@withContext false
-                }
-                
-                return@withContext launchTor(torBin)
-
+                launchTor(allowRecovery = true)
             } catch (e: Exception) {
                 error("Error starting Tor", e)
-                stopTor()
                 false
             }
         }
-        } finally {
-            if (mutex.isLocked) mutex.unlock()
+        if (!success) teardown()
+        setPhase(if (success) started else Phase.STOPPED)
+        return success
+    }
+    
+    private fun setPhase(next: Phase) {
+        phase = next
+        publishState()
+    }
+    
+    // Derives the public state from the lifecycle phase, bootstrap progress and network liveness
+    private fun publishState() {
+        synchronized(_state) {
+            val boot = bootstrapMonitor.status.value
+            _state.value = when (phase) {
+                Phase.STOPPED -> TorState.Stopped
+                Phase.STARTING -> TorState.Starting
+                Phase.RESTARTING -> TorState.Restarting
+                Phase.RUNNING -> when {
+                    !readiness.networkLive.value -> TorState.Degraded("Network down")
+                    boot.isDone -> TorState.Ready
+                    boot.warning != null -> TorState.Degraded("Bootstrap stuck at ${boot.progress}%: ${boot.warning}")
+                    else -> TorState.Bootstrapping(boot.progress, boot.summary)
+                }
+            }
         }
     }
+    
+    /**
+     * Suspends until Tor is [TorState.Ready]; false if it wasn't within [timeoutMs].
+     * Senders wake the moment a start or restart completes instead of polling.
+     */
+    suspend fun awaitReady(timeoutMs: Long): Boolean {
+        return withTimeoutOrNull(timeoutMs) { state.first { it == TorState.Ready } } != null
+    }
 
-    private suspend fun launchTor(torBin: File): Boolean {
+    private suspend fun launchTor(allowRecovery: Boolean): Boolean {
          try {
-                // 2. Prepare Config (torrc)
+                // 1. Prepare Config (torrc); DataDirectory persists across launches for warm starts
                 val torrc = File(context.cacheDir, "torrc")
-                val dataDir = File(context.cacheDir, "data")
-                dataDir.mkdirs()
+                warmStart = runtime.prepareDataDirectory()
                 
                 // Hidden service directory
                 val hiddenServiceDir = File(context.filesDir, "hidden_service")
@@ -147,58 +212,60 @@ class TorManager(private val context: Context) {
                 hiddenServiceDir.setWritable(true, true)
                 hiddenServiceDir.setExecutable(false, false)
                 hiddenServiceDir.setExecutable(true, true) // Needed for directory traversal
+                this.hiddenServiceDir = hiddenServiceDir
+                onionAddress = null
+                bootstrapMonitor.reset()
 
-                createTorrc(torrc, dataDir, hiddenServiceDir)
+                createTorrc(torrc, hiddenServiceDir)
                 log("Torrc created.")
 
-                // 3. Launch Process
-                val pb = ProcessBuilder(
-                    torBin.absolutePath,
-                    "-f", torrc.absolutePath
-                )
-                
-                val env = pb.environment()
-                env["HOME"] = context.cacheDir.absolutePath
-                env["LD_LIBRARY_PATH"] = context.applicationInfo.nativeLibraryDir
-                
-                log("Executing: ${pb.command()}")
-                torProcess = pb.start()
-                
-                // wrapper to read error stream
-                Thread {
-                    try {
-                        val reader = Scanner(torProcess?.errorStream)
-                        while (reader.hasNextLine()) {
-                            val line = reader.nextLine()
-                            log("Tor stderr: $line")
-                        }
-                    } catch (e: Exception) {}
-                }.start()
+                // 2. Launch
+                launchStartedAt = android.os.SystemClock.elapsedRealtime()
+                bootstrapRecorded = false
+                if (!runtime.launch(torrc)) {
+                    error("Tor runtime failed to launch.")
+                    return false
+                }
                 
-                // 4. Connect to Control Port (Retry loop)
-                log("Waiting for Control Port $CONTROL_PORT...")
+                // 3. Connect to Control Port (Retry loop)
+                log("Waiting for Control Port...")
                 if (connectToControlPort()) {
-                    isTorRunning = true
-                    // 5. Get hidden service hostname
-                    val hostnameFile = File(hiddenServiceDir, "hostname")
-                    // Wait loop for hostname
-                    for (i in 1..10) {
-                        if (hostnameFile.exists()) {
-                           val raw = hostnameFile.readText()
-                           // Keep only alphanumeric and dot (onion addresses are base32 + .onion)
-                           onionAddress = raw.filter { it.isLetterOrDigit() || it == '.' }
-                           log("Onion Address generated: '$onionAddress' (${onionAddress?.length})")
-                           break
-                        }
-                        log("Waiting for hostname file...")
-                        Thread.sleep(1000)
+                    controlClient?.let { client ->
+                        runtime.configure(client)
+                        socksEndpoint = readSocksEndpoint(client)
                     }
-                    if (onionAddress == null) log("Warning: Hostname file not found after waiting.")
+                    // 4. Follow bootstrap through events instead of polling
+                    subscribeToStatusEvents()
+                    // 5. Tor loads the onion service keys while parsing torrc, before the
+                    // control port opens, so the hostname is normally there already
+                    if (loadOnionAddress() == null) log("Hostname file not written yet; will pick it up on the next status event.")
                     
                     return true
                 } else {
                      error("Failed to connect to Tor Control Port. Process might have died.")
-                     stopTor()
+                     val processDied = !runtime.isAlive
+                     val unixSocketError = if (processDied && unixSocketsEnabled) runtime.unixSocketError() else null
+                     teardown()
+                     val canClearCache = allowRecovery && runtime.mode == TorRuntime.Mode.PROCESS
+                     if (processDied && unixSocketError == null && canClearCache) {
+                         // Tor exiting at startup is most often a damaged cache; refetch and try once more
+                         dataDirectory.clearCache()
+                         runtime.cleanupStale()
+                         if (launchTor(allowRecovery = false)) return true
+                         // Still failing with a fresh cache: last resort, drop guard state and everything else too
+                         log("Tor still fails to start with a clean cache; resetting its data directory")
+                         runtime.cleanupStale()
+                         dataDirectory.reset()
+                         return launchTor(allowRecovery = false)
+                     }
+                     if (processDied && unixSocketsEnabled) {
+                         // Tor said it can't use a unix listener, or it still dies with a clean cache
+                         if (unixSocketError != null) log("Tor rejected a unix socket listener: $unixSocketError")
+                         log("Falling back to auto-assigned TCP ports")
+                         unixSocketsEnabled = false
+                         runtime.cleanupStale()
+                         return launchTor(allowRecovery && unixSocketError != null)
+                     }
                      return false
                 }
          } catch (e: Exception) {
@@ -207,68 +274,250 @@ class TorManager(private val context: Context) {
          }
     }
 
-    private fun createTorrc(torrc: File, dataDir: File, hiddenServiceDir: File) {
-        val config = """
-            DataDirectory ${dataDir.absolutePath}
-            ControlPort $CONTROL_PORT
-            SocksPort 127.0.0.1:$SOCKS_PORT
-            CookieAuthentication 1
-            HiddenServiceDir ${hiddenServiceDir.absolutePath}
-            HiddenServicePort $VIRTUAL_PORT 127.0.0.1:$HIDDEN_SERVICE_PORT
-            HiddenServicePort $VIRTUAL_PORT 127.0.0.1:$HIDDEN_SERVICE_PORT
-            SafeLogging 1
-            Log notice stdout
-        """.trimIndent()
+    private fun createTorrc(torrc: File, hiddenServiceDir: File) {
+        sockets.prepare()
+        val target = hiddenServiceBinder?.invoke(hiddenServiceSocket())
+            ?: TorEndpoint.Tcp("127.0.0.1", HIDDEN_SERVICE_PORT).also { error("No hidden service listener registered") }
+        val config = runtime.torrcLines(unixSocketsEnabled) + listOf(
+            "HiddenServiceDir ${hiddenServiceDir.absolutePath}",
+            "HiddenServicePort $VIRTUAL_PORT ${target.torrcValue}",
+            "SafeLogging 1",
+            "Log notice stdout"
+        )
         
-        torrc.writeText(config)
+        torrc.writeText(config.joinToString("\n"))
+    }
+    
+    /** Actual SOCKS listener as Tor reports it: `"unix:/path"` or an auto-assigned `"127.0.0.1:port"`. */
+    private suspend fun readSocksEndpoint(client: TorControlClient): TorEndpoint? {
+        val listeners = try { client.getInfo("net/listeners/socks") } catch (e: Exception) { null }
+        val endpoint = listeners?.split(' ')?.firstNotNullOfOrNull { TorEndpoint.parse(it) }
+        if (endpoint == null) error("Could not read SOCKS listener ($listeners)") else log("SOCKS listener: ${endpoint.torrcValue}")
+        return endpoint
     }
 
-    private fun connectToControlPort(): Boolean {
-        var retries = 0
-        while (retries < 15) {
+    private suspend fun connectToControlPort(): Boolean {
+        // Poll fast at first (Tor usually opens the port within a few hundred ms), then back off
+        val deadline = System.currentTimeMillis() + CONTROL_PORT_TIMEOUT_MS
+        var pauseMs = 50L
+        while (System.currentTimeMillis() < deadline) {
+            val client = TorControlClient({ runtime.openControlStream() }, runtime.cookieFile)
             try {
-                Thread.sleep(1000)
-                val socket = Socket("127.0.0.1", CONTROL_PORT)
-                controlConnection = TorControlConnection(socket)
-                controlConnection?.launchThread(true) // Daemon thread
-                controlConnection?.authenticate(File(context.cacheDir, "data/control_auth_cookie").readBytes())
+                client.connect()
+                controlClient = client
                 
                 log("Connected to Tor Control Port!")
                 return true
             } catch (e: Exception) {
-                log("Waiting for Control Port... (${e.message})")
-                retries++
+                client.close()
+                if (!runtime.isAlive) {
+                    error("Tor process exited before opening the control port")
+                    return false
+                }
+                delay(pauseMs)
+                pauseMs = minOf(pauseMs * 2, 500L)
             }
         }
+        log("Control Port did not come up within ${CONTROL_PORT_TIMEOUT_MS}ms")
         return false
     }
+    
+    /**
+     * Subscribes to STATUS_CLIENT and seeds the monitor with the current phase
+     * (events only report changes, and Tor may have progressed before we attached).
+     * The client re-subscribes by itself after a reconnect; we only re-seed the phase.
+     */
+    private suspend fun subscribeToStatusEvents() {
+        val client = controlClient ?: return
+        eventJob?.cancel()
+        eventJob = controlScope.launch {
+            launch { client.events.collect { onControlEvent(it) } }
+            client.connected.collect { up -> if (up) seedBootstrapPhase(client) }
+        }
+        try {
+            client.setEvents(listOf("STATUS_CLIENT", "NETWORK_LIVENESS", "CIRC", "HS_DESC"))
+        } catch (e: Exception) {
+            error("Failed to subscribe to Tor status events", e)
+        }
+    }
+    
+    private suspend fun seedBootstrapPhase(client: TorControlClient) {
+        try {
+            bootstrapMonitor.onStatusLine(client.getInfo("status/bootstrap-phase") ?: "")
+            onBootstrapProgress()
+        } catch (e: Exception) {
+            error("Failed to read bootstrap phase", e)
+        }
+    }
+    
+    private fun loadOnionAddress(): String? {
+        onionAddress?.let { return it }
+        val hostnameFile = File(hiddenServiceDir ?: return null, "hostname")
+        if (!hostnameFile.exists()) return null
+        val raw = hostnameFile.readText()
+        // Keep only alphanumeric and dot (onion addresses are base32 + .onion)
+        val address = raw.filter { it.isLetterOrDigit() || it == '.' }.takeIf { it.isNotEmpty() } ?: return null
+        onionAddress = address
+        log("Onion Address generated: '$address' (${address.length})")
+        return address
+    }
+    
+    /**
+     * Suspends until Tor reports 100% bootstrap; false if it didn't get there in time.
+     */
+    suspend fun awaitBootstrapped(timeoutMs: Long = BOOTSTRAP_TIMEOUT_MS): Boolean {
+        return bootstrapMonitor.awaitDone(timeoutMs)
+    }
+    
+    /** Bootstrap is stuck (a reported problem or no progress for a while), not just slow. */
+    fun bootstrapStalled(): Boolean = bootstrapMonitor.isStalled(BOOTSTRAP_STALL_MS)
+    
+    private fun onBootstrapProgress() {
+        if (bootstrapRecorded || !bootstrapMonitor.status.value.isDone) return
+        bootstrapRecorded = true
+        // Cold/warm averages describe our own DataDirectory; the embedded runtime uses TorService's
+        if (runtime.mode == TorRuntime.Mode.PROCESS) dataDirectory.recordBootstrap(warmStart, android.os.SystemClock.elapsedRealtime() - launchStartedAt)
+    }
+    
+    /** Average cold vs warm bootstrap durations across launches. */
+    fun bootstrapTiming(): TorDataDirectory.BootstrapTiming = dataDirectory.bootstrapTiming()
+    
+    /**
+     * Bootstrap got stuck (e.g. a consensus Tor can't use): drop the directory cache and relaunch.
+     * Only the process runtime can; false (nothing done) for the embedded one.
+     */
+    suspend fun restartWithCleanCache(): Boolean = singleFlight {
+        if (runtime.mode != TorRuntime.Mode.PROCESS) {
+            // Embedded Tor keeps TorService's own DataDirectory open and a relaunch only un-parks it
+            log("Bootstrap stalled; the embedded runtime can't restart with a clean cache")
+            false
+        } else {
+            log("Bootstrap stalled; restarting Tor with a clean directory cache...")
+            teardown()
+            dataDirectory.clearCache()
+            start(launching = Phase.STARTING, started = Phase.RUNNING)
+        }
+    }
+    
+    /**
+     * After a network change: waits until Tor has built a fresh circuit (outbound usable).
+     * Returns false if that didn't happen within [timeoutMs]; callers treat the timeout as a fallback.
+     */
+    suspend fun awaitCircuitReady(since: Long, timeoutMs: Long = RECOVERY_TIMEOUT_MS): Boolean {
+        return readiness.awaitCircuit(since, timeoutMs)
+    }
+    
+    /** Waits until our own onion descriptor has been re-uploaded (peers can reach us). */
+    suspend fun awaitServicePublished(since: Long, timeoutMs: Long = RECOVERY_TIMEOUT_MS): Boolean {
+        return readiness.awaitDescriptorUpload(since, timeoutMs)
+    }
+    
+    /** Reference point for [awaitCircuitReady] / [awaitServicePublished]. */
+    fun readinessClock(): Long = readiness.now()
+    
+    private fun onControlEvent(event: TorControlClient.Event) {
+        when (event.type) {
+            "STATUS_CLIENT" -> {
+                bootstrapMonitor.onStatusLine(event.body)
+                onBootstrapProgress()
+                if (onionAddress == null) loadOnionAddress()
+            }
+            "NETWORK_LIVENESS" -> readiness.onNetworkLiveness(event.body)
+            "CIRC" -> readiness.onCircuitStatus(event.body.split(' ').getOrNull(1)) // "<id> <status> ..."
+            "HS_DESC" -> readiness.onHsDescriptor(event.body, onionAddress)
+        }
+        publishState()
+    }
 
+    /** Stops Tor, abandoning any start or restart in progress. */
     fun stopTor() {
-        try {
-            controlConnection?.shutdownTor("HALT") // Ask nicely
-            controlConnection = null
-        } catch (e: Exception) {}
-        
-        torProcess?.destroy()
-        torProcess = null
-        isTorRunning = false
+        synchronized(lifecycleLock) {
+            lifecycleJob?.cancel()
+            lifecycleJob = null
+        }
+        teardown()
+        setPhase(Phase.STOPPED)
+    }
+    
+    private fun teardown() {
+        eventJob?.cancel()
+        eventJob = null
+        runtime.stop(controlClient)
+        controlClient = null
+        socksEndpoint = null
+        bootstrapMonitor.reset()
     }
     
     fun getOnionHostname(): String? {
          return onionAddress
     }
     
-    fun getSocksPort(): Int {
-        return SOCKS_PORT
+    /** Where outbound streams go (Tor's SocksPort); null until Tor has started. */
+    fun getSocksEndpoint(): TorEndpoint? {
+        return socksEndpoint
+    }
+    
+    /**
+     * Registers the hidden service's listener. Called on every launch with the unix socket to bind
+     * (null: use loopback TCP); returns the address written to HiddenServicePort.
+     */
+    fun setHiddenServiceBinder(binder: (unixSocket: File?) -> TorEndpoint?) {
+        hiddenServiceBinder = binder
+    }
+    
+    /** Path the hidden service listener should bind, or null while unix sockets are disabled. */
+    fun hiddenServiceSocket(): File? = sockets.hiddenService.takeIf { unixSocketsEnabled }
+    
+    /** Runtime used by the next start: the user's choice if set, else the build default. */
+    fun runtimeMode(): TorRuntime.Mode {
+        val name = prefs.getString("runtime_mode", null) ?: com.example.anomess.BuildConfig.TOR_RUNTIME
+        return TorRuntime.Mode.values().firstOrNull { it.name == name } ?: TorRuntime.Mode.PROCESS
+    }
+    
+    /** Persists the runtime choice; it takes effect the next time Tor is started. */
+    fun setRuntimeMode(mode: TorRuntime.Mode) {
+        prefs.edit().putString("runtime_mode", mode.name).apply()
+    }
+    
+    private fun runtimeFor(mode: TorRuntime.Mode): TorRuntime = runtimes.getOrPut(mode) {
+        when (mode) {
+            TorRuntime.Mode.PROCESS -> ProcessTorRuntime(context, dataDirectory, sockets)
+            TorRuntime.Mode.EMBEDDED -> EmbeddedTorRuntime(context, sockets)
+        }
+    }
+    
+    /** Memory attributable to Tor and the app: (app PSS, Tor's own RSS if it runs outside the app) in KB. */
+    fun memoryUsageKb(): Pair<Long, Long> = Pair(android.os.Debug.getPss(), runtime.externalMemoryKb())
+    
+    /**
+     * SOCKS username/password for streams to [address]. Tor keeps streams with different
+     * credentials on different circuits (IsolateSOCKSAuth), so each peer gets its own.
+     */
+    fun isolationCredentials(address: String): Pair<String, String> {
+        val generation = isolationGenerations[address] ?: 0
+        return Pair(address, "$isolationSession-$generation")
+    }
+    
+    /**
+     * Moves future streams to [address] onto new circuits. Unlike NEWNYM this leaves
+     * every other peer's circuits (and in-flight transfers) alone, and isn't rate-limited.
+     */
+    fun rotateIsolation(address: String) {
+        val generation = isolationGenerations.merge(address, 1, Int::plus)
+        log("New circuit isolation token for $address (generation $generation)")
     }
     
     /**
      * Fully restart Tor when network conditions have changed.
      * This is more reliable than just requesting a new circuit when the network was lost.
-     * Includes a 30-second stabilization period for hidden services to republish.
+     * Returns once Tor has bootstrapped and re-published our onion service (or the wait timed out).
      * Has a 5-minute cooldown to prevent infinite restart loops.
      */
-    suspend fun restartTor(): Boolean {
+    suspend fun restartTor(): Boolean = singleFlight {
+        restart()
+    }
+    
+    private suspend fun restart(): Boolean {
         // Prevent restart loops - 5 minute cooldown
         val timeSinceLastRestart = System.currentTimeMillis() - lastRestartTime
         val cooldownMs = 5 * 60 * 1000L // 5 minutes
@@ -280,109 +529,46 @@ class TorManager(private val context: Context) {
             return false
         }
         
-        isRestarting = true
         lastRestartTime = System.currentTimeMillis()
         log("Restarting Tor due to network change...")
-        stopTor()
-        Thread.sleep(2000) // Wait for process cleanup
-        val result = startTor()
+        setPhase(Phase.RESTARTING)
+        // start() waits for the old process to release its ports/lock
+        teardown()
+        val since = readiness.now()
+        val result = start(launching = Phase.RESTARTING, started = Phase.RESTARTING)
         
         if (result) {
-            // Wait for hidden services to republish BEFORE clearing isRestarting
-            log("Tor restarted. Waiting 30s for hidden services to stabilize...")
-            kotlinx.coroutines.delay(30_000)
-            log("Stabilization complete. Resuming normal operation.")
+            // Stay Restarting (senders wait) until hidden services have republished
+            log("Tor restarted. Waiting for bootstrap and descriptor upload...")
+            val published = awaitBootstrapped() && awaitServicePublished(since)
+            log(if (published) "Onion service republished. Resuming normal operation." else "Republish not confirmed in time; resuming anyway.")
+            setPhase(Phase.RUNNING)
         }
-        
-        isRestarting = false
         return result
     }
     
     /**
-     * Request a new circuit from Tor. This is useful when connections to a hidden service
-     * fail after the service went offline and came back online.
-     * Sends SIGNAL NEWNYM to the Tor control connection.
-     */
-    /**
-     * Request a new circuit from Tor. Also checks if control connection is alive.
+     * Request new circuits for ALL destinations (SIGNAL NEWNYM). Tor rate-limits this;
+     * for a single misbehaving peer use [rotateIsolation] instead.
+     * Never blocks: the signal is queued on the control client, which reconnects on its own.
      */
     fun requestNewCircuit() {
-        try {
-            // Ensure connection is alive before trying to signal
-            reconnectControlPortIfNeeded()
-            
-            if (controlConnection != null) {
-                log("Sending SIGNAL NEWNYM to request new Tor circuits...")
-                controlConnection?.signal("NEWNYM")
-                log("New circuit requested successfully")
-            } else {
-                log("Cannot request new circuit - no control connection")
-            }
-        } catch (e: Exception) {
-            error("Failed to request new circuit", e)
-            // If it failed, force null to retry next time
-            controlConnection = null
-        }
-    }
-    
-    private fun reconnectControlPortIfNeeded() {
-        if (controlConnection == null || torProcess == null) {
-            // Tor not running or explicit stop
-            if (isTorRunning) {
-                 log("Control connection lost but Tor supposed to be running. Attempting reconnect...")
-                 connectToControlPort()
-            }
+        val client = controlClient
+        if (client == null) {
+            log("Cannot request new circuit - no control connection")
             return
         }
-        
-        try {
-            // Simple liveness check or just rely on variable?
-            // Sending a cheap command like 'GETINFO version' confirms liveness
-            controlConnection?.getInfo("version")
-        } catch (e: Exception) {
-             log("Control connection appears dead: ${e.message}. Reconnecting...")
-             controlConnection = null
-             connectToControlPort()
-        }
+        log("Sending SIGNAL NEWNYM to request new Tor circuits...")
+        client.signalAsync("NEWNYM")
     }
     
-    private fun killOldTorProcesses() {
-        try {
-             log("Attempting to kill lingering Tor processes...")
-             
-             // 1. Destroy our managed process
-             torProcess?.destroy()
-             torProcess = null
-             
-             // Avoid shell commands as they can hang or fail on unrooted devices
-        } catch (e: Exception) {
-            // Ignore errors here
-        }
-    }
-
-    private fun cleanupOrphanTor() {
-        try {
-            log("Checking for orphan Tor processes on port $CONTROL_PORT...")
-            // Try to connect to an existing Tor instance
-            val socket = Socket("127.0.0.1", CONTROL_PORT)
-            
-            // If we connected, something is running. Try to kill it nicely.
-            log("Found running Tor instance. Attempting to shutdown via Control Protocol...")
-            val conn = TorControlConnection(socket)
-            
-            // Try to read auth cookie if it exists from previous run
-            val authFile = File(context.cacheDir, "data/control_auth_cookie")
-            if (authFile.exists()) {
-                 conn.authenticate(authFile.readBytes())
-                 conn.shutdownTor("HALT")
-                 log("Orphan Tor shutdown command sent.")
-            } else {
-                log("Orphan Tor found but no auth cookie. Cannot kill via control port.")
-            }
-            socket.close()
+    /** Raw control-port query (e.g. `GETINFO` keys) that suspends instead of blocking a thread. */
+    suspend fun getInfo(key: String): String? {
+        return try {
+            controlClient?.getInfo(key)
         } catch (e: Exception) {
-            // Failure to connect means no Tor is running on that port. Good.
-            log("No orphan Tor found on control port.")
+            error("GETINFO $key failed", e)
+            null
         }
     }
 }
@@ -0,0 +1,56 @@
+package com.example.anomess.network
+
+import android.os.SystemClock
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.withTimeoutOrNull
+
+/**
+ * Follows the control-port events that say Tor is usable again after a network change:
+ * NETWORK_LIVENESS (Tor sees the network), CIRC BUILT (outbound streams can go out) and
+ * HS_DESC UPLOADED for our own service (peers can reach us again).
+ * Timestamps are elapsedRealtime, so callers wait for events newer than the moment they started.
+ */
+class TorReadinessMonitor {
+
+    private val _networkLive = MutableStateFlow(true)
+    val networkLive: StateFlow<Boolean> = _networkLive.asStateFlow()
+
+    private val circuitBuiltAt = MutableStateFlow(0L)
+    private val descriptorUploadedAt = MutableStateFlow(0L)
+
+    fun onNetworkLiveness(status: String) {
+        val live = status.trim().startsWith("UP")
+        if (_networkLive.value != live) {
+            _networkLive.value = live
+            TorManager.log("Tor network liveness: ${if (live) "UP" else "DOWN"}")
+        }
+    }
+
+    fun onCircuitStatus(status: String?) {
+        if (status == "BUILT") circuitBuiltAt.value = SystemClock.elapsedRealtime()
+    }
+
+    /** HS_DESC event body: `UPLOADED <address> <auth> <hsdir> ...` */
+    fun onHsDescriptor(event: String, ownAddress: String?) {
+        val parts = event.trim().split(' ')
+        if (parts.size < 2 || parts[0] != "UPLOADED" || ownAddress == null) return
+        if (parts[1] == ownAddress.removeSuffix(".onion")) {
+            descriptorUploadedAt.value = SystemClock.elapsedRealtime()
+        }
+    }
+
+    fun now(): Long = SystemClock.elapsedRealtime()
+
+    /** Suspends until a circuit finishes building after [since]; false on timeout. */
+    suspend fun awaitCircuit(since: Long, timeoutMs: Long): Boolean {
+        return withTimeoutOrNull(timeoutMs) { circuitBuiltAt.first { it > since } } != null
+    }
+
+    /** Suspends until our descriptor is uploaded to an HSDir after [since]; false on timeout. */
+    suspend fun awaitDescriptorUpload(since: Long, timeoutMs: Long): Boolean {
+        return withTimeoutOrNull(timeoutMs) { descriptorUploadedAt.first { it > since } } != null
+    }
+}
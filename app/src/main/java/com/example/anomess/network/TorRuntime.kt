@@ -0,0 +1,65 @@
+package com.example.anomess.network
+
+import java.io.File
+
+/**
+ * Where the Tor daemon runs. [TorManager] builds the torrc, talks to the control port and
+ * tracks bootstrap the same way for every runtime; only launching, stopping and reaching the
+ * control listener differ.
+ */
+interface TorRuntime {
+
+    enum class Mode { PROCESS, EMBEDDED }
+
+    val mode: Mode
+
+    /** Auth cookie for the control port, or null when the listener needs none. */
+    val cookieFile: File?
+
+    /** False once the daemon has exited (or was never started). */
+    val isAlive: Boolean
+
+    /**
+     * Prepares the runtime's DataDirectory and returns whether it holds a usable consensus (warm start).
+     */
+    fun prepareDataDirectory(): Boolean
+
+    /**
+     * torrc lines specific to this runtime: data directory, control and SOCKS listeners.
+     * With [unixSockets] the listeners are unix sockets, otherwise auto-assigned loopback ports.
+     */
+    fun torrcLines(unixSockets: Boolean): List<String>
+
+    /** Shuts down anything left over from a previous app process before a launch. */
+    suspend fun cleanupStale()
+
+    /** Starts Tor with [torrc]; false if the daemon could not be started at all. */
+    suspend fun launch(torrc: File): Boolean
+
+    /**
+     * The line in which Tor rejected a unix socket listener during the last launch, if it did.
+     * Null when it didn't or this runtime can't tell.
+     */
+    fun unixSocketError(): String? = null
+
+    /** Opens a new connection to the control listener. */
+    fun openControlStream(): TorStream
+
+    /** Runtime-specific settings applied once the control connection is authenticated. */
+    suspend fun configure(client: TorControlClient, unixSockets: Boolean) {}
+
+    /**
+     * Stops Tor. [client] is the current control connection, if any; the runtime decides
+     * whether to halt the daemon through it or just park it.
+     */
+    fun stop(client: TorControlClient?)
+
+    /**
+     * Called when [TorManager] switches to another runtime after [stop]: nothing of this one may
+     * keep running (a parked daemon would still hold the hidden service's keys and directory).
+     */
+    fun release() {}
+
+    /** Resident memory of Tor when it lives outside the app process, in KB; 0 otherwise. */
+    fun externalMemoryKb(): Long = 0
+}
@@ -0,0 +1,45 @@
+package com.example.anomess.network
+
+import android.content.Context
+import java.io.File
+
+/**
+ * Paths of Tor's unix sockets, in a private (0700) directory under filesDir as Tor requires.
+ * Also holds the file Tor writes its auto-assigned control port to when TCP is used instead.
+ */
+class TorSockets(context: Context) {
+
+    val dir: File = File(context.filesDir, "tor_sock")
+    val control: File get() = File(dir, "control.sock")
+    val socks: File get() = File(dir, "socks.sock")
+    val hiddenService: File get() = File(dir, "hs.sock")
+    val controlPortFile: File get() = File(dir, "control.port")
+
+    companion object {
+        // sun_path is 108 bytes including the terminator
+        private const val MAX_SOCKET_PATH = 107
+    }
+
+    /** False if the socket paths would be too long for sun_path (unusual install locations). */
+    val supported: Boolean
+        get() = listOf(control, socks, hiddenService).all { it.absolutePath.toByteArray().size <= MAX_SOCKET_PATH }
+
+    fun prepare() {
+        dir.mkdirs()
+        dir.setReadable(false, false)
+        dir.setReadable(true, true)
+        dir.setWritable(false, false)
+        dir.setWritable(true, true)
+        dir.setExecutable(false, false)
+        dir.setExecutable(true, true)
+    }
+
+    /** Endpoint Tor wrote with ControlPortWriteToFile, if any. */
+    fun readControlPortFile(): TorEndpoint? {
+        return try {
+            controlPortFile.takeIf { it.exists() }?.readLines()?.firstNotNullOfOrNull { TorEndpoint.parse(it) }
+        } catch (e: Exception) {
+            null
+        }
+    }
+}
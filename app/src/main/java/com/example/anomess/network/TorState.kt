@@ -0,0 +1,38 @@
+package com.example.anomess.network
+
+/**
+ * Tor lifecycle as published by [TorManager.state]; the one place UI, service and senders
+ * look to decide whether to wait, send or report a problem.
+ */
+sealed class TorState {
+    /** Not running, nothing in progress. */
+    object Stopped : TorState()
+
+    /** Launching the daemon and waiting for its control port. */
+    object Starting : TorState()
+
+    /** Running, building its view of the network. */
+    data class Bootstrapping(val progress: Int, val summary: String) : TorState()
+
+    /** Bootstrapped and the network is live: sends can go out. */
+    object Ready : TorState()
+
+    /** Running but not usable right now (network down, bootstrap stuck on a warning). */
+    data class Degraded(val reason: String) : TorState()
+
+    /** Stopping and relaunching after a network change. */
+    object Restarting : TorState()
+
+    /** Will most likely become [Ready] on its own soon; senders should wait rather than fail. */
+    val isTransitional: Boolean
+        get() = this is Starting || this is Bootstrapping || this is Restarting
+
+    override fun toString(): String = when (this) {
+        Stopped -> "Stopped"
+        Starting -> "Starting"
+        is Bootstrapping -> "Bootstrapping $progress%: $summary"
+        Ready -> "Ready"
+        is Degraded -> "Degraded: $reason"
+        Restarting -> "Restarting"
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.anomess.network
+
+import android.net.LocalSocket
+import java.io.Closeable
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.Socket
+
+/**
+ * A byte stream to, from or through Tor: loopback TCP or a unix domain socket.
+ * The control client, the SOCKS connector and peer connections work the same over either.
+ */
+class TorStream private constructor(
+    val input: InputStream,
+    val output: OutputStream,
+    val description: String,
+    private val applyReadTimeout: (Int) -> Unit,
+    private val onClose: () -> Unit
+) : Closeable {
+
+    /** Read timeout in ms (SO_TIMEOUT); 0 blocks until data arrives or the stream closes. */
+    fun setReadTimeout(timeoutMs: Int) = applyReadTimeout(timeoutMs)
+
+    override fun close() = onClose()
+
+    companion object {
+        fun of(socket: Socket) = TorStream(
+            socket.getInputStream(), socket.getOutputStream(), "${socket.remoteSocketAddress}",
+            { socket.soTimeout = it }, socket::close
+        )
+
+        fun of(socket: LocalSocket) = TorStream(
+            socket.inputStream, socket.outputStream, "unix socket",
+            { socket.soTimeout = it }, socket::close
+        )
+    }
+}
@@ -17,14 +17,108 @@ class SecurityManager(private val context: Context) {
     private val identityKeysetName = "identity_keyset"
     private val dbKeyName = "db_secret_key"
     
+    // Bounded LRU of parsed peer verifiers, keyed by key fingerprint
+    private val verifierCache = object : LinkedHashMap<String, PublicKeyVerify>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, PublicKeyVerify>?): Boolean {
+            return size > MAX_CACHED_VERIFIERS
+        }
+    }
+    private val verifierHits = java.util.concurrent.atomic.AtomicLong()
+    private val verifierMisses = java.util.concurrent.atomic.AtomicLong()
+    
+    companion object {
+        private const val MAX_CACHED_VERIFIERS = 64
+        const val ED25519_KEY_SIZE = 32
+        const val ED25519_SIGNATURE_SIZE = 64
+        
+        @Volatile
+        private var tinkRegistered = false
+        
+        @Synchronized
+        private fun registerTink() {
+            if (tinkRegistered) return
+            SignatureConfig.register()
+            tinkRegistered = true
+        }
+    }
+    
+    /**
+     * Running count/total/max for one crypto operation.
+     */
+    class OperationTimer(private val name: String) {
+        private val count = java.util.concurrent.atomic.AtomicLong()
+        private val totalNanos = java.util.concurrent.atomic.AtomicLong()
+        private val totalBytes = java.util.concurrent.atomic.AtomicLong()
+        private val maxNanos = java.util.concurrent.atomic.AtomicLong()
+        
+        // Hot path: counters only, no logging
+        fun record(nanos: Long, bytes: Int) {
+            count.incrementAndGet()
+            totalNanos.addAndGet(nanos)
+            totalBytes.addAndGet(bytes.toLong())
+            maxNanos.accumulateAndGet(nanos, ::maxOf)
+        }
+        
+        override fun toString(): String {
+            val n = count.get()
+            val avgUs = if (n == 0L) 0 else totalNanos.get() / n / 1000
+            val avgBytes = if (n == 0L) 0 else totalBytes.get() / n
+            return "$name: count=$n avg=${avgUs}us max=${maxNanos.get() / 1000}us avgSize=${avgBytes}B"
+        }
+    }
+    
     // Lazy load the signing primitive
     val signer: PublicKeySign by lazy {
         getIdentityKeyset().getPrimitive(PublicKeySign::class.java)
     }
+    
+    // Exported once: rebuilding it costs a Keystore round-trip plus SharedPreferences
+    private val myPublicKey: ByteArray by lazy { exportPublicKey() }
+    
+    // Raw 32-byte Ed25519 key and its short id (what V3 peers pin and see on the wire)
+    private val myRawPublicKey: ByteArray by lazy {
+        toRawPublicKey(myPublicKey) ?: throw GeneralSecurityException("Identity key is not Ed25519")
+    }
+    val myKeyId: String by lazy { keyId(myRawPublicKey) }
+    
+    // Cost of sign/verify, aggregated for the debug dialog ([cryptoStats])
+    val signTimer = OperationTimer("sign")
+    val verifyTimer = OperationTimer("verify")
 
     init {
-        // Register Tink configs
-        SignatureConfig.register()
+        // Register Tink configs (once per process)
+        registerTink()
+    }
+    
+    /**
+     * Loads the identity keyset, signer and public key off the main thread so the first send doesn't pay for it.
+     */
+    fun warmUp() {
+        try {
+            signer
+            myPublicKey
+            myRawPublicKey
+        } catch (e: Exception) {
+            com.example.anomess.network.TorManager.error("Identity warm-up failed", e)
+        }
+    }
+    
+    fun sign(data: ByteArray): ByteArray {
+        val start = System.nanoTime()
+        try {
+            return signer.sign(data)
+        } finally {
+            signTimer.record(System.nanoTime() - start, data.size)
+        }
+    }
+    
+    fun verify(verifier: PublicKeyVerify, signature: ByteArray, data: ByteArray) {
+        val start = System.nanoTime()
+        try {
+            verifier.verify(rawSignature(signature), data)
+        } finally {
+            verifyTimer.record(System.nanoTime() - start, data.size)
+        }
     }
     
     // --- Identity Management (Ed25519) ---
@@ -39,7 +133,73 @@ class SecurityManager(private val context: Context) {
         return build.keysetHandle
     }
 
+    /**
+     * Legacy export: Tink cleartext JSON public keyset (what V1/V2 peers expect on the wire).
+     */
     fun getMyPublicKey(): ByteArray {
+        return myPublicKey
+    }
+    
+    fun getMyRawPublicKey(): ByteArray {
+        return myRawPublicKey
+    }
+    
+    // --- Raw Ed25519 keys ---
+    
+    /**
+     * Accepts a raw 32-byte key or a legacy Tink JSON public keyset and returns the raw key.
+     */
+    fun toRawPublicKey(keyBytes: ByteArray): ByteArray? {
+        if (keyBytes.size == ED25519_KEY_SIZE) return keyBytes
+        return try {
+            val handle = com.google.crypto.tink.CleartextKeysetHandle.read(
+                com.google.crypto.tink.JsonKeysetReader.withBytes(keyBytes)
+            )
+            val keyset = com.google.crypto.tink.CleartextKeysetHandle.getKeyset(handle)
+            val primary = keyset.keyList.firstOrNull { it.keyId == keyset.primaryKeyId } ?: return null
+            com.google.crypto.tink.proto.Ed25519PublicKey.parseFrom(
+                primary.keyData.value,
+                com.google.crypto.tink.shaded.protobuf.ExtensionRegistryLite.getEmptyRegistry()
+            ).keyValue.toByteArray().takeIf { it.size == ED25519_KEY_SIZE }
+        } catch (e: Exception) {
+            null
+        }
+    }
+    
+    /**
+     * Decodes a stored Contact.publicKey (Base64 of raw key, or Base64 of legacy Tink JSON).
+     */
+    fun decodeStoredKey(stored: String): ByteArray? {
+        return try {
+            toRawPublicKey(Base64.decode(stored, Base64.NO_WRAP))
+        } catch (e: IllegalArgumentException) {
+            null
+        }
+    }
+    
+    fun encodeStoredKey(rawKey: ByteArray): String {
+        return Base64.encodeToString(rawKey, Base64.NO_WRAP)
+    }
+    
+    /**
+     * Short id sent on the wire instead of the full key once the peer has pinned it.
+     */
+    fun keyId(rawKey: ByteArray): String {
+        return keyFingerprint(rawKey).take(16)
+    }
+    
+    /**
+     * Tink signatures carry a 5-byte prefix (0x01 + key id); V3 frames send the bare 64 bytes.
+     */
+    fun rawSignature(signature: ByteArray): ByteArray {
+        return if (signature.size == ED25519_SIGNATURE_SIZE + 5 && signature[0] == 0x01.toByte()) {
+            signature.copyOfRange(5, signature.size)
+        } else {
+            signature
+        }
+    }
+    
+    private fun exportPublicKey(): ByteArray {
         // This is a bit tricky with Tink as it abstracts the raw key.
         // For P2P we need the raw bytes to send to peer.
         // We can export the public keyset and extract. 
@@ -60,13 +220,53 @@ class SecurityManager(private val context: Context) {
     }
     
     fun getVerifierForPeer(peerPublicKeyBytes: ByteArray): PublicKeyVerify {
-        // peerPublicKeyBytes is expected to be a Tink Public Keyset JSON
-        val handle = com.google.crypto.tink.CleartextKeysetHandle.read(
-            com.google.crypto.tink.JsonKeysetReader.withBytes(peerPublicKeyBytes)
-        )
-        return handle.getPrimitive(PublicKeyVerify::class.java)
+        // Accepts raw keys and legacy Tink JSON keysets alike
+        val rawKey = toRawPublicKey(peerPublicKeyBytes) ?: throw GeneralSecurityException("Unsupported peer key")
+        val fingerprint = keyFingerprint(rawKey)
+        synchronized(verifierCache) {
+            verifierCache[fingerprint]?.let {
+                verifierHits.incrementAndGet()
+                return it
+            }
+        }
+        verifierMisses.incrementAndGet()
+        
+        // Raw verifier: takes bare 64-byte signatures (see verify/rawSignature)
+        val verifier: PublicKeyVerify = com.google.crypto.tink.subtle.Ed25519Verify(rawKey)
+        synchronized(verifierCache) {
+            verifierCache[fingerprint] = verifier
+        }
+        return verifier
+    }
+    
+    // --- Verifier Cache ---
+    
+    /**
+     * Stable short identifier for a public key (hex SHA-256 of its encoded bytes).
+     */
+    fun keyFingerprint(publicKeyBytes: ByteArray): String {
+        return java.security.MessageDigest.getInstance("SHA-256").digest(publicKeyBytes)
+            .joinToString("") { "%02x".format(it) }
+    }
+    
+    /**
+     * Drops the cached verifier for a key that is no longer pinned.
+     */
+    fun invalidateVerifier(publicKeyBytes: ByteArray) {
+        val rawKey = toRawPublicKey(publicKeyBytes) ?: return
+        val removed = synchronized(verifierCache) { verifierCache.remove(keyFingerprint(rawKey)) }
+        if (removed != null) {
+            com.example.anomess.network.TorManager.log("Verifier cache invalidated. ${verifierCacheStats()}")
+        }
+    }
+    
+    fun verifierCacheStats(): String {
+        val size = synchronized(verifierCache) { verifierCache.size }
+        return "verifiers: size=$size hits=${verifierHits.get()} misses=${verifierMisses.get()}"
     }
     
+    fun cryptoStats(): List<String> = listOf(signTimer.toString(), verifyTimer.toString(), verifierCacheStats())
+    
     // --- Database Encryption Key ---
     
     fun getDatabasePassphrase(): String {
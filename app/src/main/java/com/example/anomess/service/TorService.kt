@@ -14,6 +14,7 @@ import com.example.anomess.AnomessApp
 import com.example.anomess.MainActivity
 import com.example.anomess.R
 import com.example.anomess.network.TorManager
+import com.example.anomess.network.TorState
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
@@ -22,6 +23,7 @@ class TorService : Service() {
 
     private val torManager by lazy { (application as AnomessApp).torManager }
     private val connectionManager by lazy { (application as AnomessApp).p2pConnectionManager }
+    private val outbox by lazy { (application as AnomessApp).outbox }
     private val scope = CoroutineScope(Dispatchers.IO)
 
     companion object {
@@ -56,9 +58,27 @@ class TorService : Service() {
             updateNotification("Starting Tor...")
             val success = torManager.startTor()
             if (success) {
-                val address = torManager.getOnionHostname()
-                updateNotification("Tor Connected: ${address?.take(6)}...")
+                // Listener can accept as soon as the process is up; sends wait for bootstrap
                 connectionManager.startListening()
+                val progressJob = launch {
+                    torManager.state.collect { state ->
+                        if (state is TorState.Bootstrapping) updateNotification("Bootstrapping Tor: ${state.progress}%")
+                    }
+                }
+                // A stuck bootstrap gets one retry with a clean directory cache; a slow one just more time
+                val bootstrapped = torManager.awaitBootstrapped() || if (torManager.bootstrapStalled()) {
+                    torManager.restartWithCleanCache() && torManager.awaitBootstrapped()
+                } else {
+                    torManager.awaitBootstrapped()
+                }
+                if (bootstrapped) {
+                    // The outbox starts draining by itself once the state turns Ready
+                    val address = torManager.getOnionHostname()
+                    updateNotification("Tor Connected: ${address?.take(6)}...")
+                } else {
+                    updateNotification("Tor bootstrap stalled: ${torManager.bootstrapStatus.value.summary}")
+                }
+                progressJob.cancel()
                 
                 // Register Network Callback to handle reconnects
                 registerNetworkCallback()
@@ -82,28 +102,25 @@ class TorService : Service() {
                 scope.launch {
                     if (wasNetworkLost) {
                         // SOFT RECOVERY: Don't restart Tor, let it naturally reconnect
+                        wasNetworkLost = false
                         com.example.anomess.network.TorManager.log("Network recovered. Using SOFT RECOVERY (no restart)...")
                         updateNotification("Network Back - Recovering...")
+                        val since = torManager.readinessClock()
                         
-                        // Step 1: Wait 15 seconds for Tor to reconnect to the network
-                        com.example.anomess.network.TorManager.log("Waiting 15s for Tor to reconnect...")
-                        kotlinx.coroutines.delay(15_000)
-                        
-                        // Step 2: Request fresh circuits
-                        com.example.anomess.network.TorManager.log("Requesting new Tor circuits...")
+                        // Fresh circuits: the old ones most likely died with the network
                         torManager.requestNewCircuit()
                         
-                        // Step 3: Wait for circuits to build and services to stabilize
-                        com.example.anomess.network.TorManager.log("Waiting 45s for hidden services...")
-                        kotlinx.coroutines.delay(45_000)
+                        // Outbound is usable as soon as a new circuit is built (timeout is only a fallback)
+                        val circuitReady = torManager.awaitCircuitReady(since)
+                        com.example.anomess.network.TorManager.log(
+                            if (circuitReady) "Circuit built. Resuming outbox..." else "No circuit event in time; resuming outbox anyway..."
+                        )
+                        outbox.onConnectivityRestored()
                         
-                        // Step 4: Update status and retry
+                        // Peers can reach us again once our descriptor is re-uploaded
+                        val published = torManager.awaitServicePublished(since)
                         val address = torManager.getOnionHostname()
-                        updateNotification("Tor Ready: ${address?.take(6)}...")
-                        com.example.anomess.network.TorManager.log("Recovery complete. Retrying pending messages...")
-                        retryAllPendingMessages()
-                        
-                        wasNetworkLost = false
+                        updateNotification(if (published) "Tor Ready: ${address?.take(6)}..." else "Tor Connected: ${address?.take(6)}...")
                     } else {
                         com.example.anomess.network.TorManager.log("Network available.")
                         val address = torManager.getOnionHostname()
@@ -137,42 +154,6 @@ class TorService : Service() {
         torManager.stopTor()
     }
     
-    private fun retryAllPendingMessages() {
-        scope.launch {
-            try {
-                val repository = (application as AnomessApp).repository
-                val pending = repository.getPendingMessages()
-                if (pending.isNotEmpty()) {
-                    com.example.anomess.network.TorManager.log("Found ${pending.size} failed messages to retry...")
-                    for (msg in pending) {
-                        // Mark as sending
-                        repository.updateMessageStatus(msg.id, com.example.anomess.data.Message.STATUS_SENDING)
-                        
-                        // Try to resend
-                        val sent = if (msg.type == com.example.anomess.data.Message.TYPE_TEXT) {
-                            connectionManager.sendMessage(msg.receiverOnionAddress, msg.content)
-                        } else {
-                            // For media, we'd need to read file again - simplified for text
-                            false 
-                        }
-                        
-                        if (sent) {
-                            repository.updateMessageStatus(msg.id, com.example.anomess.data.Message.STATUS_SENT)
-                            com.example.anomess.network.TorManager.log("Successfully resent message ${msg.id}")
-                        } else {
-                            repository.updateMessageStatus(msg.id, com.example.anomess.data.Message.STATUS_FAILED)
-                        }
-                        
-                        // Small delay between messages to not overwhelm Tor
-                        kotlinx.coroutines.delay(500)
-                    }
-                }
-            } catch (e: Exception) {
-                com.example.anomess.network.TorManager.error("Error retrying pending messages", e)
-            }
-        }
-    }
-
     override fun onDestroy() {
         stopTor()
         super.onDestroy()
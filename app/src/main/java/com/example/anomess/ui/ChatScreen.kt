@@ -12,7 +12,6 @@ import androidx.compose.foundation.gestures.rememberDraggableState
 import androidx.compose.foundation.layout.*
 import androidx.compose.foundation.lazy.LazyColumn
 import androidx.compose.foundation.lazy.items
-import androidx.compose.foundation.lazy.itemsIndexed
 import androidx.compose.foundation.lazy.rememberLazyListState
 import androidx.compose.foundation.rememberScrollState
 import androidx.compose.foundation.verticalScroll
@@ -37,6 +36,7 @@ import androidx.compose.material.icons.filled.PlayArrow
 import androidx.compose.material.icons.filled.Stop
 import androidx.compose.material.icons.filled.Send
 import androidx.compose.material.icons.filled.Reply
+import androidx.compose.material.icons.filled.Search
 import androidx.compose.material3.*
 import androidx.compose.runtime.*
 import androidx.compose.ui.Alignment
@@ -53,9 +53,12 @@ import androidx.compose.ui.unit.dp
 import androidx.compose.ui.unit.sp
 import com.example.anomess.data.Contact
 import com.example.anomess.data.Message
+import com.example.anomess.data.MessageSearchHit
 import androidx.activity.result.PickVisualMediaRequest
 import androidx.activity.result.contract.ActivityResultContracts
 import coil.compose.AsyncImage
+import androidx.paging.compose.collectAsLazyPagingItems
+import androidx.paging.compose.itemKey
 import androidx.compose.foundation.text.selection.SelectionContainer
 import androidx.compose.material.icons.filled.ContentCopy
 import kotlinx.coroutines.launch
@@ -65,7 +68,9 @@ import kotlinx.coroutines.launch
 fun ChatScreen(
     viewModel: ChatViewModel,
     contact: Contact,
-    onBack: () -> Unit
+    onBack: () -> Unit,
+    jumpTo: MessageSearchHit? = null, // Open at this message instead of the newest
+    onSearch: () -> Unit = {}
 ) {
     // Selection State moved up for TopBar access
     val selectedIds = remember { mutableStateListOf<Int>() }
@@ -91,8 +96,9 @@ fun ChatScreen(
     val connectionStatus by viewModel.torStatus.collectAsState()
     val myOnionAddress by viewModel.onionAddress.collectAsState()
     
-    // Optimized: Collect pre-filtered flow from ViewModel (IO Thread)
-    val messages by viewModel.getMessagesForContact(contact.onionAddress).collectAsState(initial = emptyList())
+    // Paged, newest first (index 0 is the bottom of the reversed list); unloaded rows are null placeholders
+    val messagePages = remember(contact.onionAddress, jumpTo) { viewModel.getMessagesForContact(contact.onionAddress, jumpTo) }
+    val messages = messagePages.collectAsLazyPagingItems()
     val playingMessageId by viewModel.playingMessageId.collectAsState()
     
     // Sanitized address for display logic only
@@ -145,6 +151,7 @@ fun ChatScreen(
                 // ... (existing log dialog)
                 // Collect logs ONLY when dialog is open to improve performance
                 val debugLogs by viewModel.debugLogs.collectAsState()
+                val diagnostics = remember { viewModel.diagnostics() }
                 
                 AlertDialog(
                     onDismissRequest = { showLogs = false },
@@ -154,6 +161,11 @@ fun ChatScreen(
                             Text("My Address:", style = MaterialTheme.typography.labelMedium)
                             Text(myOnionAddress ?: "Generating...", style = MaterialTheme.typography.bodySmall)
                             Divider(modifier = Modifier.padding(vertical = 8.dp))
+                            Text("Stats:", style = MaterialTheme.typography.labelMedium)
+                            diagnostics.forEach {
+                                Text(it, style = MaterialTheme.typography.labelSmall, fontFamily = androidx.compose.ui.text.font.FontFamily.Monospace)
+                            }
+                            Divider(modifier = Modifier.padding(vertical = 8.dp))
                             Text("Logs:", style = MaterialTheme.typography.labelMedium)
                             Box(modifier = Modifier.height(200.dp).border(1.dp, MaterialTheme.colorScheme.outline).verticalScroll(rememberScrollState()).padding(4.dp)) {
                                 Text(debugLogs, style = MaterialTheme.typography.labelSmall, fontFamily = androidx.compose.ui.text.font.FontFamily.Monospace)
@@ -226,7 +238,7 @@ fun ChatScreen(
                         // Copy Option
                         if (selectedIds.size == 1) {
                             IconButton(onClick = {
-                                val msg = messages.find { it.id == selectedIds.first() }
+                                val msg = messages.itemSnapshotList.items.find { it.id == selectedIds.first() }
                                 if (msg != null && msg.type == Message.TYPE_TEXT) {
                                     clipboardManager.setText(AnnotatedString(msg.content))
                                     selectedIds.clear()
@@ -284,6 +296,15 @@ fun ChatScreen(
                                 )
 
                                 // Copy ID Option
+                                DropdownMenuItem(
+                                    text = { Text("Search in Chat") },
+                                    leadingIcon = { Icon(Icons.Default.Search, contentDescription = null) },
+                                    onClick = {
+                                        showMenu = false
+                                        onSearch()
+                                    }
+                                )
+
                                 DropdownMenuItem(
                                     text = { Text("Copy ID") },
                                     leadingIcon = { Icon(Icons.Default.ContentCopy, contentDescription = null) },
@@ -319,8 +340,15 @@ fun ChatScreen(
                                     leadingIcon = { Icon(Icons.Default.Delete, contentDescription = null, tint = MaterialTheme.colorScheme.error) },
                                     onClick = {
                                         showMenu = false
-                                        val allIds = messages.map { it.id }
-                                        triggerDelete(allIds)
+                                        // Only a window of the history is loaded; animate that and clear the rest in SQL
+                                        val loadedIds = messages.itemSnapshotList.items.map { it.id }
+                                        deletingIds.addAll(loadedIds)
+                                        selectedIds.clear()
+                                        coroutineScope.launch {
+                                            kotlinx.coroutines.delay(400) // Wait for exit animation
+                                            viewModel.clearChat(contact.onionAddress)
+                                            deletingIds.removeAll(loadedIds)
+                                        }
                                     }
                                 )
                             }
@@ -386,7 +414,7 @@ fun ChatScreen(
                     .fillMaxWidth()
                     .background(MaterialTheme.colorScheme.background)
             ) {
-                if (messages.isEmpty()) {
+                if (messages.itemCount == 0 && messages.loadState.refresh is androidx.paging.LoadState.NotLoading) {
                     Box(modifier = Modifier.fillMaxSize(), contentAlignment = Alignment.Center) {
                         Text(
                             "No messages yet", 
@@ -394,48 +422,48 @@ fun ChatScreen(
                             style = MaterialTheme.typography.bodyLarge
                         )
                     }
-                } else {
+                } else if (messages.itemCount > 0) {
                     val listState = rememberLazyListState()
                     val coroutineScope = rememberCoroutineScope()
                     val showScrollToBottom by remember {
                         derivedStateOf {
-                            // Only show if we are NOT at the bottom
-                            val layoutInfo = listState.layoutInfo
-                            val totalItems = layoutInfo.totalItemsCount
-                            if (totalItems == 0) return@derivedStateOf false
-                            
-                            val lastVisibleItem = layoutInfo.visibleItemsInfo.lastOrNull()
-                            lastVisibleItem == null || lastVisibleItem.index < totalItems - 1
+                            // Only show if we are NOT at the bottom (item 0 in the reversed list)
+                            listState.firstVisibleItemIndex > 0
                         }
                     }
 
-                    // Auto-scroll to bottom when new messages arrive
-                    // Auto-scroll to bottom when new messages arrive
-                    var isInitialLoad by remember { mutableStateOf(true) }
-                    
-                     
-                    LaunchedEffect(messages.size) {
-                        if (messages.isNotEmpty()) {
-                             if (isInitialLoad) {
-                                 // Instant jump on first load (Entering chat)
-                                 listState.scrollToItem(messages.size)
-                                 isInitialLoad = false
-                             } else {
-                                 // With the new Layout-preserving animation, the space is reserved instantly.
-                                 // So we can just scroll once to the new item.
-                                 listState.animateScrollToItem(messages.size)
-                             }
+                    // The reversed list opens at the bottom; follow new messages there
+                    val newestId = messages.peek(0)?.id
+                    var lastNewestId by remember { mutableStateOf(newestId) }
+                    LaunchedEffect(newestId) {
+                        if (newestId != null && newestId != lastNewestId) {
+                            // Unknown before means the newest page just loaded (opened at a search hit), not a new message
+                            val follow = lastNewestId != null
+                            lastNewestId = newestId
+                            // With the Layout-preserving animation, the space is reserved instantly.
+                            if (follow) listState.animateScrollToItem(0)
+                        }
+                    }
+
+                    // Opened at a search hit: the first page starts there; bring it on screen once it's loaded
+                    if (jumpTo != null) {
+                        var jumped by remember(jumpTo) { mutableStateOf(false) }
+                        val jumpIndex = messages.itemSnapshotList.indexOfFirst { it?.id == jumpTo.id }
+                        LaunchedEffect(jumpIndex) {
+                            if (!jumped && jumpIndex >= 0) {
+                                listState.scrollToItem(jumpIndex)
+                                jumped = true
+                            }
                         }
                     }
                     
                     // Mark messages as read continuously
-                    LaunchedEffect(messages) {
-                         if (messages.isNotEmpty()) {
-                             // Only call DB if there are actual unread messages to prevent infinite loop
-                             val hasUnread = messages.any { !it.isRead && !it.isMine }
-                             if (hasUnread) {
-                                viewModel.markAsRead(contact.onionAddress)
-                             }
+                    val loadedMessages = messages.itemSnapshotList.items
+                    LaunchedEffect(loadedMessages) {
+                         // Only call DB if there are actual unread messages to prevent infinite loop
+                         val hasUnread = loadedMessages.any { !it.isRead && !it.isMine }
+                         if (hasUnread) {
+                            viewModel.markAsRead(contact.onionAddress)
                          }
                     }
 
@@ -481,19 +509,26 @@ fun ChatScreen(
                         LazyColumn(
                             state = listState,
                             modifier = Modifier.fillMaxSize().padding(horizontal = 16.dp),
+                            reverseLayout = true,
                             verticalArrangement = Arrangement.Bottom,
                             contentPadding = PaddingValues(bottom = 8.dp)
                         ) {
-                            itemsIndexed(
-                                items = messages, 
-                                key = { _: Int, msg: Message -> msg.id }
-                            ) { index, msg ->
-                                // Date Header Logic (same)
-                                val showHeader = if (index == 0) {
+                            items(
+                                count = messages.itemCount,
+                                key = messages.itemKey { it.id }
+                            ) { index ->
+                                val msg = messages[index]
+                                if (msg == null) {
+                                    // Placeholder until its page loads
+                                    Spacer(modifier = Modifier.height(64.dp))
+                                    return@items
+                                }
+                                // Date Header Logic: the previous message is the next (older) index
+                                val showHeader = if (index == messages.itemCount - 1) {
                                     true
                                 } else {
-                                    val prevMsg = messages[index - 1]
-                                    !isSameDay(msg.timestamp, prevMsg.timestamp)
+                                    val prevMsg = messages.peek(index + 1)
+                                    prevMsg != null && !isSameDay(msg.timestamp, prevMsg.timestamp)
                                 }
 
                                 if (showHeader) {
@@ -557,8 +592,9 @@ fun ChatScreen(
                                                 keyboardController?.show()
                                             },
                                             onReplyClick = { replyId ->
-                                                val index = messages.indexOfFirst { it.id == replyId }
-                                                com.example.anomess.network.TorManager.log("DEBUG: onReplyClick id=$replyId index=$index total=${messages.size}")
+                                                // Only loaded pages are searched; snapshot indices match list positions
+                                                val index = messages.itemSnapshotList.indexOfFirst { it?.id == replyId }
+                                                com.example.anomess.network.TorManager.log("DEBUG: onReplyClick id=$replyId index=$index total=${messages.itemCount}")
                                                 if (index != -1) {
                                                     coroutineScope.launch {
                                                         try {
@@ -579,9 +615,6 @@ fun ChatScreen(
                                 }
                                 Spacer(modifier = Modifier.height(4.dp))
                             }
-                            item {
-                                Spacer(modifier = Modifier.height(1.dp))
-                            }
                         }
                         
                         // Selection Toolbar Overlay REMOVED (Moved to TopBar)
@@ -598,7 +631,7 @@ fun ChatScreen(
                             SmallFloatingActionButton(
                                 onClick = {
                                     coroutineScope.launch {
-                                        listState.animateScrollToItem(messages.size)
+                                        listState.animateScrollToItem(0)
                                     }
                                 },
                                 containerColor = MaterialTheme.colorScheme.secondaryContainer,
@@ -932,6 +965,7 @@ fun ChatScreen(
             if (showLogs) {
                 // Collect logs ONLY when dialog is open to improve performance
                 val debugLogs by viewModel.debugLogs.collectAsState()
+                val diagnostics = remember { viewModel.diagnostics() }
                 
                 AlertDialog(
                     onDismissRequest = { showLogs = false },
@@ -941,6 +975,11 @@ fun ChatScreen(
                             Text("My Address:", style = MaterialTheme.typography.labelMedium)
                             Text(myOnionAddress ?: "Generating...", style = MaterialTheme.typography.bodySmall)
                             Divider(modifier = Modifier.padding(vertical = 8.dp))
+                            Text("Stats:", style = MaterialTheme.typography.labelMedium)
+                            diagnostics.forEach {
+                                Text(it, style = MaterialTheme.typography.labelSmall, fontFamily = androidx.compose.ui.text.font.FontFamily.Monospace)
+                            }
+                            Divider(modifier = Modifier.padding(vertical = 8.dp))
                             Text("Logs:", style = MaterialTheme.typography.labelMedium)
                             Box(modifier = Modifier.height(200.dp).border(1.dp, MaterialTheme.colorScheme.outline).verticalScroll(rememberScrollState()).padding(4.dp)) {
                                 Text(debugLogs, style = MaterialTheme.typography.labelSmall, fontFamily = androidx.compose.ui.text.font.FontFamily.Monospace)
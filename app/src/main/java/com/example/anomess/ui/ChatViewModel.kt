@@ -3,26 +3,29 @@ package com.example.anomess.ui
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.ViewModelProvider
 import androidx.lifecycle.viewModelScope
+import androidx.paging.cachedIn
 import com.example.anomess.AnomessApp
 import com.example.anomess.data.Message
+import com.example.anomess.data.MessageSearchHit
 import com.example.anomess.data.MessageRepository
 import com.example.anomess.network.P2PConnectionManager
 import com.example.anomess.network.TorManager
+import com.example.anomess.network.TorState
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.cancel
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.asStateFlow
 import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.map
-import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.sync.withLock
 
 class ChatViewModel(
     private val torManager: TorManager,
     private val connectionManager: P2PConnectionManager,
-    private val repository: MessageRepository
+    private val repository: MessageRepository,
+    private val outbox: com.example.anomess.network.MessageOutbox
 ) : ViewModel() {
 
     private val _torStatus = MutableStateFlow("Initializing...")
@@ -33,34 +36,53 @@ class ChatViewModel(
 
     val debugLogs: StateFlow<String> = TorManager.logFlow
 
-    // For simplicity, we just fetch all messages for now. 
-    // In a real app we'd filter by conversation.
-    // However, Flow<List<Message>> can be exposed directly from Repository if we want all.
-    // Let's assume we are chatting with one person or just showing a global log for this MVP.
-    // The DAO has getAllMessages()
-    // The DAO has getAllMessages()
-    // For simplicity, we just fetch all messages for now. 
-    // In a real app we'd filter by conversation.
-    // Optimized filtered flow for a specific contact
-    // Optimized filtered flow for a specific contact
-    fun getMessagesForContact(contactAddress: String): Flow<List<Message>> {
-        // Use direct SQL query for O(1) performance instead of in-memory filtering
-        return repository.getMessages(contactAddress)
+    // Aggregate counters for the debug dialog, sampled when it opens
+    fun diagnostics(): List<String> =
+        listOf("ingest ${connectionManager.ingestMetrics()}") +
+            AnomessApp.instance.securityManager.cryptoStats() +
+            connectionManager.latencyDiagnostics().take(5).map { "latency $it" } // Most recently used peers
+
+    // Paged conversation, newest first, or starting at [jumpTo]. Cached per chat so recomposition and
+    // configuration changes reuse the loaded pages; each chat's cache lives in its own child scope,
+    // cancelled when another chat (or jump) is opened, so only one conversation stays in memory.
+    private var pagedChatKey: Pair<String, MessageSearchHit?>? = null
+    private var pagedChatScope: kotlinx.coroutines.CoroutineScope? = null
+    private var pagedChat: Flow<androidx.paging.PagingData<Message>>? = null
+
+    fun getMessagesForContact(contactAddress: String, jumpTo: MessageSearchHit? = null): Flow<androidx.paging.PagingData<Message>> {
+        val key = contactAddress to jumpTo
+        pagedChat?.takeIf { pagedChatKey == key }?.let { return it }
+
+        pagedChatScope?.cancel()
+        val scope = kotlinx.coroutines.CoroutineScope(
+            viewModelScope.coroutineContext + kotlinx.coroutines.SupervisorJob(viewModelScope.coroutineContext[kotlinx.coroutines.Job])
+        )
+        val startAt = jumpTo?.let { com.example.anomess.data.ConversationPagingSource.startingAt(it.timestamp, it.id) }
+        val flow = repository.getMessages(contactAddress, startAt).cachedIn(scope)
+        pagedChatKey = key
+        pagedChatScope = scope
+        pagedChat = flow
+        return flow
     }
-    
+
+    fun searchMessages(query: String, peerAddress: String? = null): Flow<androidx.paging.PagingData<MessageSearchHit>> {
+        return repository.searchMessages(query, peerAddress)
+    }
+
     val contacts = repository.getAllContacts()
     
-    fun getUnreadCount(contactAddress: String): Flow<Int> = repository.getUnreadCount(contactAddress)
+    // Most recent conversation first
+    val conversationSummaries = repository.getConversationSummaries()
     
     fun markAsRead(contactAddress: String) {
         viewModelScope.launch {
             repository.markAsRead(contactAddress.trim())
-            // Correct Logic: Send receipt using the timestamp the SENDER gave us
+            // Correct Logic: Send receipt using the timestamp the SENDER gave us.
+            // Repeated calls are cheap: the aggregator only sends when the mark moves.
             try {
-                val lastMsg = repository.getLastMessage(contactAddress.trim()).first()
-                if (lastMsg != null && !lastMsg.isMine) {
-                     val tsToSend = lastMsg.senderTimestamp ?: lastMsg.timestamp
-                     connectionManager.sendReadReceipt(contactAddress.trim(), tsToSend)
+                val readUpTo = repository.getLatestIncomingTimestamp(contactAddress.trim())
+                if (readUpTo != null) {
+                    connectionManager.sendReadReceipt(contactAddress.trim(), readUpTo)
                 }
             } catch (e: Exception) {
                 e.printStackTrace()
@@ -80,7 +102,6 @@ class ChatViewModel(
         }
     }
     
-    fun getLastMessage(contactAddress: String): Flow<Message?> = repository.getLastMessage(contactAddress)
     
     fun getContactFlow(address: String): Flow<com.example.anomess.data.Contact?> {
         // We can use getAllContacts and filter, or add single contact flow to DAO
@@ -93,7 +114,8 @@ class ChatViewModel(
 
     fun getMyPublicKey(): String? {
         return try {
-            val keyBytes = com.example.anomess.security.SecurityManager(com.example.anomess.AnomessApp.instance).getMyPublicKey()
+            // Raw Ed25519 key, i.e. the same form peers pin in Contact.publicKey
+            val keyBytes = com.example.anomess.AnomessApp.instance.securityManager.getMyRawPublicKey()
             android.util.Base64.encodeToString(keyBytes, android.util.Base64.NO_WRAP)
         } catch (e: Exception) {
             e.printStackTrace()
@@ -105,52 +127,26 @@ class ChatViewModel(
         startTor()
     }
 
-    // Track message IDs currently being retried to prevent duplicate sends
-    private val messagesBeingRetried = mutableSetOf<Int>()
-    private val retryLock = kotlinx.coroutines.sync.Mutex()
-
-    // Check for pending messages periodically or when online
-    private fun checkPendingMessages() {
+    private fun startTor() {
+        // Mirror the shared lifecycle; TorService may be the one that actually starts Tor
         viewModelScope.launch {
-            while(true) {
-                // Skip retries while Tor is restarting (TorService handles it)
-                if (torManager.isRestarting) {
-                    TorManager.log("Skipping retry - Tor is restarting...")
-                    kotlinx.coroutines.delay(5000)
-                    continue
-                }
-                
-                val pending = repository.getPendingMessages()
-                if (pending.isNotEmpty()) {
-                    // Filter out messages already being retried
-                    val toRetry = retryLock.withLock {
-                        pending.filter { msg -> !messagesBeingRetried.contains(msg.id) }
-                    }
-                    if (toRetry.isNotEmpty()) {
-                        TorManager.log("Found ${toRetry.size} pending messages to retry (${pending.size - toRetry.size} already in progress)")
-                        toRetry.forEach { msg ->
-                            retryMessage(msg)
-                        }
-                    }
+            torManager.state.collect { state ->
+                _torStatus.value = when (state) {
+                    TorState.Stopped -> "Tor Stopped"
+                    TorState.Starting -> "Starting Tor..."
+                    is TorState.Bootstrapping -> "Bootstrapping ${state.progress}%: ${state.summary}"
+                    TorState.Ready -> "Tor Connected" // Only once circuits can be built
+                    is TorState.Degraded -> "Tor Degraded: ${state.reason}"
+                    TorState.Restarting -> "Tor Restarting..."
                 }
-                // Retry every 30 seconds for faster recovery after reconnect
-                kotlinx.coroutines.delay(30_000)
+                if (state == TorState.Ready) _onionAddress.value = torManager.getOnionHostname()
             }
         }
-    }
-
-    private fun startTor() {
         viewModelScope.launch {
-            _torStatus.value = "Starting Tor..."
-            val success = torManager.startTor()
-            
-            if (success) {
-                _torStatus.value = "Tor Connected"
+            // Joins the service's start if one is already in flight; the outbox drains on Ready
+            if (torManager.startTor()) {
                 _onionAddress.value = torManager.getOnionHostname()
                 connectionManager.startListening()
-                
-                // Retry pending messages once connected
-                checkPendingMessages()
             } else {
                 _torStatus.value = "Tor Failed"
             }
@@ -179,18 +175,9 @@ class ChatViewModel(
                 replyToMessageId = replyToId,
                 replyToContent = replyToContent
             )
-            // Capture ID from insert
-            val msgId = repository.sendMessage(message).toInt()
-            
-            // Send over network (include reply content)
-            launch(Dispatchers.IO) {
-                val sent = connectionManager.sendMessage(recipientOnion, content, replyToContent, replyToTimestamp, replyToSender)
-                if (sent) {
-                    repository.updateMessageStatus(msgId, Message.STATUS_SENT)
-                } else {
-                    repository.updateMessageStatus(msgId, Message.STATUS_FAILED)
-                }
-            }
+            // Persist first; the outbox delivers it (reply timestamp/sender are rebuilt from replyToId)
+            repository.sendMessage(message)
+            outbox.enqueue(recipientOnion)
         }
     }
     
@@ -198,128 +185,20 @@ class ChatViewModel(
     // ...
     
     fun retryMessage(message: Message) {
-         viewModelScope.launch(Dispatchers.IO) {
-             // Check and mark as being retried
-             val canRetry = retryLock.withLock {
-                 if (messagesBeingRetried.contains(message.id)) {
-                     false // Already being retried
-                 } else {
-                     messagesBeingRetried.add(message.id)
-                     true
-                 }
-             }
-             
-             if (!canRetry) {
-                 TorManager.log("Message ${message.id} already being retried, skipping")
-                 return@launch
-             }
-             
-             try {
-                 // 1. Update text to "Sending"
-                 repository.updateMessageStatus(message.id, Message.STATUS_SENDING)
-                 
-                 // 2. Try network
-                 val success = if (message.type == Message.TYPE_TEXT) {
-                     connectionManager.sendMessage(message.receiverOnionAddress, message.content)
-                 } else {
-                     if (message.mediaPath != null) {
-                         val bytes = repository.readMediaBytes(message.mediaPath)
-                         val filename = if (message.type == Message.TYPE_IMAGE) "retry_img.jpg" else "retry_voice.m4a"
-                         val metadata = mapOf(
-                             "sender" to message.senderOnionAddress, 
-                             "filename" to filename, 
-                             "timestamp" to message.timestamp.toString()
-                         )
-                         val payload = com.example.anomess.network.MessagePayload(message.type, metadata, bytes)
-                         connectionManager.sendMessagePayload(message.receiverOnionAddress, payload)
-                     } else {
-                         false 
-                     }
-                 }
-
-                 // 3. Update status
-                 if (success) {
-                     repository.updateMessageStatus(message.id, Message.STATUS_SENT)
-                 } else {
-                     repository.updateMessageStatus(message.id, Message.STATUS_FAILED)
-                 }
-             } finally {
-                 // Always remove from tracking when done
-                 retryLock.withLock {
-                     messagesBeingRetried.remove(message.id)
-                 }
-             }
-         }
+        outbox.retryNow(message)
     }
 
     fun sendImage(context: android.content.Context, uri: android.net.Uri, recipientOnion: String) {
         viewModelScope.launch(Dispatchers.IO) {
             try {
-                // 1. Read raw bytes directly (NO Compression for Full Quality)
-                val inputStream = context.contentResolver.openInputStream(uri)
-                val bytes = inputStream?.readBytes()
-                inputStream?.close()
+                // 1. Stream raw bytes into the encrypted store (NO Compression for Full Quality)
+                val filename = "img_${System.currentTimeMillis()}.jpg" // Could improve to get real name
+                val media = context.contentResolver.openInputStream(uri)?.use { input ->
+                    repository.importMedia(input, filename)
+                }
                 
-                if (bytes != null) {
-                    // Use simple filename or try to get from content resolver
-                    val filename = "img_${System.currentTimeMillis()}.jpg" // Could improve to get real name
-                    val path = repository.saveIncomingMedia(filename, bytes)
-                    
-                    val myAddress = onionAddress.value ?: "unknown"
-                    
-                    // 2. Create Message Entity
-                    val message = Message(
-                        senderOnionAddress = myAddress,
-                        receiverOnionAddress = recipientOnion,
-                        content = "📷 Image",
-                        timestamp = System.currentTimeMillis(),
-                        isMine = true,
-                        isRead = false,
-                        type = Message.TYPE_IMAGE,
-                        mediaPath = path,
-                        status = Message.STATUS_SENDING
-                    )
-                    val msgId = repository.sendMessage(message).toInt()
-                    
-                    // 3. Send over Network
-                    val metadata = mapOf(
-                        "sender" to myAddress,
-                        "filename" to filename,
-                        "timestamp" to message.timestamp.toString()
-                    )
-                    
-                    // Sign the payload
-                    val gson = com.google.gson.Gson()
-                    val metadataBytes = gson.toJson(metadata).toByteArray(Charsets.UTF_8)
-                    val signature = try {
-                        (context.applicationContext as com.example.anomess.AnomessApp).let { app ->
-                            val securityManager = com.example.anomess.security.SecurityManager(app)
-                            securityManager.signer.sign(metadataBytes + bytes)
-                        }
-                    } catch (e: Exception) { null }
-                    
-                    val publicKey = try {
-                        (context.applicationContext as com.example.anomess.AnomessApp).let { app ->
-                            val securityManager = com.example.anomess.security.SecurityManager(app)
-                            securityManager.getMyPublicKey()
-                        }
-                    } catch (e: Exception) { null }
-                    
-                    val payload = com.example.anomess.network.MessagePayload(
-                        type = Message.TYPE_IMAGE,
-                        metadata = metadata,
-                        data = bytes,
-                        signature = signature,
-                        senderPublicKey = publicKey,
-                        rawMetadata = metadataBytes
-                    )
-                    
-                    val sent = connectionManager.sendMessagePayload(recipientOnion, payload)
-                    if (sent) {
-                        repository.updateMessageStatus(msgId, Message.STATUS_SENT)
-                    } else {
-                        repository.updateMessageStatus(msgId, Message.STATUS_FAILED)
-                    }
+                if (media != null) {
+                    sendStoredMedia(recipientOnion, Message.TYPE_IMAGE, "📷 Image", media)
                 }
             } catch (e: Exception) {
                 e.printStackTrace()
@@ -341,67 +220,13 @@ class ChatViewModel(
                      }
                 }
 
-                val inputStream = context.contentResolver.openInputStream(uri)
-                val bytes = inputStream?.readBytes()
-                inputStream?.close()
-
-                if (bytes != null) {
-                    val path = repository.saveIncomingMedia(filename, bytes)
-                    val myAddress = onionAddress.value ?: "unknown"
-
-                    // Message Entity
-                    val message = Message(
-                        senderOnionAddress = myAddress,
-                        receiverOnionAddress = recipientOnion,
-                        content = "📎 $filename", // Show filename in content
-                        timestamp = System.currentTimeMillis(),
-                        isMine = true,
-                        isRead = false,
-                        type = Message.TYPE_FILE,
-                        mediaPath = path,
-                        status = Message.STATUS_SENDING
-                    )
-                    val msgId = repository.sendMessage(message).toInt()
-
-                    // Network Payload
-                    val metadata = mapOf(
-                        "sender" to myAddress,
-                        "filename" to filename, // Critical for receiver to save correctly
-                        "timestamp" to message.timestamp.toString()
-                    )
-
-                    // Sign
-                    val gson = com.google.gson.Gson()
-                    val metadataBytes = gson.toJson(metadata).toByteArray(Charsets.UTF_8)
-                    val signature = try {
-                        (context.applicationContext as com.example.anomess.AnomessApp).let { app ->
-                            val securityManager = com.example.anomess.security.SecurityManager(app)
-                            securityManager.signer.sign(metadataBytes + bytes)
-                        }
-                    } catch (e: Exception) { null }
-                    
-                    val publicKey = try {
-                        (context.applicationContext as com.example.anomess.AnomessApp).let { app ->
-                            val securityManager = com.example.anomess.security.SecurityManager(app)
-                            securityManager.getMyPublicKey()
-                        }
-                    } catch (e: Exception) { null }
-
-                    val payload = com.example.anomess.network.MessagePayload(
-                        type = Message.TYPE_FILE, // 3
-                        metadata = metadata,
-                        data = bytes,
-                        signature = signature,
-                        senderPublicKey = publicKey,
-                        rawMetadata = metadataBytes
-                    )
-
-                    val sent = connectionManager.sendMessagePayload(recipientOnion, payload)
-                    if (sent) {
-                        repository.updateMessageStatus(msgId, Message.STATUS_SENT)
-                    } else {
-                        repository.updateMessageStatus(msgId, Message.STATUS_FAILED)
-                    }
+                val media = context.contentResolver.openInputStream(uri)?.use { input ->
+                    repository.importMedia(input, filename)
+                }
+
+                if (media != null) {
+                    // Show filename in content; filename in metadata is critical for receiver to save correctly
+                    sendStoredMedia(recipientOnion, Message.TYPE_FILE, "📎 $filename", media)
                 }
             } catch (e: Exception) {
                 e.printStackTrace()
@@ -409,6 +234,28 @@ class ChatViewModel(
         }
     }
 
+    /**
+     * Records an outgoing media message and hands it to the outbox, which streams it from the encrypted store.
+     * The source was read exactly once (by importMedia); nothing here holds the file in memory.
+     */
+    private suspend fun sendStoredMedia(recipientOnion: String, type: Int, content: String, media: com.example.anomess.data.StoredMedia) {
+        val myAddress = onionAddress.value ?: "unknown"
+        
+        val message = Message(
+            senderOnionAddress = myAddress,
+            receiverOnionAddress = recipientOnion,
+            content = content,
+            timestamp = System.currentTimeMillis(),
+            isMine = true,
+            isRead = false,
+            type = type,
+            mediaPath = media.path,
+            status = Message.STATUS_SENDING
+        )
+        repository.sendMessage(message)
+        outbox.enqueue(recipientOnion, media)
+    }
+
     fun saveMediaToGallery(context: android.content.Context, path: String) {
         viewModelScope.launch(Dispatchers.IO) {
             try {
@@ -572,62 +419,13 @@ class ChatViewModel(
     private fun sendAudio(file: java.io.File, recipientOnion: String) {
         viewModelScope.launch(Dispatchers.IO) {
             try {
-                // 1. Save locally (move temp to media dir)
-                val bytes = file.readBytes()
+                // 1. Save locally (stream temp recording into media dir)
                 val filename = "voice_${System.currentTimeMillis()}.m4a"
-                val path = repository.saveIncomingMedia(filename, bytes) // Reusing save incoming for simplicity
-                
-                val myAddress = onionAddress.value ?: "unknown"
-                
-                val message = Message(
-                    senderOnionAddress = myAddress,
-                    receiverOnionAddress = recipientOnion,
-                    content = "🎤 Voice Message",
-                    timestamp = System.currentTimeMillis(),
-                    isMine = true,
-                    isRead = false,
-                    type = Message.TYPE_AUDIO,
-                    mediaPath = path,
-                    status = Message.STATUS_SENDING
-                )
-                val msgId = repository.sendMessage(message).toInt()
-                
-                val metadata = mapOf(
-                    "sender" to myAddress,
-                    "filename" to filename,
-                    "timestamp" to message.timestamp.toString()
-                )
-                
-                // Sign the payload
-                val gson = com.google.gson.Gson()
-                val metadataBytes = gson.toJson(metadata).toByteArray(Charsets.UTF_8)
-                val signature = try {
-                    val app = com.example.anomess.AnomessApp.instance
-                    val securityManager = com.example.anomess.security.SecurityManager(app)
-                    securityManager.signer.sign(metadataBytes + bytes)
-                } catch (e: Exception) { null }
-                
-                val publicKey = try {
-                    val app = com.example.anomess.AnomessApp.instance
-                    val securityManager = com.example.anomess.security.SecurityManager(app)
-                    securityManager.getMyPublicKey()
-                } catch (e: Exception) { null }
-                
-                val payload = com.example.anomess.network.MessagePayload(
-                    type = Message.TYPE_AUDIO,
-                    metadata = metadata,
-                    data = bytes,
-                    signature = signature,
-                    senderPublicKey = publicKey,
-                    rawMetadata = metadataBytes
-                )
-                
-                val sent = connectionManager.sendMessagePayload(recipientOnion, payload)
-                if (sent) {
-                    repository.updateMessageStatus(msgId, Message.STATUS_SENT)
-                } else {
-                    repository.updateMessageStatus(msgId, Message.STATUS_FAILED)
+                val media = file.inputStream().use { input ->
+                    repository.importMedia(input, filename)
                 }
+                
+                sendStoredMedia(recipientOnion, Message.TYPE_AUDIO, "🎤 Voice Message", media)
             } catch (e: Exception) {
                 e.printStackTrace()
             }
@@ -650,7 +448,7 @@ class ChatViewModelFactory(private val app: AnomessApp) : ViewModelProvider.Fact
     override fun <T : ViewModel> create(modelClass: Class<T>): T {
         if (modelClass.isAssignableFrom(ChatViewModel::class.java)) {
             @Suppress("UNCHECKED_CAST")
-            return ChatViewModel(app.torManager, app.p2pConnectionManager, app.repository) as T
+            return ChatViewModel(app.torManager, app.p2pConnectionManager, app.repository, app.outbox) as T
         }
         throw IllegalArgumentException("Unknown ViewModel class")
     }
@@ -10,6 +10,7 @@ import androidx.compose.material.icons.Icons
 import androidx.compose.material.icons.filled.Add
 import androidx.compose.material.icons.filled.Fingerprint
 import androidx.compose.material.icons.filled.QrCodeScanner
+import androidx.compose.material.icons.filled.Search
 import androidx.compose.material3.*
 import androidx.compose.runtime.*
 import androidx.compose.ui.Alignment
@@ -18,14 +19,23 @@ import androidx.compose.ui.graphics.asImageBitmap
 import androidx.compose.ui.unit.dp
 import androidx.compose.ui.unit.sp
 import com.example.anomess.data.Contact
+import com.example.anomess.data.ConversationSummary
 
 @OptIn(ExperimentalMaterial3Api::class, ExperimentalFoundationApi::class)
 @Composable
 fun ContactListScreen(
     viewModel: ChatViewModel,
-    onContactSelected: (Contact) -> Unit
+    onContactSelected: (Contact) -> Unit,
+    onSearch: () -> Unit = {}
 ) {
     val contacts by viewModel.contacts.collectAsState(initial = emptyList())
+    val summaries by viewModel.conversationSummaries.collectAsState(initial = emptyList())
+    val summaryByPeer = remember(summaries) { summaries.associateBy { it.peerAddress } }
+    // Most recent conversation first; contacts without messages keep their name order after them
+    val sortedContacts = remember(contacts, summaries) {
+        val rank = summaries.withIndex().associate { it.value.peerAddress to it.index }
+        contacts.sortedBy { rank[it.onionAddress] ?: Int.MAX_VALUE }
+    }
     var showAddDialog by remember { mutableStateOf(false) }
     val clipboardManager = androidx.compose.ui.platform.LocalClipboardManager.current
     val myAddress by viewModel.onionAddress.collectAsState()
@@ -117,6 +127,9 @@ fun ContactListScreen(
                     titleContentColor = MaterialTheme.colorScheme.primary
                 ),
                 actions = {
+                    IconButton(onClick = onSearch) {
+                        Icon(Icons.Default.Search, contentDescription = "Search Messages")
+                    }
                     IconButton(onClick = { showIdentityDialog = true }) {
                         Icon(Icons.Default.Fingerprint, contentDescription = "My Identity")
                     }
@@ -155,11 +168,11 @@ fun ContactListScreen(
                 }
             } else {
                 LazyColumn {
-                    items(contacts, key = { it.onionAddress }) { contact ->
+                    items(sortedContacts, key = { it.onionAddress }) { contact ->
                         Box(modifier = Modifier.animateItemPlacement()) {
                             ContactItem(
                                 contact = contact, 
-                                viewModel = viewModel, 
+                                summary = summaryByPeer[contact.onionAddress], 
                                 onClick = { onContactSelected(contact) },
                                 onLongClick = { contactToDelete = contact }
                             )
@@ -183,9 +196,9 @@ fun ContactListScreen(
 
 @OptIn(ExperimentalFoundationApi::class)
 @Composable
-fun ContactItem(contact: Contact, viewModel: ChatViewModel, onClick: () -> Unit, onLongClick: () -> Unit) {
-    val unreadCount by viewModel.getUnreadCount(contact.onionAddress).collectAsState(initial = 0)
-    val lastMessage by viewModel.getLastMessage(contact.onionAddress).collectAsState(initial = null)
+fun ContactItem(contact: Contact, summary: ConversationSummary?, onClick: () -> Unit, onLongClick: () -> Unit) {
+    val unreadCount = summary?.unreadCount ?: 0
+    val lastContent = summary?.lastContent
     
     Surface(
         modifier = Modifier
@@ -247,7 +260,7 @@ fun ContactItem(contact: Contact, viewModel: ChatViewModel, onClick: () -> Unit,
                 )
                 Text(
                     text = when {
-                        lastMessage != null -> lastMessage?.content?.take(30) + if ((lastMessage?.content?.length ?: 0) > 30) "..." else ""
+                        lastContent != null -> lastContent.take(30) + if (lastContent.length > 30) "..." else ""
                         else -> contact.onionAddress.take(20) + "..."
                     },
                     style = if (unreadCount > 0) MaterialTheme.typography.labelMedium else MaterialTheme.typography.bodySmall,
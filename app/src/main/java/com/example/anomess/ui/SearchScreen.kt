@@ -0,0 +1,164 @@
+package com.example.anomess.ui
+
+import androidx.activity.compose.BackHandler
+import androidx.compose.foundation.clickable
+import androidx.compose.foundation.layout.*
+import androidx.compose.foundation.lazy.LazyColumn
+import androidx.compose.material.icons.Icons
+import androidx.compose.material.icons.filled.ArrowBack
+import androidx.compose.material.icons.filled.Close
+import androidx.compose.material3.*
+import androidx.compose.runtime.*
+import androidx.compose.ui.Alignment
+import androidx.compose.ui.Modifier
+import androidx.compose.ui.focus.FocusRequester
+import androidx.compose.ui.focus.focusRequester
+import androidx.compose.ui.text.AnnotatedString
+import androidx.compose.ui.text.SpanStyle
+import androidx.compose.ui.text.buildAnnotatedString
+import androidx.compose.ui.text.font.FontWeight
+import androidx.compose.ui.text.withStyle
+import androidx.compose.ui.unit.dp
+import androidx.paging.LoadState
+import androidx.paging.compose.collectAsLazyPagingItems
+import androidx.paging.compose.itemKey
+import com.example.anomess.data.Contact
+import com.example.anomess.data.MessageSearchHit
+
+@OptIn(ExperimentalMaterial3Api::class)
+@Composable
+fun SearchScreen(
+    viewModel: ChatViewModel,
+    peer: Contact?, // Search only this conversation, or all when null
+    onResultSelected: (Contact, MessageSearchHit) -> Unit,
+    onBack: () -> Unit
+) {
+    BackHandler(onBack = onBack)
+
+    val contacts by viewModel.contacts.collectAsState(initial = emptyList())
+    val contactsByAddress = remember(contacts) { contacts.associateBy { it.onionAddress } }
+
+    var text by remember { mutableStateOf("") }
+    var query by remember { mutableStateOf("") }
+    // Don't start a search per keystroke
+    LaunchedEffect(text) {
+        kotlinx.coroutines.delay(250)
+        query = text
+    }
+    val results = remember(query, peer) { viewModel.searchMessages(query, peer?.onionAddress) }
+        .collectAsLazyPagingItems()
+
+    val focusRequester = remember { FocusRequester() }
+    LaunchedEffect(Unit) { focusRequester.requestFocus() }
+
+    Scaffold(
+        topBar = {
+            TopAppBar(
+                title = {
+                    TextField(
+                        value = text,
+                        onValueChange = { text = it },
+                        placeholder = { Text(if (peer != null) "Search in ${peer.name}" else "Search messages") },
+                        singleLine = true,
+                        colors = TextFieldDefaults.colors(
+                            focusedContainerColor = MaterialTheme.colorScheme.background,
+                            unfocusedContainerColor = MaterialTheme.colorScheme.background
+                        ),
+                        modifier = Modifier.fillMaxWidth().focusRequester(focusRequester)
+                    )
+                },
+                navigationIcon = {
+                    IconButton(onClick = onBack) {
+                        Icon(Icons.Default.ArrowBack, contentDescription = "Back")
+                    }
+                },
+                actions = {
+                    if (text.isNotEmpty()) {
+                        IconButton(onClick = { text = "" }) {
+                            Icon(Icons.Default.Close, contentDescription = "Clear")
+                        }
+                    }
+                },
+                colors = TopAppBarDefaults.topAppBarColors(
+                    containerColor = MaterialTheme.colorScheme.background
+                )
+            )
+        }
+    ) { padding ->
+        Box(modifier = Modifier.padding(padding).fillMaxSize()) {
+            if (query.isNotBlank() && results.itemCount == 0 && results.loadState.refresh is LoadState.NotLoading) {
+                Text(
+                    "No messages found",
+                    color = MaterialTheme.colorScheme.onSurfaceVariant,
+                    style = MaterialTheme.typography.bodyLarge,
+                    modifier = Modifier.align(Alignment.Center)
+                )
+            }
+            LazyColumn(modifier = Modifier.fillMaxSize()) {
+                items(count = results.itemCount, key = results.itemKey { it.id }) { index ->
+                    val hit = results[index] ?: return@items
+                    val contact = contactsByAddress[hit.peerAddress]
+                        ?: Contact(onionAddress = hit.peerAddress, name = hit.peerAddress.take(8))
+                    SearchResultItem(
+                        hit = hit,
+                        name = contact.name,
+                        onClick = { onResultSelected(contact, hit) }
+                    )
+                }
+            }
+        }
+    }
+}
+
+@Composable
+fun SearchResultItem(hit: MessageSearchHit, name: String, onClick: () -> Unit) {
+    val date = remember(hit.timestamp) {
+        java.text.SimpleDateFormat("MMM dd, HH:mm", java.util.Locale.getDefault()).format(java.util.Date(hit.timestamp))
+    }
+    Column(
+        modifier = Modifier
+            .fillMaxWidth()
+            .clickable(onClick = onClick)
+            .padding(horizontal = 16.dp, vertical = 12.dp)
+    ) {
+        Row(verticalAlignment = Alignment.CenterVertically) {
+            Text(
+                text = if (hit.isMine) "You → $name" else name,
+                style = MaterialTheme.typography.titleSmall,
+                color = MaterialTheme.colorScheme.onBackground,
+                modifier = Modifier.weight(1f),
+                maxLines = 1
+            )
+            Text(
+                text = date,
+                style = MaterialTheme.typography.labelSmall,
+                color = MaterialTheme.colorScheme.onSurfaceVariant
+            )
+        }
+        Text(
+            text = highlightSnippet(hit.snippet, MaterialTheme.colorScheme.primary),
+            style = MaterialTheme.typography.bodyMedium,
+            color = MaterialTheme.colorScheme.onSurfaceVariant,
+            maxLines = 2
+        )
+    }
+}
+
+// Bold the matched terms FTS wrapped in the snippet markers
+private fun highlightSnippet(snippet: String, color: androidx.compose.ui.graphics.Color): AnnotatedString = buildAnnotatedString {
+    var highlighted = false
+    val run = StringBuilder()
+    fun flush() {
+        if (run.isEmpty()) return
+        if (highlighted) withStyle(SpanStyle(fontWeight = FontWeight.Bold, color = color)) { append(run) } else append(run)
+        run.clear()
+    }
+    for (c in snippet) {
+        when (c) {
+            MessageSearchHit.SNIPPET_START -> { flush(); highlighted = true }
+            MessageSearchHit.SNIPPET_END -> { flush(); highlighted = false }
+            else -> run.append(c)
+        }
+    }
+    flush()
+}